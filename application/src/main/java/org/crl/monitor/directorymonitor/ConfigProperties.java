@@ -11,6 +11,9 @@
  */
 package org.crl.monitor.directorymonitor;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
@@ -28,6 +31,72 @@ public class ConfigProperties {
 
   private String processorId;
 
+  private int processingThreads;
+
+  private MonitorMode mode;
+
+  private int scanParallelism;
+
+  private int persistenceBatchSize;
+
+  private long persistenceDelay;
+
+  private long retryDelay;
+
+  private long maxRetryDelay;
+
+  private int maxAttempts;
+
+  private int batchSize;
+
+  private long batchAge;
+
+  private int maxInFlight;
+
+  private int queueCapacity;
+
+  private OverflowPolicy overflowPolicy;
+
+  private long coalesceWindow;
+
+  private int fingerprintThreads;
+
+  private String snapshotFile;
+
+  private long snapshotPeriod;
+
+  private boolean directoryPruning;
+
+  private boolean moveDetection;
+
+  private long maxScanInterval;
+
+  private long fullScanInterval;
+
+  private List<String> includeFiles;
+
+  private List<String> excludeFiles;
+
+  private List<String> includeDirectories;
+
+  private List<String> excludeDirectories;
+
+  private List<Root> roots;
+
+  private int scanThreads;
+
+  private int shards;
+
+  private String nodeId;
+
+  private long leaseDuration;
+
+  private CompletionMode completion;
+
+  private String markerSuffix;
+
+  private String manifestFiles;
+
   public String getDir() {
     return dir;
   }
@@ -79,4 +148,460 @@ public class ConfigProperties {
   public void setStabilityPeriod(long stabilityPeriod) {
     this.stabilityPeriod = stabilityPeriod;
   }
+
+  public int getProcessingThreads() {
+    if (processingThreads <= 0) {
+      return Runtime.getRuntime().availableProcessors();
+    }
+    return processingThreads;
+  }
+
+  public void setProcessingThreads(int processingThreads) {
+    this.processingThreads = processingThreads;
+  }
+
+  public MonitorMode getMode() {
+    if (mode == null) {
+      return MonitorMode.POLL;
+    }
+    return mode;
+  }
+
+  public void setMode(MonitorMode mode) {
+    this.mode = mode;
+  }
+
+  public int getScanParallelism() {
+    if (scanParallelism <= 0) {
+      return 1;
+    }
+    return scanParallelism;
+  }
+
+  public void setScanParallelism(int scanParallelism) {
+    this.scanParallelism = scanParallelism;
+  }
+
+  public int getPersistenceBatchSize() {
+    if (persistenceBatchSize <= 0) {
+      return 500;
+    }
+    return persistenceBatchSize;
+  }
+
+  public void setPersistenceBatchSize(int persistenceBatchSize) {
+    this.persistenceBatchSize = persistenceBatchSize;
+  }
+
+  public long getPersistenceDelay() {
+    if (persistenceDelay <= 0) {
+      return 1000L;
+    }
+    return persistenceDelay;
+  }
+
+  public void setPersistenceDelay(long persistenceDelay) {
+    this.persistenceDelay = persistenceDelay;
+  }
+
+  public long getRetryDelay() {
+    if (retryDelay <= 0) {
+      return 30000L;
+    }
+    return retryDelay;
+  }
+
+  public void setRetryDelay(long retryDelay) {
+    this.retryDelay = retryDelay;
+  }
+
+  public long getMaxRetryDelay() {
+    if (maxRetryDelay < getRetryDelay()) {
+      return Math.max(3600000L, getRetryDelay());
+    }
+    return maxRetryDelay;
+  }
+
+  public void setMaxRetryDelay(long maxRetryDelay) {
+    this.maxRetryDelay = maxRetryDelay;
+  }
+
+  public int getMaxAttempts() {
+    if (maxAttempts <= 0) {
+      return 10;
+    }
+    return maxAttempts;
+  }
+
+  public void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = maxAttempts;
+  }
+
+  public int getBatchSize() {
+    if (batchSize <= 0) {
+      return 100;
+    }
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public long getBatchAge() {
+    if (batchAge <= 0) {
+      return 1000L;
+    }
+    return batchAge;
+  }
+
+  public void setBatchAge(long batchAge) {
+    this.batchAge = batchAge;
+  }
+
+  public int getMaxInFlight() {
+    if (maxInFlight <= 0) {
+      return 256;
+    }
+    return maxInFlight;
+  }
+
+  public void setMaxInFlight(int maxInFlight) {
+    this.maxInFlight = maxInFlight;
+  }
+
+  public int getQueueCapacity() {
+    if (queueCapacity <= 0) {
+      return 10000;
+    }
+    return queueCapacity;
+  }
+
+  public void setQueueCapacity(int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    if (overflowPolicy == null) {
+      return OverflowPolicy.BLOCK;
+    }
+    return overflowPolicy;
+  }
+
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  public long getCoalesceWindow() {
+    if (coalesceWindow < 0) {
+      return 0L;
+    }
+    return coalesceWindow;
+  }
+
+  public void setCoalesceWindow(long coalesceWindow) {
+    this.coalesceWindow = coalesceWindow;
+  }
+
+  public int getFingerprintThreads() {
+    if (fingerprintThreads < 0) {
+      return 0;
+    }
+    return fingerprintThreads;
+  }
+
+  public void setFingerprintThreads(int fingerprintThreads) {
+    this.fingerprintThreads = fingerprintThreads;
+  }
+
+  public String getSnapshotFile() {
+    return snapshotFile;
+  }
+
+  public void setSnapshotFile(String snapshotFile) {
+    this.snapshotFile = snapshotFile;
+  }
+
+  public long getSnapshotPeriod() {
+    if (snapshotPeriod <= 0) {
+      return 60000L;
+    }
+    return snapshotPeriod;
+  }
+
+  public void setSnapshotPeriod(long snapshotPeriod) {
+    this.snapshotPeriod = snapshotPeriod;
+  }
+
+  public boolean isDirectoryPruning() {
+    return directoryPruning;
+  }
+
+  public void setDirectoryPruning(boolean directoryPruning) {
+    this.directoryPruning = directoryPruning;
+  }
+
+  public boolean isMoveDetection() {
+    return moveDetection;
+  }
+
+  public void setMoveDetection(boolean moveDetection) {
+    this.moveDetection = moveDetection;
+  }
+
+  public long getMaxScanInterval() {
+    if (maxScanInterval < 0) {
+      return 0L;
+    }
+    return maxScanInterval;
+  }
+
+  public void setMaxScanInterval(long maxScanInterval) {
+    this.maxScanInterval = maxScanInterval;
+  }
+
+  public long getFullScanInterval() {
+    if (fullScanInterval <= 0) {
+      return 3600000L;
+    }
+    return fullScanInterval;
+  }
+
+  public void setFullScanInterval(long fullScanInterval) {
+    this.fullScanInterval = fullScanInterval;
+  }
+
+  public List<String> getIncludeFiles() {
+    if (includeFiles == null) {
+      return List.of();
+    }
+    return includeFiles;
+  }
+
+  public void setIncludeFiles(List<String> includeFiles) {
+    this.includeFiles = includeFiles;
+  }
+
+  public List<String> getExcludeFiles() {
+    if (excludeFiles == null) {
+      return List.of();
+    }
+    return excludeFiles;
+  }
+
+  public void setExcludeFiles(List<String> excludeFiles) {
+    this.excludeFiles = excludeFiles;
+  }
+
+  public List<String> getIncludeDirectories() {
+    if (includeDirectories == null) {
+      return List.of();
+    }
+    return includeDirectories;
+  }
+
+  public void setIncludeDirectories(List<String> includeDirectories) {
+    this.includeDirectories = includeDirectories;
+  }
+
+  public List<String> getExcludeDirectories() {
+    if (excludeDirectories == null) {
+      return List.of();
+    }
+    return excludeDirectories;
+  }
+
+  public void setExcludeDirectories(List<String> excludeDirectories) {
+    this.excludeDirectories = excludeDirectories;
+  }
+
+  /**
+   * Get the monitored directories. A single directory with the id {@code default} is configured by
+   * the top level properties unless roots are listed, in which case any property a root leaves
+   * unset is taken from the top level.
+   *
+   * @return the monitored directories
+   */
+  public List<Root> getRoots() {
+    if (roots == null || roots.isEmpty()) {
+      Root root = new Root();
+      root.setId("default");
+      root.setSnapshotFile(getSnapshotFile());
+      return List.of(resolve(root));
+    }
+    List<Root> resolved = new ArrayList<>();
+    for (Root root : roots) {
+      resolved.add(resolve(root));
+    }
+    return resolved;
+  }
+
+  private Root resolve(Root root) {
+    Root resolved = new Root();
+    resolved.setDir(root.getDir() == null ? getDir() : root.getDir());
+    resolved.setId(root.getId() == null ? resolved.getDir() : root.getId());
+    resolved.setFileRegEx(root.getFileRegEx() == null ? getFileRegEx() : root.getFileRegEx());
+    resolved.setCheckPeriod(root.getCheckPeriod() <= 0 ? getCheckPeriod() : root.getCheckPeriod());
+    resolved.setStabilityPeriod(
+        root.getStabilityPeriod() < 1000 ? getStabilityPeriod() : root.getStabilityPeriod());
+    resolved.setProcessorId(
+        root.getProcessorId() == null ? getProcessorId() : root.getProcessorId());
+    resolved.setSnapshotFile(root.getSnapshotFile());
+    return resolved;
+  }
+
+  public void setRoots(List<Root> roots) {
+    this.roots = roots;
+  }
+
+  public int getScanThreads() {
+    if (scanThreads <= 0) {
+      return 2;
+    }
+    return scanThreads;
+  }
+
+  public void setScanThreads(int scanThreads) {
+    this.scanThreads = scanThreads;
+  }
+
+  public int getShards() {
+    if (shards < 0) {
+      return 0;
+    }
+    return shards;
+  }
+
+  public void setShards(int shards) {
+    this.shards = shards;
+  }
+
+  public String getNodeId() {
+    if (nodeId == null || nodeId.isEmpty()) {
+      return ManagementFactory.getRuntimeMXBean().getName();
+    }
+    return nodeId;
+  }
+
+  public void setNodeId(String nodeId) {
+    this.nodeId = nodeId;
+  }
+
+  public long getLeaseDuration() {
+    if (leaseDuration <= 0) {
+      return 30000L;
+    }
+    return leaseDuration;
+  }
+
+  public void setLeaseDuration(long leaseDuration) {
+    this.leaseDuration = leaseDuration;
+  }
+
+  public CompletionMode getCompletion() {
+    if (completion == null) {
+      return CompletionMode.STABILITY;
+    }
+    return completion;
+  }
+
+  public void setCompletion(CompletionMode completion) {
+    this.completion = completion;
+  }
+
+  public String getMarkerSuffix() {
+    if (markerSuffix == null || markerSuffix.isEmpty()) {
+      return ".done";
+    }
+    return markerSuffix;
+  }
+
+  public void setMarkerSuffix(String markerSuffix) {
+    this.markerSuffix = markerSuffix;
+  }
+
+  public String getManifestFiles() {
+    if (manifestFiles == null || manifestFiles.isEmpty()) {
+      return "*.manifest";
+    }
+    return manifestFiles;
+  }
+
+  public void setManifestFiles(String manifestFiles) {
+    this.manifestFiles = manifestFiles;
+  }
+
+  /** A monitored directory. */
+  public static class Root {
+
+    private String id;
+
+    private String dir;
+
+    private String fileRegEx;
+
+    private long checkPeriod;
+
+    private long stabilityPeriod;
+
+    private String processorId;
+
+    private String snapshotFile;
+
+    public String getId() {
+      return id;
+    }
+
+    public void setId(String id) {
+      this.id = id;
+    }
+
+    public String getDir() {
+      return dir;
+    }
+
+    public void setDir(String dir) {
+      this.dir = dir;
+    }
+
+    public String getFileRegEx() {
+      return fileRegEx;
+    }
+
+    public void setFileRegEx(String fileRegEx) {
+      this.fileRegEx = fileRegEx;
+    }
+
+    public long getCheckPeriod() {
+      return checkPeriod;
+    }
+
+    public void setCheckPeriod(long checkPeriod) {
+      this.checkPeriod = checkPeriod;
+    }
+
+    public long getStabilityPeriod() {
+      return stabilityPeriod;
+    }
+
+    public void setStabilityPeriod(long stabilityPeriod) {
+      this.stabilityPeriod = stabilityPeriod;
+    }
+
+    public String getProcessorId() {
+      return processorId;
+    }
+
+    public void setProcessorId(String processorId) {
+      this.processorId = processorId;
+    }
+
+    public String getSnapshotFile() {
+      return snapshotFile;
+    }
+
+    public void setSnapshotFile(String snapshotFile) {
+      this.snapshotFile = snapshotFile;
+    }
+  }
 }
@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Records a monitor's measurements as Micrometer meters, tagged with the id of the monitored
+ * directory as {@code root}. Use one instance per monitor.
+ *
+ * <ul>
+ *   <li>{@code monitor.scan.duration} times polling scans, and {@code monitor.scan.files} counts
+ *       the files and directories each one visited
+ *   <li>{@code monitor.events} counts events by {@code type} and {@code outcome}
+ *   <li>{@code monitor.processing} times the processor by {@code processor}, {@code type} and
+ *       {@code outcome}
+ *   <li>{@code monitor.completion.wait} times how long files took to become complete
+ *   <li>{@code monitor.repository} times repository calls by {@code operation}
+ *   <li>{@code monitor.queue.depth}, {@code monitor.completion.pending} and {@code
+ *       monitor.retries.pending}, by {@code status}, are read from the monitor when published
+ * </ul>
+ */
+public class MicrometerMonitorMetrics implements MonitorMetrics {
+
+  private final MeterRegistry registry;
+
+  private final List<Meter> meters = new CopyOnWriteArrayList<>();
+
+  private final Map<String, Counter> events = new ConcurrentHashMap<>();
+
+  private final Map<String, Timer> processing = new ConcurrentHashMap<>();
+
+  private final Map<String, Timer> repository = new ConcurrentHashMap<>();
+
+  private volatile String root = "default";
+
+  private volatile Timer scans;
+
+  private volatile DistributionSummary filesVisited;
+
+  private volatile Timer completionWaits;
+
+  public MicrometerMonitorMetrics(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  @Override
+  public void bind(DirectoryMonitor monitor) {
+    root = monitor.getRootId();
+    scans =
+        register(
+            Timer.builder("monitor.scan.duration")
+                .description("Time taken to scan the monitored directory")
+                .tag("root", root)
+                .publishPercentileHistogram()
+                .register(registry));
+    filesVisited =
+        register(
+            DistributionSummary.builder("monitor.scan.files")
+                .description("Files and directories visited by a scan")
+                .tag("root", root)
+                .register(registry));
+    completionWaits =
+        register(
+            Timer.builder("monitor.completion.wait")
+                .description("Time files waited to become complete before being processed")
+                .tag("root", root)
+                .publishPercentileHistogram()
+                .register(registry));
+    register(
+        Gauge.builder("monitor.queue.depth", monitor, DirectoryMonitor::getQueueDepth)
+            .description("Events detected but not yet processed")
+            .tag("root", root)
+            .register(registry));
+    register(
+        Gauge.builder(
+                "monitor.completion.pending", monitor, DirectoryMonitor::getPendingCompletionCount)
+            .description("Files waiting to become complete")
+            .tag("root", root)
+            .register(registry));
+    for (Status status : Status.values()) {
+      if (status != Status.PROCESSED) {
+        register(
+            Gauge.builder(
+                    "monitor.retries.pending",
+                    monitor,
+                    m -> m.getPendingRetryCounts().getOrDefault(status, 0L))
+                .description("Items still to be processed, as of the last retry")
+                .tags("root", root, "status", status.name())
+                .register(registry));
+      }
+    }
+  }
+
+  @Override
+  public void unbind(DirectoryMonitor monitor) {
+    meters.forEach(registry::remove);
+    meters.clear();
+    events.clear();
+    processing.clear();
+    repository.clear();
+  }
+
+  @Override
+  public void scanned(long nanos, int files) {
+    Timer timer = scans;
+    if (timer != null) {
+      timer.record(nanos, TimeUnit.NANOSECONDS);
+      filesVisited.record(files);
+    }
+  }
+
+  @Override
+  public void event(String type, String outcome) {
+    meter(
+            events,
+            type + '.' + outcome,
+            key ->
+                Counter.builder("monitor.events")
+                    .tags("root", root, "type", type, "outcome", outcome)
+                    .register(registry))
+        .increment();
+  }
+
+  @Override
+  public void processed(String processorId, String type, boolean success, long nanos) {
+    String outcome = success ? "success" : "failure";
+    meter(
+            processing,
+            processorId + '.' + type + '.' + outcome,
+            key ->
+                Timer.builder("monitor.processing")
+                    .description("Time taken by the processor to handle an event")
+                    .tags("root", root, "processor", processorId, "type", type, "outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(registry))
+        .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void completionWaited(long nanos) {
+    Timer timer = completionWaits;
+    if (timer != null) {
+      timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  public void repositoryCalled(String operation, long nanos) {
+    meter(
+            repository,
+            operation,
+            key ->
+                Timer.builder("monitor.repository")
+                    .description("Time taken by calls to the item repository")
+                    .tags("root", root, "operation", operation)
+                    .register(registry))
+        .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Look up a meter by key, registering it the first time it is used. */
+  private <T extends Meter> T meter(Map<String, T> cache, String key, Function<String, T> create) {
+    T meter = cache.get(key);
+    return meter != null ? meter : cache.computeIfAbsent(key, k -> register(create.apply(k)));
+  }
+
+  private <T extends Meter> T register(T meter) {
+    meters.add(meter);
+    return meter;
+  }
+}
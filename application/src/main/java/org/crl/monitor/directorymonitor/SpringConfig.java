@@ -11,8 +11,11 @@
  */
 package org.crl.monitor.directorymonitor;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import java.util.List;
+import javax.sql.DataSource;
 import org.crl.monitor.directorymonitor.processor.DefaultProcessor;
+import org.springframework.boot.autoconfigure.data.jpa.EntityManagerFactoryDependsOnPostProcessor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -20,22 +23,94 @@ import org.springframework.context.annotation.Configuration;
 public class SpringConfig {
 
   @Bean(destroyMethod = "destroy", initMethod = "init")
-  public DirectoryMonitor directoryMonitor(
+  public MonitorGroup monitorGroup(
       FileItemRepository fileItemRepository,
+      ShardLeaseRepository shardLeaseRepository,
+      ClusterNodeRepository clusterNodeRepository,
       ConfigProperties configProperties,
+      List<Processor> processorList,
+      MeterRegistry meterRegistry) {
+    MonitorGroup group =
+        new MonitorGroup(
+            configProperties.getScanThreads(), configProperties.getProcessingThreads());
+    for (ConfigProperties.Root root : configProperties.getRoots()) {
+      DirectoryMonitor directoryMonitor =
+          directoryMonitor(fileItemRepository, configProperties, root, processorList);
+      directoryMonitor.setMetrics(new MicrometerMonitorMetrics(meterRegistry));
+      if (configProperties.getShards() > 0) {
+        directoryMonitor.setSharding(
+            new ShardCoordinator(
+                shardLeaseRepository,
+                clusterNodeRepository,
+                root.getId(),
+                configProperties.getNodeId(),
+                configProperties.getShards(),
+                configProperties.getLeaseDuration()));
+      }
+      group.add(directoryMonitor);
+    }
+    return group;
+  }
+
+  private static DirectoryMonitor directoryMonitor(
+      FileItemRepository fileItemRepository,
+      ConfigProperties configProperties,
+      ConfigProperties.Root root,
       List<Processor> processorList) {
     Processor processor =
         processorList.stream()
-            .filter(p -> p.getId().equals(configProperties.getProcessorId()))
+            .filter(p -> p.getId().equals(root.getProcessorId()))
             .findFirst()
             .orElse(new DefaultProcessor());
-    return new DirectoryMonitor(
-        fileItemRepository,
-        configProperties.getDir(),
-        configProperties.getFileRegEx(),
-        configProperties.getCheckPeriod(),
-        configProperties.getStabilityPeriod(),
-        processor);
+    DirectoryMonitor directoryMonitor =
+        new DirectoryMonitor(
+            fileItemRepository,
+            root.getDir(),
+            root.getFileRegEx(),
+            root.getCheckPeriod(),
+            root.getStabilityPeriod(),
+            processor);
+    directoryMonitor.setRootId(root.getId());
+    directoryMonitor.setMode(configProperties.getMode());
+    directoryMonitor.setScanParallelism(configProperties.getScanParallelism());
+    directoryMonitor.setPersistence(
+        configProperties.getPersistenceBatchSize(), configProperties.getPersistenceDelay());
+    directoryMonitor.setRetry(
+        configProperties.getRetryDelay(),
+        configProperties.getMaxRetryDelay(),
+        configProperties.getMaxAttempts());
+    directoryMonitor.setBatching(configProperties.getBatchSize(), configProperties.getBatchAge());
+    directoryMonitor.setMaxInFlight(configProperties.getMaxInFlight());
+    directoryMonitor.setEventQueue(
+        configProperties.getQueueCapacity(), configProperties.getOverflowPolicy());
+    directoryMonitor.setCoalesceWindow(configProperties.getCoalesceWindow());
+    directoryMonitor.setFingerprintThreads(configProperties.getFingerprintThreads());
+    directoryMonitor.setSnapshot(root.getSnapshotFile(), configProperties.getSnapshotPeriod());
+    directoryMonitor.setDirectoryPruning(configProperties.isDirectoryPruning());
+    directoryMonitor.setMoveDetection(configProperties.isMoveDetection());
+    directoryMonitor.setTieredScanning(
+        configProperties.getMaxScanInterval(), configProperties.getFullScanInterval());
+    directoryMonitor.setCompletion(
+        configProperties.getCompletion(),
+        configProperties.getMarkerSuffix(),
+        configProperties.getManifestFiles());
+    directoryMonitor.setFilters(
+        configProperties.getIncludeFiles(),
+        configProperties.getExcludeFiles(),
+        configProperties.getIncludeDirectories(),
+        configProperties.getExcludeDirectories());
+    return directoryMonitor;
+  }
+
+  @Bean(initMethod = "migrate")
+  public FileItemSchemaMigration fileItemSchemaMigration(DataSource dataSource) {
+    return new FileItemSchemaMigration(dataSource);
+  }
+
+  /** Upgrade the schema before Hibernate validates or updates it. */
+  @Bean
+  public static EntityManagerFactoryDependsOnPostProcessor fileItemSchemaMigrationDependency() {
+    return new EntityManagerFactoryDependsOnPostProcessor("fileItemSchemaMigration");
   }
 
   @Bean
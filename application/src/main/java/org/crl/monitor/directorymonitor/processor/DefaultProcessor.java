@@ -15,12 +15,13 @@ import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.crl.monitor.directorymonitor.Processor;
 
 public class DefaultProcessor implements Processor {
-  int createOpCount = 0;
-  int updateOpCount = 0;
-  int deleteOpCount = 0;
+  private final AtomicInteger createOpCount = new AtomicInteger();
+  private final AtomicInteger updateOpCount = new AtomicInteger();
+  private final AtomicInteger deleteOpCount = new AtomicInteger();
 
   @Override
   public String getId() {
@@ -29,7 +30,7 @@ public class DefaultProcessor implements Processor {
 
   @Override
   public String processCreate(File file) {
-    createOpCount++;
+    createOpCount.incrementAndGet();
     try {
       MessageDigest digest = MessageDigest.getInstance("SHA-1");
       return convertByteArrayToHexString(
@@ -42,12 +43,24 @@ public class DefaultProcessor implements Processor {
 
   @Override
   public void processUpdate(File file, String altId) {
-    updateOpCount++;
+    updateOpCount.incrementAndGet();
   }
 
   @Override
   public void processDelete(File file, String altId) {
-    deleteOpCount++;
+    deleteOpCount.incrementAndGet();
+  }
+
+  public int getCreateOpCount() {
+    return createOpCount.get();
+  }
+
+  public int getUpdateOpCount() {
+    return updateOpCount.get();
+  }
+
+  public int getDeleteOpCount() {
+    return deleteOpCount.get();
   }
 
   private static String convertByteArrayToHexString(byte[] arrayBytes) {
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+class AsyncProcessorTest {
+
+  private static final int FILE_COUNT = 200;
+
+  private static final int MAX_IN_FLIGHT = 16;
+
+  @TempDir Path tempDir;
+
+  private final ScheduledExecutorService sink = Executors.newSingleThreadScheduledExecutor();
+
+  @AfterEach
+  void tearDown() {
+    sink.shutdownNow();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void keepsManyOperationsInFlightOnFewThreads() throws Exception {
+    FileItemRepository repository = mock(FileItemRepository.class);
+    SlowProcessor processor = new SlowProcessor();
+    DirectoryMonitor monitor =
+        new DirectoryMonitor(repository, tempDir.toString(), ".*", 100L, 0L, processor);
+    monitor.setProcessingThreads(2);
+    monitor.setMaxInFlight(MAX_IN_FLIGHT);
+    monitor.init();
+    for (int i = 0; i < FILE_COUNT; i++) {
+      Files.write(tempDir.resolve("file-" + i + ".txt"), new byte[] {1});
+    }
+    Files.write(tempDir.resolve("bad.txt"), new byte[] {1});
+
+    long deadline = System.currentTimeMillis() + 20_000;
+    while (processor.completed.get() < FILE_COUNT + 1 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    monitor.destroy();
+
+    assertEquals(FILE_COUNT + 1, processor.completed.get());
+    assertTrue(processor.maxInFlight.get() <= MAX_IN_FLIGHT, "cap exceeded");
+    assertTrue(processor.maxInFlight.get() > 2, "expected more operations than threads");
+
+    ArgumentCaptor<Iterable<FileItem>> saved = ArgumentCaptor.forClass(Iterable.class);
+    verify(repository, atLeastOnce()).saveAll(saved.capture());
+    Map<String, FileItem> items = new HashMap<>();
+    saved.getAllValues().forEach(batch -> batch.forEach(i -> items.put(i.getFileId(), i)));
+    assertEquals(FILE_COUNT + 1, items.size());
+    FileItem good = items.get(tempDir.resolve("file-0.txt").toString());
+    assertEquals(Status.PROCESSED, good.getStatus());
+    assertEquals("alt-file-0.txt", good.getAltFileId());
+    FileItem bad = items.get(tempDir.resolve("bad.txt").toString());
+    assertEquals(Status.UNPROCESSED, bad.getStatus());
+    assertEquals(1, bad.getAttempts());
+  }
+
+  private class SlowProcessor implements AsyncProcessor {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private final AtomicInteger completed = new AtomicInteger();
+
+    @Override
+    public String getId() {
+      return "Slow";
+    }
+
+    @Override
+    public CompletableFuture<String> processCreateAsync(File file) {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      CompletableFuture<String> future = new CompletableFuture<>();
+      sink.schedule(
+          () -> {
+            inFlight.decrementAndGet();
+            completed.incrementAndGet();
+            if (file.getName().equals("bad.txt")) {
+              future.completeExceptionally(new IllegalStateException("rejected"));
+            } else {
+              future.complete("alt-" + file.getName());
+            }
+          },
+          50,
+          TimeUnit.MILLISECONDS);
+      return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> processUpdateAsync(File file, String altId) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> processDeleteAsync(File file, String altId) {
+      return CompletableFuture.completedFuture(null);
+    }
+  }
+}
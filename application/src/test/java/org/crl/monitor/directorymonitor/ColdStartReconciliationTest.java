@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.crl.monitor.directorymonitor.processor.DefaultProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ColdStartReconciliationTest {
+
+  @TempDir Path tempDir;
+
+  @Test
+  void reconcilesAgainstTheFirstScanAndDispatchesEachFileOnce() throws Exception {
+    File processed = Files.write(tempDir.resolve("processed.txt"), new byte[] {1}).toFile();
+    Files.write(tempDir.resolve("new.txt"), new byte[] {1});
+    FileItemRepository repository = mock(FileItemRepository.class);
+    FileItem item =
+        new FileItem(
+            processed.getAbsolutePath(), "alt", processed.lastModified(), Status.PROCESSED);
+    when(repository.findByRootIdAndFileIdGreaterThanOrderByFileIdAsc(anyString(), eq(""), any()))
+        .thenReturn(List.of(item));
+    when(repository.findByFileId(processed.getAbsolutePath())).thenReturn(item);
+    DefaultProcessor processor = new DefaultProcessor();
+    DirectoryMonitor monitor =
+        new DirectoryMonitor(repository, tempDir.toString(), ".*", 100L, 0L, processor);
+    monitor.init();
+    try {
+      // the repository was read once, against the observer's first scan, before init returned
+      verify(repository, times(1))
+          .findByRootIdAndFileIdGreaterThanOrderByFileIdAsc(anyString(), anyString(), any());
+      long deadline = System.currentTimeMillis() + 20_000;
+      while (processor.getCreateOpCount() < 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      // let several more scans run
+      Thread.sleep(1000);
+
+      assertEquals(1, processor.getCreateOpCount());
+      assertEquals(0, processor.getUpdateOpCount());
+      verify(repository, times(1))
+          .findByRootIdAndFileIdGreaterThanOrderByFileIdAsc(anyString(), anyString(), any());
+    } finally {
+      monitor.destroy();
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.crl.monitor.directorymonitor.processor.DefaultProcessor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class EventDispatcherTest {
+
+  private static final int FILE_COUNT = 5000;
+
+  @TempDir Path tempDir;
+
+  private EventDispatcher dispatcher;
+
+  private DefaultProcessor processor;
+
+  private List<File> files;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    dispatcher = new EventDispatcher(8);
+    processor = new DefaultProcessor();
+    files = new ArrayList<>();
+    for (int i = 0; i < FILE_COUNT; i++) {
+      files.add(Files.createFile(tempDir.resolve("file-" + i + ".txt")).toFile());
+    }
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    dispatcher.shutdown(1000);
+  }
+
+  @Test
+  void eventsForSamePathStayOrdered() throws Exception {
+    Map<String, List<String>> seen = new ConcurrentHashMap<>();
+    CountDownLatch done = new CountDownLatch(FILE_COUNT * 3);
+    for (File file : files) {
+      String key = file.getAbsolutePath();
+      List<String> events = Collections.synchronizedList(new ArrayList<>());
+      seen.put(key, events);
+      String[] altId = new String[1];
+      dispatcher.dispatch(
+          key,
+          () -> {
+            altId[0] = processor.processCreate(file);
+            events.add("create");
+            done.countDown();
+          });
+      dispatcher.dispatch(
+          key,
+          () -> {
+            processor.processUpdate(file, altId[0]);
+            events.add("update");
+            done.countDown();
+          });
+      dispatcher.dispatch(
+          key,
+          () -> {
+            processor.processDelete(file, altId[0]);
+            events.add("delete");
+            done.countDown();
+          });
+    }
+
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(FILE_COUNT, processor.getCreateOpCount());
+    assertEquals(FILE_COUNT, processor.getUpdateOpCount());
+    assertEquals(FILE_COUNT, processor.getDeleteOpCount());
+    seen.values().forEach(e -> assertEquals(Arrays.asList("create", "update", "delete"), e));
+  }
+
+  @Test
+  void eventsForDifferentPathsRunInParallel() throws Exception {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(FILE_COUNT);
+    for (File file : files) {
+      dispatcher.dispatch(
+          file.getAbsolutePath(),
+          () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            processor.processCreate(file);
+            sleep();
+            running.decrementAndGet();
+            done.countDown();
+          });
+    }
+
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(FILE_COUNT, processor.getCreateOpCount());
+    assertTrue(maxRunning.get() > 1, "expected concurrent processing");
+  }
+
+  @Test
+  void lanesTakeTurns() throws Exception {
+    EventDispatcher single = new EventDispatcher(1);
+    EventDispatcher.Lane busy = single.lane("busy");
+    EventDispatcher.Lane quiet = single.lane("quiet");
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(102);
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    single.dispatchAsync(
+        busy,
+        "blocker",
+        () -> {
+          await(release);
+          done.countDown();
+          return CompletableFuture.completedFuture(null);
+        });
+    for (int i = 0; i < 100; i++) {
+      String key = "busy-" + i;
+      single.dispatchAsync(busy, key, () -> run(order, key, done));
+    }
+    single.dispatchAsync(quiet, "quiet", () -> run(order, "quiet", done));
+    release.countDown();
+
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    single.shutdown(1000);
+    // the quiet lane's only event does not wait behind the busy lane's backlog
+    assertTrue(order.indexOf("quiet") <= 1, "quiet lane ran at " + order.indexOf("quiet"));
+  }
+
+  private static CompletionStage<?> run(List<String> order, String key, CountDownLatch done) {
+    order.add(key);
+    done.countDown();
+    return CompletableFuture.completedFuture(null);
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void sleep() {
+    try {
+      Thread.sleep(1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
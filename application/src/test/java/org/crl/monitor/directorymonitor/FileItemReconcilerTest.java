@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/** Reconciles against a real repository, both by walking the directory and from a snapshot. */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class FileItemReconcilerTest {
+
+  private static final String ROOT_ID = "root";
+
+  /** Only the repository is needed, not the monitor the application would start. */
+  @SpringBootConfiguration
+  @EntityScan(basePackageClasses = FileItem.class)
+  @EnableJpaRepositories(basePackageClasses = FileItemRepository.class)
+  static class Config {}
+
+  @Autowired private FileItemRepository fileItemRepository;
+
+  @TempDir Path root;
+
+  private final List<FileItem> items = new ArrayList<>();
+
+  @BeforeEach
+  void setUp() {
+    fileItemRepository.deleteAll();
+  }
+
+  @Test
+  void mergesSiblingsInFullPathOrder() throws Exception {
+    // by name a < a.txt < a0, but by full path a.txt < a/b < a0
+    stored(write("a/b"));
+    stored(write("a.txt"));
+    stored(write("a0"));
+    FileItem stale = stored(write("a/c"));
+    stale.setModified(0);
+
+    assertEquals(List.of("update a/c"), reconcile(filter(List.of(), List.of())));
+  }
+
+  @Test
+  void carriesOnAcrossAPageBoundaryWithinADirectory() throws Exception {
+    stored(write("a.txt"));
+    // with a.txt the first page ends on many/f-0998, and many/f-0999 is not stored
+    for (int i = 0; i < FileItemReconciler.PAGE_SIZE + 10; i++) {
+      File file = write(String.format("many/f-%04d", i));
+      if (i != FileItemReconciler.PAGE_SIZE - 1) {
+        stored(file);
+      }
+    }
+    stored(write("z.txt"));
+
+    assertEquals(List.of("create many/f-0999"), reconcile(filter(List.of(), List.of())));
+  }
+
+  @Test
+  void deletesUnreachedItemsOnlyWhenTheirFileIsGone() throws Exception {
+    stored(write("kept.txt"));
+    stored(new File(root.toFile(), "gone.txt"));
+    // still there but no longer monitored
+    stored(write("skipped.tmp"));
+    stored(new File(root.toFile(), "removed/gone.txt"));
+
+    assertEquals(
+        List.of("delete gone.txt", "delete removed/gone.txt"),
+        reconcile(filter(List.of("*.tmp"), List.of())));
+  }
+
+  @Test
+  void leavesFilteredSubtreesAlone() throws Exception {
+    write("skip/new.txt");
+    FileItem old = stored(write("skip/old.txt"));
+    old.setModified(0);
+    write("keep/new.txt");
+    stored(write("keep/old.txt"));
+
+    assertEquals(List.of("create keep/new.txt"), reconcile(filter(List.of(), List.of("skip"))));
+  }
+
+  /** Reconcile by walking the directory and from a snapshot, which must find the same changes. */
+  private List<String> reconcile(MonitorFileFilter filter) throws Exception {
+    fileItemRepository.saveAll(items);
+    List<String> walked = new ArrayList<>();
+    reconciler(filter, walked).reconcile();
+
+    SafeFileAlterationObserver observer = new SafeFileAlterationObserver(root.toFile(), filter);
+    observer.initialize();
+    List<String> fromSnapshot = new ArrayList<>();
+    reconciler(filter, fromSnapshot).reconcile(observer.getSnapshot());
+
+    assertEquals(walked, fromSnapshot);
+    return walked;
+  }
+
+  private FileItemReconciler reconciler(MonitorFileFilter filter, List<String> events) {
+    return new FileItemReconciler(
+        fileItemRepository,
+        ROOT_ID,
+        root.toFile(),
+        filter,
+        file -> events.add("create " + relative(file)),
+        file -> events.add("update " + relative(file)),
+        file -> events.add("delete " + relative(file)));
+  }
+
+  private MonitorFileFilter filter(List<String> excludeFiles, List<String> excludeDirectories) {
+    return new MonitorFileFilter(
+        root.toFile(), null, List.of(), excludeFiles, List.of(), excludeDirectories);
+  }
+
+  private FileItem stored(File file) {
+    FileItem item =
+        new FileItem(file.getAbsolutePath(), null, file.lastModified(), Status.PROCESSED);
+    item.setRootId(ROOT_ID);
+    items.add(item);
+    return item;
+  }
+
+  private File write(String relative) throws IOException {
+    Path path = root.resolve(relative);
+    Files.createDirectories(path.getParent());
+    return Files.write(path, new byte[] {1}).toFile();
+  }
+
+  private String relative(File file) {
+    return root.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/** Lookup latency against a table of one million items, with and without the indexes. */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class FileItemRepositoryBenchmarkTest {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(FileItemRepositoryBenchmarkTest.class);
+
+  private static final int ROWS = 1_000_000;
+
+  /** Only the repository is needed, not the monitor the application would start. */
+  @SpringBootConfiguration
+  @EntityScan(basePackageClasses = FileItem.class)
+  @EnableJpaRepositories(basePackageClasses = FileItemRepository.class)
+  static class Config {}
+
+  @Autowired private FileItemRepository fileItemRepository;
+
+  @Autowired private JdbcTemplate jdbc;
+
+  @Test
+  void benchmarkLookups() {
+    // one in ten thousand items is waiting to be retried
+    jdbc.update(
+        "insert into file_item (id, alt_file_id, file_id, modified, status, next_attempt)"
+            + " select x, null, concat('/data/dir-', mod(x, 1000), '/file-', x, '.dat'), x,"
+            + " case when mod(x, 10000) = 0 then 0 else 3 end, 0 from system_range(1, ?)",
+        ROWS);
+
+    LOGGER.info(
+        "Indexed: findByFileId {} us, findByStatus {} us",
+        timeFindByFileId(10_000),
+        timeFindByStatus(100));
+
+    jdbc.execute("alter table file_item drop constraint " + FileItemSchemaMigration.FILE_ID_INDEX);
+    jdbc.execute("drop index " + FileItemSchemaMigration.STATUS_INDEX);
+    LOGGER.info(
+        "Not indexed: findByFileId {} us, findByStatus {} us",
+        timeFindByFileId(10),
+        timeFindByStatus(10));
+  }
+
+  private long timeFindByFileId(int lookups) {
+    Random random = new Random(0);
+    long start = System.nanoTime();
+    for (int i = 0; i < lookups; i++) {
+      int x = 1 + random.nextInt(ROWS);
+      assertNotNull(
+          fileItemRepository.findByFileId("/data/dir-" + (x % 1000) + "/file-" + x + ".dat"));
+    }
+    return (System.nanoTime() - start) / lookups / 1000;
+  }
+
+  private long timeFindByStatus(int lookups) {
+    long start = System.nanoTime();
+    for (int i = 0; i < lookups; i++) {
+      assertEquals(ROWS / 10_000, fileItemRepository.findByStatus(Status.UNPROCESSED).size());
+    }
+    return (System.nanoTime() - start) / lookups / 1000;
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+class FileItemSchemaMigrationTest {
+
+  private SingleConnectionDataSource dataSource;
+
+  private JdbcTemplate jdbc;
+
+  @BeforeEach
+  void setUp() {
+    dataSource = new SingleConnectionDataSource("jdbc:h2:mem:migration", "sa", "", true);
+    jdbc = new JdbcTemplate(dataSource);
+    jdbc.execute("drop all objects");
+    // file_item as created by 0.0.1
+    jdbc.execute(
+        "create table file_item (id bigint not null, alt_file_id varchar(255), "
+            + "file_id varchar(255), modified bigint not null, status integer, primary key (id))");
+    jdbc.update("insert into file_item values (1, null, '/a', 1, 3)");
+    jdbc.update("insert into file_item values (2, null, '/b', 1, 0)");
+    jdbc.update("insert into file_item values (3, null, '/a', 2, 3)");
+  }
+
+  @Test
+  void upgradesExistingTable() throws Exception {
+    new FileItemSchemaMigration(dataSource).migrate();
+    new FileItemSchemaMigration(dataSource).migrate();
+
+    assertEquals(
+        2, jdbc.queryForObject("select count(*) from file_item", Integer.class).intValue());
+    assertEquals(
+        2L, jdbc.queryForObject("select modified from file_item where file_id = '/a'", Long.class));
+    assertEquals(
+        0L,
+        jdbc.queryForObject("select next_attempt from file_item where file_id = '/b'", Long.class));
+    assertEquals(
+        0,
+        jdbc.queryForObject("select attempts from file_item where file_id = '/b'", Integer.class));
+    assertEquals(
+        2,
+        jdbc.queryForObject(
+                "select count(distinct index_name) from information_schema.indexes"
+                    + " where index_name in (?, ?)",
+                Integer.class,
+                FileItemSchemaMigration.FILE_ID_INDEX.toUpperCase(),
+                FileItemSchemaMigration.STATUS_INDEX.toUpperCase())
+            .intValue());
+    assertThrows(
+        DuplicateKeyException.class,
+        () -> jdbc.update("insert into file_item values (4, null, '/a', 3, 3, 0, 0)"));
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+class FileItemStoreTest {
+
+  private FileItemRepository repository;
+
+  private FileItemStore store;
+
+  @BeforeEach
+  void setUp() {
+    repository = mock(FileItemRepository.class);
+    store = new FileItemStore(repository, 1000, 3_600_000L);
+  }
+
+  @AfterEach
+  void tearDown() {
+    store.shutdown();
+  }
+
+  @Test
+  void readsPendingChanges() {
+    FileItem saved = new FileItem("/a", null, 1L, Status.PROCESSED);
+    FileItem deleted = new FileItem("/b", null, 1L, Status.PROCESSED);
+    store.save(saved);
+    store.delete(deleted);
+
+    assertSame(saved, store.findByFileId("/a"));
+    assertNull(store.findByFileId("/b"));
+    verify(repository, never()).findByFileId(any());
+    verify(repository, never()).saveAll(anyIterable());
+  }
+
+  @Test
+  void writesChangesInBatches() {
+    for (int i = 0; i < 100; i++) {
+      store.save(new FileItem("/save-" + i, null, 1L, Status.PROCESSED));
+      store.delete(new FileItem("/delete-" + i, null, 1L, Status.PROCESSED));
+    }
+    store.flush();
+
+    verify(repository, times(1)).saveAll(anyIterable());
+    verify(repository, times(1)).deleteByFileIdIn(any());
+    assertEquals(0, store.getPendingCount());
+  }
+
+  @Test
+  void keepsChangesPendingWhenFlushFails() {
+    when(repository.saveAll(anyIterable()))
+        .thenThrow(new IllegalStateException("database unavailable"))
+        .thenReturn(List.of());
+    FileItem item = new FileItem("/a", null, 1L, Status.PROCESSED);
+    store.save(item);
+
+    assertThrows(IllegalStateException.class, store::flush);
+    assertEquals(1, store.getPendingCount());
+    assertSame(item, store.findByFileId("/a"));
+
+    store.flush();
+    assertEquals(0, store.getPendingCount());
+    verify(repository, times(2)).saveAll(anyIterable());
+  }
+
+  @Test
+  void reusesRowWhenFileReturnsBeforeDeleteIsWritten() {
+    FileItem existing = new FileItem("/a", null, 1L, Status.PROCESSED);
+    existing.setId(42L);
+    store.delete(existing);
+    FileItem recreated = new FileItem("/a", null, 2L, Status.PROCESSED);
+    store.save(recreated);
+
+    assertEquals(42L, recreated.getId());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void writesMovedItemBeforeNewItemForItsOldPath() {
+    FileItem moved = new FileItem("/a", "alt", 1L, Status.PROCESSED);
+    moved.setId(42L);
+    moved.setFileId("/b");
+    store.move("/a", moved);
+    FileItem replacement = new FileItem("/a", null, 2L, Status.PROCESSED);
+    assertNull(store.findByFileId("/a"));
+    store.save(replacement);
+
+    assertEquals(0L, replacement.getId());
+    assertSame(moved, store.findByFileId("/b"));
+    store.flush();
+
+    ArgumentCaptor<Iterable<FileItem>> saved = ArgumentCaptor.forClass(Iterable.class);
+    InOrder inOrder = inOrder(repository);
+    inOrder.verify(repository, times(2)).saveAll(saved.capture());
+    assertEquals(List.of(moved), saved.getAllValues().get(0));
+    assertEquals(List.of(replacement), saved.getAllValues().get(1));
+    verify(repository, never()).deleteByFileIdIn(any());
+    assertEquals(0, store.getPendingCount());
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import org.crl.monitor.directorymonitor.processor.DefaultProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+class MonitorGroupTest {
+
+  @TempDir Path tempDir;
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void monitorsSeveralDirectoriesWithSharedThreads() throws Exception {
+    FileItemRepository repository = mock(FileItemRepository.class);
+    DefaultProcessor first = new DefaultProcessor();
+    DefaultProcessor second = new DefaultProcessor();
+    MonitorGroup group = new MonitorGroup(1, 2);
+    group.add(monitor(repository, "first", Files.createDirectory(tempDir.resolve("a")), first));
+    group.add(monitor(repository, "second", Files.createDirectory(tempDir.resolve("b")), second));
+    group.init();
+    for (int i = 0; i < 10; i++) {
+      Files.write(tempDir.resolve("a/file-" + i + ".txt"), new byte[] {1});
+      Files.write(tempDir.resolve("b/file-" + i + ".txt"), new byte[] {1});
+    }
+
+    long deadline = System.currentTimeMillis() + 20_000;
+    while ((first.getCreateOpCount() < 10 || second.getCreateOpCount() < 10)
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    group.destroy();
+
+    assertEquals(10, first.getCreateOpCount());
+    assertEquals(10, second.getCreateOpCount());
+    ArgumentCaptor<Iterable<FileItem>> saved = ArgumentCaptor.forClass(Iterable.class);
+    verify(repository, atLeastOnce()).saveAll(saved.capture());
+    Map<String, FileItem> items = new HashMap<>();
+    saved.getAllValues().forEach(batch -> batch.forEach(i -> items.put(i.getFileId(), i)));
+    assertEquals("first", items.get(tempDir.resolve("a/file-0.txt").toString()).getRootId());
+    assertEquals("second", items.get(tempDir.resolve("b/file-0.txt").toString()).getRootId());
+  }
+
+  @Test
+  void rejectsOverlappingDirectories() throws Exception {
+    FileItemRepository repository = mock(FileItemRepository.class);
+    MonitorGroup group = new MonitorGroup(1, 1);
+    group.add(monitor(repository, "outer", tempDir, new DefaultProcessor()));
+    group.add(
+        monitor(
+            repository,
+            "inner",
+            Files.createDirectory(tempDir.resolve("inner")),
+            new DefaultProcessor()));
+
+    assertThrows(IllegalStateException.class, group::init);
+    group.destroy();
+  }
+
+  private static DirectoryMonitor monitor(
+      FileItemRepository repository, String rootId, Path dir, Processor processor) {
+    DirectoryMonitor monitor =
+        new DirectoryMonitor(repository, dir.toString(), ".*", 100L, 0L, processor);
+    monitor.setRootId(rootId);
+    return monitor;
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import org.crl.monitor.directorymonitor.processor.DefaultProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MonitorMetricsTest {
+
+  @TempDir Path tempDir;
+
+  @Test
+  void exposesMeasurementsOverJmx() throws Exception {
+    MBeanServer server = MBeanServerFactory.newMBeanServer();
+    JmxMonitorMetrics metrics = new JmxMonitorMetrics(server);
+    FileItemRepository repository = mock(FileItemRepository.class);
+    when(repository.countByRootIdAndStatus(eq("jmx"), any())).thenReturn(2L);
+    DefaultProcessor processor = new DefaultProcessor();
+    DirectoryMonitor monitor = monitor(repository, "jmx", processor);
+    monitor.setMetrics(metrics);
+    monitor.init();
+    ObjectName name = JmxMonitorMetrics.objectName("jmx");
+    assertTrue(server.isRegistered(name));
+
+    createFiles(processor);
+    monitor.destroy();
+
+    assertFalse(server.isRegistered(name));
+    assertEquals(3L, metrics.getEventCounts().get("create.queued"));
+    assertEquals(3L, metrics.getEventCounts().get("create.processed"));
+    assertEquals(3L, metrics.getProcessingCounts().get("Default.create.success"));
+    assertEquals(3L, metrics.getCompletionWaitCount());
+    assertTrue(metrics.getScanCount() > 0);
+    assertTrue(metrics.getLastFilesVisited() >= 3);
+    assertTrue(metrics.getRepositoryCallCounts().get("findByFileId") >= 3);
+    assertEquals(2L, metrics.getPendingRetryCounts().get("UNPROCESSED"));
+  }
+
+  @Test
+  void recordsMicrometerMeters() throws Exception {
+    MeterRegistry registry = new SimpleMeterRegistry();
+    DefaultProcessor processor = new DefaultProcessor();
+    DirectoryMonitor monitor = monitor(mock(FileItemRepository.class), "micrometer", processor);
+    monitor.setMetrics(new MicrometerMonitorMetrics(registry));
+    monitor.init();
+
+    createFiles(processor);
+    assertEquals(
+        3d,
+        registry
+            .get("monitor.events")
+            .tags("root", "micrometer", "type", "create", "outcome", "processed")
+            .counter()
+            .count());
+    assertEquals(
+        3L,
+        registry
+            .get("monitor.processing")
+            .tags("processor", "Default", "type", "create", "outcome", "success")
+            .timer()
+            .count());
+    assertTrue(registry.get("monitor.scan.duration").timer().count() > 0);
+    assertEquals(0d, registry.get("monitor.queue.depth").gauge().value());
+    assertEquals(
+        0d, registry.get("monitor.retries.pending").tag("status", "FAILED").gauge().value());
+    monitor.destroy();
+
+    assertTrue(registry.find("monitor.events").meters().isEmpty());
+  }
+
+  private DirectoryMonitor monitor(
+      FileItemRepository repository, String rootId, Processor processor) throws Exception {
+    Files.createDirectories(tempDir.resolve("monitored"));
+    DirectoryMonitor monitor =
+        new DirectoryMonitor(
+            repository, tempDir.resolve("monitored").toString(), ".*", 100L, 0L, processor);
+    monitor.setRootId(rootId);
+    return monitor;
+  }
+
+  private void createFiles(DefaultProcessor processor) throws Exception {
+    for (int i = 0; i < 3; i++) {
+      // moved in whole, so a scan never sees a file half written and reports an update for it
+      Path written = Files.write(tempDir.resolve("file-" + i + ".txt"), new byte[] {1});
+      Files.move(
+          written,
+          tempDir.resolve("monitored").resolve(written.getFileName()),
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    long deadline = System.currentTimeMillis() + 20_000;
+    while (processor.getCreateOpCount() < 3 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    // give the last scan and outcome time to be recorded
+    Thread.sleep(300);
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.crl.monitor.directorymonitor.processor.DefaultProcessor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/** Backoff of failed items and retries of due items against a real repository. */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class RetryTest {
+
+  /** Only the repository is needed, not the monitor the application would start. */
+  @SpringBootConfiguration
+  @EntityScan(basePackageClasses = FileItem.class)
+  @EnableJpaRepositories(basePackageClasses = FileItemRepository.class)
+  static class Config {}
+
+  @Autowired private FileItemRepository fileItemRepository;
+
+  @TempDir Path tempDir;
+
+  private final DefaultProcessor processor = new DefaultProcessor();
+
+  @BeforeEach
+  void setUp() {
+    fileItemRepository.deleteAll();
+  }
+
+  @Test
+  void backsOffWithJitterAndGivesUpAfterMaxAttempts() {
+    DirectoryMonitor monitor = monitor();
+    monitor.setRetry(1000, 4000, 5);
+    Set<Long> delays = new HashSet<>();
+    for (int i = 0; i < 20; i++) {
+      FileItem item = new FileItem("/file-" + i, null, 0, Status.UNPROCESSED);
+      // 1, 2 then 4 seconds, capped at 4, each with up to half taken off
+      long[] maxDelays = {1000, 2000, 4000, 4000};
+      for (int attempt = 1; attempt <= 4; attempt++) {
+        long before = System.currentTimeMillis();
+        monitor.failed(item, Status.UNPROCESSED_UPDATE);
+        long after = System.currentTimeMillis();
+        assertEquals(attempt, item.getAttempts());
+        assertEquals(Status.UNPROCESSED_UPDATE, item.getStatus());
+        long maxDelay = maxDelays[attempt - 1];
+        assertTrue(item.getNextAttempt() >= before + maxDelay / 2);
+        assertTrue(item.getNextAttempt() <= after + maxDelay);
+        if (attempt == 1) {
+          delays.add(item.getNextAttempt() - before);
+        }
+      }
+      monitor.failed(item, Status.UNPROCESSED_UPDATE);
+      assertEquals(Status.FAILED, item.getStatus());
+      assertEquals(0, item.getNextAttempt());
+    }
+    // retries of items that failed together are spread out
+    assertTrue(delays.size() > 1);
+  }
+
+  @Test
+  void pagesThroughEveryDueItemOnce() throws Exception {
+    long now = System.currentTimeMillis();
+    List<FileItem> items = new ArrayList<>();
+    Set<String> due = new HashSet<>();
+    // items sharing a next attempt across page boundaries are told apart by id
+    for (int i = 0; i < 2 * DirectoryMonitor.RETRY_PAGE_SIZE + 10; i++) {
+      FileItem item = item("due-" + i, Status.UNPROCESSED_DELETE, now - 1000 * (i % 3));
+      // the files are there and unchanged, so the startup reconciliation leaves the items alone
+      Files.write(Path.of(item.getFileId()), new byte[] {1});
+      item.setModified(Long.MAX_VALUE);
+      items.add(item);
+      due.add(item.getFileId());
+    }
+    items.add(item("later", Status.UNPROCESSED_DELETE, now + 60000));
+    items.add(item("other-status", Status.UNPROCESSED, now - 1000));
+    FileItem otherRoot = item("other-root", Status.UNPROCESSED_DELETE, now - 1000);
+    otherRoot.setRootId("other");
+    items.add(otherRoot);
+    fileItemRepository.saveAll(items);
+    DirectoryMonitor monitor = monitor();
+    monitor.setRetry(3_600_000, 3_600_000, 10);
+    monitor.init();
+    try {
+      List<String> retried = new ArrayList<>();
+      int count =
+          monitor.retryDue(Status.UNPROCESSED_DELETE, now, item -> retried.add(item.getFileId()));
+
+      assertEquals(due.size(), count);
+      assertEquals(due.size(), retried.size());
+      assertEquals(due, new HashSet<>(retried));
+    } finally {
+      monitor.destroy();
+    }
+  }
+
+  @Test
+  void stopsRetryingItemsWhoseFileIsGone() throws Exception {
+    DirectoryMonitor monitor = monitor();
+    monitor.setRetry(200, 200, 10);
+    monitor.setPersistence(1, 10);
+    monitor.init();
+    try {
+      // saved after the startup reconciliation, so only the retries see them
+      fileItemRepository.saveAll(
+          List.of(
+              item("never-processed.txt", Status.UNPROCESSED, 0),
+              item("update-failed.txt", Status.UNPROCESSED_UPDATE, 0)));
+      long deadline = System.currentTimeMillis() + 20_000;
+      while ((fileItemRepository.findByFileId(path("never-processed.txt")) != null
+              || fileItemRepository.findByFileId(path("update-failed.txt")) != null)
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      assertNull(fileItemRepository.findByFileId(path("never-processed.txt")));
+      assertNull(fileItemRepository.findByFileId(path("update-failed.txt")));
+      // the processor only hears about the file it had an earlier version of
+      assertEquals(1, processor.getDeleteOpCount());
+    } finally {
+      monitor.destroy();
+    }
+  }
+
+  private DirectoryMonitor monitor() {
+    return new DirectoryMonitor(fileItemRepository, tempDir.toString(), ".*", 100L, 0L, processor);
+  }
+
+  private FileItem item(String name, Status status, long nextAttempt) {
+    FileItem item = new FileItem(path(name), "alt", 0, status);
+    item.setRootId("default");
+    item.setNextAttempt(nextAttempt);
+    return item;
+  }
+
+  private String path(String name) {
+    return tempDir.resolve(name).toFile().getAbsolutePath();
+  }
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Several nodes sharing a directory, run in process against one database. The database is kept in a
+ * file, as it would be for nodes in separate processes.
+ */
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@TestPropertySource(
+    properties = "spring.datasource.url=jdbc:h2:file:./target/shard-coordinator-test")
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class ShardCoordinatorTest {
+
+  private static final int SHARDS = 8;
+
+  private static final long LEASE = 3000;
+
+  /** Only the repositories are needed, not the monitor the application would start. */
+  @SpringBootConfiguration
+  @EntityScan(basePackageClasses = FileItem.class)
+  @EnableJpaRepositories(basePackageClasses = FileItemRepository.class)
+  static class Config {}
+
+  @Autowired private FileItemRepository fileItemRepository;
+
+  @Autowired private ShardLeaseRepository shardLeaseRepository;
+
+  @Autowired private ClusterNodeRepository clusterNodeRepository;
+
+  @TempDir Path tempDir;
+
+  private final AtomicLong clock = new AtomicLong(1_000_000);
+
+  @BeforeEach
+  void setUp() {
+    fileItemRepository.deleteAll();
+    shardLeaseRepository.deleteAll();
+    clusterNodeRepository.deleteAll();
+  }
+
+  @Test
+  void sharesShardsBetweenLiveNodes() {
+    ShardCoordinator a = coordinator("a");
+    ShardCoordinator b = coordinator("b");
+
+    assertEquals(SHARDS, a.heartbeat(() -> {}).size());
+    // b only gets shards once a has given them up
+    assertTrue(b.heartbeat(() -> {}).isEmpty());
+    a.heartbeat(() -> {});
+    assertEquals(SHARDS / 2, b.heartbeat(() -> {}).size());
+    assertEquals(SHARDS / 2, a.getOwnedShards().size());
+    Set<Integer> all = new HashSet<>(a.getOwnedShards());
+    all.addAll(b.getOwnedShards());
+    assertEquals(SHARDS, all.size());
+
+    // a stops sending heartbeats and b takes its shards once the leases expire
+    clock.addAndGet(LEASE * 2 / 3);
+    assertTrue(a.getOwnedShards().isEmpty());
+    b.heartbeat(() -> {});
+    assertEquals(SHARDS / 2, b.getOwnedShards().size());
+    clock.addAndGet(LEASE / 3 + 1);
+    b.heartbeat(() -> {});
+    assertEquals(SHARDS, b.getOwnedShards().size());
+  }
+
+  @Test
+  void keepsShardsWithEventsInProgress() {
+    ShardCoordinator a = coordinator("a");
+    ShardCoordinator b = coordinator("b");
+    a.heartbeat(() -> {});
+    b.heartbeat(() -> {});
+    for (int shard = 0; shard < SHARDS; shard++) {
+      assertTrue(a.begin(shard));
+    }
+
+    // a stops taking events for the shards it is giving up, but keeps them while events are in
+    // progress, without waiting for them
+    AtomicInteger flushes = new AtomicInteger();
+    a.heartbeat(flushes::incrementAndGet);
+    assertEquals(0, flushes.get());
+    Set<Integer> given = new HashSet<>();
+    for (int shard = 0; shard < SHARDS; shard++) {
+      if (!a.getOwnedShards().contains(shard)) {
+        given.add(shard);
+        assertFalse(a.begin(shard));
+      }
+    }
+    assertEquals(SHARDS / 2, given.size());
+    clock.addAndGet(LEASE / 3);
+    a.heartbeat(flushes::incrementAndGet);
+    assertTrue(b.heartbeat(() -> {}).isEmpty());
+
+    for (int shard = 0; shard < SHARDS; shard++) {
+      a.end(shard);
+    }
+    a.heartbeat(flushes::incrementAndGet);
+    assertEquals(1, flushes.get());
+    assertEquals(SHARDS / 2, a.getOwnedShards().size());
+    assertEquals(given, b.heartbeat(() -> {}));
+  }
+
+  @Test
+  void processesEachFileOnceAcrossNodes() throws Exception {
+    Map<String, AtomicInteger> creates = new ConcurrentHashMap<>();
+    DirectoryMonitor a = monitor("a", creates);
+    DirectoryMonitor b = monitor("b", creates);
+    a.init();
+    b.init();
+    for (int i = 0; i < 100; i++) {
+      Files.write(tempDir.resolve("file-" + i + ".txt"), new byte[] {1});
+    }
+    awaitCreates(creates, 100);
+
+    // the remaining node takes over the shards of a node that leaves
+    a.destroy();
+    for (int i = 100; i < 150; i++) {
+      Files.write(tempDir.resolve("file-" + i + ".txt"), new byte[] {1});
+    }
+    awaitCreates(creates, 150);
+    b.destroy();
+
+    assertEquals(150, creates.size());
+    creates.forEach((file, count) -> assertEquals(1, count.get(), file));
+  }
+
+  @Test
+  void takesOverFromANodeThatStopsWithoutLeaving() throws Exception {
+    Map<String, AtomicInteger> creates = new ConcurrentHashMap<>();
+    AtomicBoolean stalled = new AtomicBoolean();
+    DirectoryMonitor a =
+        monitor(
+            new ShardCoordinator(
+                shardLeaseRepository,
+                clusterNodeRepository,
+                "root",
+                "a",
+                SHARDS,
+                LEASE,
+                clock::get) {
+              @Override
+              synchronized Set<Integer> heartbeat(Runnable flush) {
+                return stalled.get() ? Set.of() : super.heartbeat(flush);
+              }
+
+              @Override
+              synchronized void leave(Runnable flush) {}
+            },
+            creates);
+    DirectoryMonitor b = monitor(coordinator("b"), creates);
+    a.init();
+    b.init();
+    for (int i = 0; i < 100; i++) {
+      Files.write(tempDir.resolve("file-" + i + ".txt"), new byte[] {1});
+    }
+    awaitCreates(creates, 100);
+
+    // a stops sending heartbeats with events arriving for its shards, as if it had hung
+    stalled.set(true);
+    for (int i = 100; i < 150; i++) {
+      Files.write(tempDir.resolve("file-" + i + ".txt"), new byte[] {1});
+    }
+    Thread.sleep(200);
+    // a stops processing two thirds of the way through its leases, and its items are written
+    clock.addAndGet(LEASE * 2 / 3);
+    Thread.sleep(1500);
+    // b takes its shards over once the leases expire, at b's next heartbeat
+    clock.addAndGet(LEASE / 3 + 1);
+    awaitCreates(creates, 150);
+    Thread.sleep(LEASE / 3);
+    a.destroy();
+    b.destroy();
+
+    assertEquals(150, creates.size());
+    creates.forEach((file, count) -> assertEquals(1, count.get(), file));
+  }
+
+  private ShardCoordinator coordinator(String nodeId) {
+    return new ShardCoordinator(
+        shardLeaseRepository, clusterNodeRepository, "root", nodeId, SHARDS, LEASE, clock::get);
+  }
+
+  private DirectoryMonitor monitor(String nodeId, Map<String, AtomicInteger> creates) {
+    return monitor(
+        new ShardCoordinator(
+            shardLeaseRepository, clusterNodeRepository, "root", nodeId, SHARDS, LEASE),
+        creates);
+  }
+
+  private DirectoryMonitor monitor(ShardCoordinator sharding, Map<String, AtomicInteger> creates) {
+    DirectoryMonitor monitor =
+        new DirectoryMonitor(
+            fileItemRepository, tempDir.toString(), ".*", 100L, 0L, new CountingProcessor(creates));
+    monitor.setRootId("root");
+    monitor.setSharding(sharding);
+    return monitor;
+  }
+
+  private static void awaitCreates(Map<String, AtomicInteger> creates, int count)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 30_000;
+    while (creates.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(count, creates.size());
+  }
+
+  private static class CountingProcessor implements Processor {
+
+    private final Map<String, AtomicInteger> creates;
+
+    CountingProcessor(Map<String, AtomicInteger> creates) {
+      this.creates = creates;
+    }
+
+    @Override
+    public String getId() {
+      return "Counting";
+    }
+
+    @Override
+    public String processCreate(File file) {
+      creates.computeIfAbsent(file.getName(), name -> new AtomicInteger()).incrementAndGet();
+      return null;
+    }
+
+    @Override
+    public void processUpdate(File file, String altId) {}
+
+    @Override
+    public void processDelete(File file, String altId) {}
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.crl.monitor.directorymonitor.processor.DefaultProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SignalledCompletionTest {
+
+  @TempDir Path tempDir;
+
+  @Test
+  void moreHeldFilesThanQueueCapacityDoNotBlockTheScanner() throws Exception {
+    DefaultProcessor processor = new DefaultProcessor();
+    DirectoryMonitor monitor =
+        new DirectoryMonitor(
+            mock(FileItemRepository.class), tempDir.toString(), ".*", 100L, 0L, processor);
+    monitor.setEventQueue(2, OverflowPolicy.BLOCK);
+    monitor.setCompletion(CompletionMode.MARKER, ".done", "*.manifest");
+    monitor.init();
+    try {
+      for (int i = 0; i < 10; i++) {
+        Files.write(tempDir.resolve("file-" + i + ".txt"), new byte[] {1});
+      }
+      long deadline = System.currentTimeMillis() + 20_000;
+      while (monitor.getPendingCompletionCount() < 10 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      assertEquals(10, monitor.getPendingCompletionCount());
+      assertEquals(0, processor.getCreateOpCount());
+
+      for (int i = 0; i < 10; i++) {
+        Files.write(tempDir.resolve("file-" + i + ".txt.done"), new byte[0]);
+      }
+      while (processor.getCreateOpCount() < 10 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      assertEquals(10, processor.getCreateOpCount());
+      assertEquals(0, monitor.getPendingCompletionCount());
+    } finally {
+      monitor.destroy();
+    }
+  }
+}
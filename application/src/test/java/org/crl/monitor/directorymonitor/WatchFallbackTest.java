@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.crl.monitor.directorymonitor.processor.DefaultProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WatchFallbackTest {
+
+  @TempDir Path tempDir;
+
+  @Test
+  void pollsWhenTheDirectoryCannotBeWatched() throws Exception {
+    DefaultProcessor processor = new DefaultProcessor();
+    AtomicInteger scans = new AtomicInteger();
+    DirectoryMonitor monitor =
+        new DirectoryMonitor(
+            mock(FileItemRepository.class), tempDir.toString(), ".*", 100L, 0L, processor) {
+          @Override
+          boolean canWatch(File directory) {
+            // as for a directory on a network file system
+            return false;
+          }
+        };
+    monitor.setMode(MonitorMode.WATCH);
+    // only polling scans are reported
+    monitor.setMetrics(
+        new MonitorMetrics() {
+          @Override
+          public void scanned(long nanos, int filesVisited) {
+            scans.incrementAndGet();
+          }
+        });
+    monitor.init();
+    try {
+      Files.write(tempDir.resolve("file.txt"), new byte[] {1});
+      long deadline = System.currentTimeMillis() + 20_000;
+      while (processor.getCreateOpCount() < 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      assertEquals(1, processor.getCreateOpCount());
+      assertTrue(scans.get() > 0);
+    } finally {
+      monitor.destroy();
+    }
+  }
+}
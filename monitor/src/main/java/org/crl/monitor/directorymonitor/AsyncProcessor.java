@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link Processor} whose operations complete asynchronously, for processors that spend most of
+ * their time waiting on remote or slow sinks. The monitor starts an operation and moves on, and the
+ * file's item is updated when the returned future completes. A failed future is treated the same as
+ * an exception thrown by a synchronous processor.
+ *
+ * <p>The number of operations in flight at once is capped by the monitor. Once the cap is reached
+ * new events wait until an operation completes. Events for the same file are still delivered one at
+ * a time: the next event for a file is not started until the previous future has completed.
+ *
+ * <p>The synchronous methods default to waiting on the asynchronous ones.
+ */
+public interface AsyncProcessor extends Processor {
+
+  /**
+   * Called when a new file is discovered in the monitored directory
+   *
+   * @param file The file that was discovered
+   * @return completes with an alternate id to associate with the file. This id will be handed back
+   *     when an update or delete is processed. Can complete with null.
+   */
+  CompletableFuture<String> processCreateAsync(File file);
+
+  /**
+   * Called when a monitored file is updated
+   *
+   * @param file The file that was updated
+   * @param altId The alternate id the create completed with. Can be null.
+   * @return completes when the update has been processed
+   */
+  CompletableFuture<Void> processUpdateAsync(File file, String altId);
+
+  /**
+   * Called when a monitored file is deleted
+   *
+   * @param file The file that was deleted
+   * @param altId The alternate id the create completed with. Can be null.
+   * @return completes when the delete has been processed
+   */
+  CompletableFuture<Void> processDeleteAsync(File file, String altId);
+
+  /**
+   * Called when a monitored file is moved or renamed within the monitored directory. The default
+   * implementation deletes the old path and then creates the new one.
+   *
+   * @param from The path the file was moved from
+   * @param to The path the file was moved to
+   * @param altId The alternate id the create completed with. Can be null.
+   * @return completes with the alternate id to associate with the file from now on. Can complete
+   *     with null.
+   */
+  default CompletableFuture<String> processMoveAsync(File from, File to, String altId) {
+    return processDeleteAsync(from, altId).thenCompose(result -> processCreateAsync(to));
+  }
+
+  @Override
+  default String processCreate(File file) {
+    return processCreateAsync(file).join();
+  }
+
+  @Override
+  default void processUpdate(File file, String altId) {
+    processUpdateAsync(file, altId).join();
+  }
+
+  @Override
+  default void processDelete(File file, String altId) {
+    processDeleteAsync(file, altId).join();
+  }
+
+  @Override
+  default String processMove(File from, File to, String altId) {
+    return processMoveAsync(from, to, altId).join();
+  }
+}
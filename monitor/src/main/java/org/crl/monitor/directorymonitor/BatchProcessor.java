@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Processor} that can handle many events of the same kind in one call. When the monitor is
+ * given a batch processor it groups stable events into batches bounded by size and age and hands
+ * them over together. Each call returns one {@link ProcessingResult} per file, in the same order as
+ * the files, so a failure only causes the failed files to be retried.
+ *
+ * <p>The default implementations call the single file methods one at a time. Implementations
+ * override the methods they can do in bulk. A batch never contains two events for the same file.
+ */
+public interface BatchProcessor extends Processor {
+
+  /**
+   * Called with files newly discovered in the monitored directory.
+   *
+   * @param files the files that were discovered
+   * @return one result per file, holding the alternate id to associate with the file
+   */
+  default List<ProcessingResult> processCreates(List<File> files) {
+    List<ProcessingResult> results = new ArrayList<>(files.size());
+    for (File file : files) {
+      try {
+        results.add(ProcessingResult.success(processCreate(file)));
+      } catch (Exception e) {
+        results.add(ProcessingResult.failure(e));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Called with monitored files that were updated.
+   *
+   * @param files the files that were updated
+   * @param altIds the alternate id of each file, in the same order as the files. Entries can be
+   *     null.
+   * @return one result per file
+   */
+  default List<ProcessingResult> processUpdates(List<File> files, List<String> altIds) {
+    List<ProcessingResult> results = new ArrayList<>(files.size());
+    for (int i = 0; i < files.size(); i++) {
+      try {
+        processUpdate(files.get(i), altIds.get(i));
+        results.add(ProcessingResult.success());
+      } catch (Exception e) {
+        results.add(ProcessingResult.failure(e));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Called with monitored files that were deleted.
+   *
+   * @param files the files that were deleted
+   * @param altIds the alternate id of each file, in the same order as the files. Entries can be
+   *     null.
+   * @return one result per file
+   */
+  default List<ProcessingResult> processDeletes(List<File> files, List<String> altIds) {
+    List<ProcessingResult> results = new ArrayList<>(files.size());
+    for (int i = 0; i < files.size(); i++) {
+      try {
+        processDelete(files.get(i), altIds.get(i));
+        results.add(ProcessingResult.success());
+      } catch (Exception e) {
+        results.add(ProcessingResult.failure(e));
+      }
+    }
+    return results;
+  }
+}
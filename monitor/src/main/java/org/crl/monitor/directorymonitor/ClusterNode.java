@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import javax.persistence.*;
+
+/** A node monitoring a directory along with others, kept alive by its heartbeats. */
+@Entity
+@Table(indexes = {@Index(name = "idx_cluster_node_root_id", columnList = "rootId, expires")})
+public class ClusterNode {
+
+  /** The root id and node id, for example {@code default/node-1}. */
+  @Id private String id;
+
+  private String rootId;
+
+  private String nodeId;
+
+  /** Time in milliseconds the node is considered gone unless it sends another heartbeat. */
+  private long expires;
+
+  public ClusterNode() {}
+
+  public ClusterNode(String rootId, String nodeId, long expires) {
+    this.id = rootId + "/" + nodeId;
+    this.rootId = rootId;
+    this.nodeId = nodeId;
+    this.expires = expires;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getRootId() {
+    return rootId;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public long getExpires() {
+    return expires;
+  }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.util.List;
+import javax.transaction.Transactional;
+import org.springframework.data.repository.CrudRepository;
+
+public interface ClusterNodeRepository extends CrudRepository<ClusterNode, String> {
+
+  /**
+   * Get the nodes monitoring a directory that are still alive, in node id order.
+   *
+   * @param rootId the id of the monitored directory
+   * @param now the current time
+   * @return the nodes whose last heartbeat has not expired
+   */
+  List<ClusterNode> findByRootIdAndExpiresGreaterThanOrderByNodeIdAsc(String rootId, long now);
+
+  /**
+   * Remove nodes that stopped sending heartbeats.
+   *
+   * @param rootId the id of the monitored directory
+   * @param before remove nodes whose heartbeat expired before this time
+   * @return the number of nodes removed
+   */
+  @Transactional
+  long deleteByRootIdAndExpiresLessThan(String rootId, long before);
+}
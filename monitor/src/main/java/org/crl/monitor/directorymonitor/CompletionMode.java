@@ -0,0 +1,28 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+/** How the monitor knows a file has been completely written and can be processed. */
+public enum CompletionMode {
+  /** Wait until the file's size and modified time stop changing for the stability period. */
+  STABILITY,
+  /** Wait for a marker file named after the file plus a suffix, such as {@code data.csv.done}. */
+  MARKER,
+  /** Wait for the file to be listed in a manifest file in the same directory. */
+  MANIFEST,
+  /**
+   * Process files straight away, for producers that write to a temporary name and rename the file
+   * into place once it is complete. Temporary names must be excluded, for example by the exclude
+   * file rules. Hidden files are always excluded.
+   */
+  RENAME
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+
+/**
+ * Decides when a created or updated file is complete and can be processed. Files are held until
+ * they are complete and then released to their callback.
+ */
+public interface CompletionStrategy {
+
+  /**
+   * Hold a file until it is complete. If the file is already held the existing callback is kept and
+   * the new one is dropped.
+   *
+   * @param file the file to wait on
+   * @param onComplete called once the file is complete, from the calling thread or from another of
+   *     the strategy's threads. Should return quickly.
+   * @param onDropped called instead of {@code onComplete} if the file is never released
+   */
+  void track(File file, Runnable onComplete, Runnable onDropped);
+
+  /**
+   * Hold a file that was complete before, such as one whose processing is being retried. By default
+   * it is held like any other file.
+   *
+   * @param file the file to wait on
+   * @param onComplete called once the file is complete
+   * @param onDropped called instead of {@code onComplete} if the file is never released
+   */
+  default void trackAgain(File file, Runnable onComplete, Runnable onDropped) {
+    track(file, onComplete, onDropped);
+  }
+
+  /**
+   * Stop holding a file without releasing it, because it was deleted or moved.
+   *
+   * @param file the file
+   */
+  void cancel(File file);
+
+  /**
+   * Check whether a file only signals that other files are complete, such as a marker or manifest.
+   * Such files are never processed themselves.
+   *
+   * @param file the file
+   * @return true for a signal file
+   */
+  default boolean isSignalFile(File file) {
+    return false;
+  }
+
+  /**
+   * Check whether files may be held until a signal file arrives, however long that takes. Events
+   * for such files only take a place in the monitor's event queue once they are released.
+   *
+   * @return true if files wait for signal files
+   */
+  default boolean holdsUntilSignalled() {
+    return false;
+  }
+
+  /**
+   * Called when a signal file is created or changed.
+   *
+   * @param file the signal file
+   */
+  default void signalled(File file) {}
+
+  /**
+   * Called when a signal file is deleted.
+   *
+   * @param file the signal file
+   */
+  default void signalRemoved(File file) {}
+
+  /**
+   * Get the number of files being held.
+   *
+   * @return the number of pending files
+   */
+  int getPendingCount();
+
+  /** Stop the strategy. Files still pending are dropped. */
+  void shutdown();
+}
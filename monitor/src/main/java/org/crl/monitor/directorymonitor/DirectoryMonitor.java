@@ -13,43 +13,165 @@ package org.crl.monitor.directorymonitor;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileVisitOption;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.apache.commons.io.monitor.FileAlterationListener;
 import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
 import org.apache.commons.io.monitor.FileAlterationMonitor;
 import org.apache.commons.io.monitor.FileAlterationObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
 
 public class DirectoryMonitor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryMonitor.class);
 
+  /** How often pending watch events are drained when running in {@link MonitorMode#WATCH}. */
+  private static final long WATCH_PERIOD = 500L;
+
+  /** Number of due items read from the repository at a time when retrying. */
+  static final int RETRY_PAGE_SIZE = 500;
+
   private String monitoredDirectory;
 
   private String fileRegEx;
 
+  private List<String> includeFiles = List.of();
+
+  private List<String> excludeFiles = List.of();
+
+  private List<String> includeDirectories = List.of();
+
+  private List<String> excludeDirectories = List.of();
+
+  private MonitorFileFilter fileFilter;
+
   private long checkPeriod;
 
   private long stabilityPeriod;
 
   private FileAlterationMonitor monitor;
 
+  private String rootId = "default";
+
+  private MonitorGroup group;
+
+  private EventDispatcher.Lane lane;
+
+  private FileAlterationObserver scanObserver;
+
+  private final Object scanLock = new Object();
+
+  private final Object housekeepingLock = new Object();
+
+  private final List<ScheduledFuture<?>> scheduled = new ArrayList<>();
+
+  private ShardCoordinator sharding;
+
   private FileItemRepository fileItemRepository;
 
+  private FileItemStore fileItemStore;
+
   private Processor processor;
 
   private ScheduledExecutorService executorService;
 
+  private EventDispatcher dispatcher;
+
+  private CompletionStrategy completion;
+
+  private CompletionMode completionMode = CompletionMode.STABILITY;
+
+  private String markerSuffix = ".done";
+
+  private String manifestFiles = "*.manifest";
+
+  private EventBatcher batcher;
+
+  private EventQueue eventQueue;
+
+  private EventCoalescer coalescer;
+
+  private FileFingerprinter fingerprinter;
+
+  private final AtomicLong unchangedUpdates = new AtomicLong();
+
+  private volatile long reconciledDropCount;
+
+  private SafeFileAlterationObserver pollObserver;
+
+  private volatile boolean startupReconciled;
+
+  private long lastCheckpoint;
+
+  private Semaphore inFlight;
+
+  private int processingThreads = Runtime.getRuntime().availableProcessors();
+
+  private MonitorMode mode = MonitorMode.POLL;
+
+  private int scanParallelism = 1;
+
+  private int persistenceBatchSize = 500;
+
+  private long persistenceDelay = 1000L;
+
+  private long retryDelay = 30000L;
+
+  private long maxRetryDelay = 3600000L;
+
+  private int maxAttempts = 10;
+
+  private int maxBatchSize = 100;
+
+  private long maxBatchAge = 1000L;
+
+  private int maxInFlight = 256;
+
+  private int queueCapacity = 10000;
+
+  private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+  private long coalesceWindow = 0L;
+
+  private Path snapshotFile;
+
+  private long snapshotPeriod = 60000L;
+
+  private boolean directoryPruning;
+
+  private boolean moveDetection;
+
+  private long maxScanInterval = 0L;
+
+  private long fullScanInterval = 3600000L;
+
+  private int fingerprintThreads = 0;
+
+  private MonitorMetrics metrics = new MonitorMetrics() {};
+
+  private volatile Map<Status, Long> pendingRetryCounts = Map.of();
+
   public DirectoryMonitor(
       FileItemRepository fileItemRepository,
       String monitoredDirectory,
@@ -63,7 +185,349 @@ public class DirectoryMonitor {
     this.checkPeriod = checkPeriod;
     this.stabilityPeriod = stabilityPeriod;
     this.processor = processor;
-    this.executorService = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  /**
+   * Set the id the monitored directory's items are stored under, so several monitors can share a
+   * repository. Items stored before directories had ids are given to the monitor whose directory
+   * they are in when it starts. Defaults to {@code default}. Must be called before {@link #init()}.
+   *
+   * @param rootId the id of the monitored directory
+   */
+  public void setRootId(String rootId) {
+    this.rootId = rootId;
+  }
+
+  public String getRootId() {
+    return rootId;
+  }
+
+  public String getMonitoredDirectory() {
+    return monitoredDirectory;
+  }
+
+  /**
+   * Share a group's scheduler and dispatcher instead of starting threads for this monitor. Called
+   * by {@link MonitorGroup#add(DirectoryMonitor)}.
+   */
+  void setGroup(MonitorGroup group) {
+    this.group = group;
+  }
+
+  /**
+   * Set the number of worker threads used to process events. Events for different files are
+   * processed in parallel, events for the same file are always processed in order. Must be called
+   * before {@link #init()}.
+   *
+   * @param processingThreads the number of worker threads
+   */
+  public void setProcessingThreads(int processingThreads) {
+    this.processingThreads = processingThreads;
+  }
+
+  /**
+   * Set how changes are detected. Defaults to {@link MonitorMode#POLL}. Must be called before
+   * {@link #init()}.
+   *
+   * @param mode the monitor mode
+   */
+  public void setMode(MonitorMode mode) {
+    this.mode = mode;
+  }
+
+  /**
+   * Set the number of threads used to list directories when polling. Must be called before {@link
+   * #init()}.
+   *
+   * @param scanParallelism the number of scan threads, 1 to scan on the monitor thread
+   */
+  public void setScanParallelism(int scanParallelism) {
+    this.scanParallelism = scanParallelism;
+  }
+
+  /**
+   * Set how item state changes are written to the repository. Changes are batched until either
+   * bound is reached. Must be called before {@link #init()}.
+   *
+   * @param batchSize the number of pending changes that triggers a write
+   * @param delay the longest time in milliseconds a change is held before it is written
+   */
+  public void setPersistence(int batchSize, long delay) {
+    this.persistenceBatchSize = batchSize;
+    this.persistenceDelay = delay;
+  }
+
+  /**
+   * Set how failed items are retried. The delay before each retry doubles with every failed attempt
+   * up to {@code maxRetryDelay}, with a random jitter of up to half the delay. Items that fail
+   * {@code maxAttempts} times are marked {@link Status#FAILED} and are no longer retried. Must be
+   * called before {@link #init()}.
+   *
+   * @param retryDelay the delay in milliseconds before the first retry, also how often due items
+   *     are looked for
+   * @param maxRetryDelay the longest delay in milliseconds between retries
+   * @param maxAttempts the number of failed attempts after which an item is given up on
+   */
+  public void setRetry(long retryDelay, long maxRetryDelay, int maxAttempts) {
+    this.retryDelay = retryDelay;
+    this.maxRetryDelay = maxRetryDelay;
+    this.maxAttempts = maxAttempts;
+  }
+
+  /**
+   * Set how events are grouped when the processor is a {@link BatchProcessor}. Must be called
+   * before {@link #init()}.
+   *
+   * @param maxBatchSize the largest number of events handed to the processor at once
+   * @param maxBatchAge the longest time in milliseconds an event waits for its batch to fill
+   */
+  public void setBatching(int maxBatchSize, long maxBatchAge) {
+    this.maxBatchSize = maxBatchSize;
+    this.maxBatchAge = maxBatchAge;
+  }
+
+  /**
+   * Set the most operations that may be in flight at once when the processor is an {@link
+   * AsyncProcessor}. Must be called before {@link #init()}.
+   *
+   * @param maxInFlight the most operations started but not yet completed
+   */
+  public void setMaxInFlight(int maxInFlight) {
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Set the size of the queue between detection and processing. Events hold a place in the queue
+   * from the moment they are detected until they have been processed. Must be called before {@link
+   * #init()}.
+   *
+   * @param capacity the most events queued at once
+   * @param overflowPolicy what the scanner does when the queue is full
+   */
+  public void setEventQueue(int capacity, OverflowPolicy overflowPolicy) {
+    this.queueCapacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * Set how long events for a file are held so that later events for the same file can be merged
+   * into them. A create followed by a delete within the window is never processed, and repeated
+   * updates are processed once. To merge events from separate scans the window must be longer than
+   * the check period. Must be called before {@link #init()}.
+   *
+   * @param coalesceWindow the window in milliseconds, 0 to hand events on as soon as they are seen
+   */
+  public void setCoalesceWindow(long coalesceWindow) {
+    this.coalesceWindow = coalesceWindow;
+  }
+
+  /**
+   * Save the state of the directory tree to a file so a restart can resume from it. On start the
+   * saved state is compared to the tree and only the differences are handed on, instead of listing
+   * the tree and then comparing it to the repository. The state is saved at most once per period,
+   * and only once every event found so far has been processed, so a restart never misses a change.
+   * Only used when polling. Must be called before {@link #init()}.
+   *
+   * @param snapshotFile the file to save the state to, or null to not save it
+   * @param snapshotPeriod the shortest time in milliseconds between saves
+   */
+  public void setSnapshot(String snapshotFile, long snapshotPeriod) {
+    this.snapshotFile =
+        snapshotFile == null || snapshotFile.isEmpty() ? null : Paths.get(snapshotFile);
+    this.snapshotPeriod = snapshotPeriod;
+  }
+
+  /**
+   * Set which files are monitored and which directories are descended into, on top of the file
+   * regular expression. Rules are globs matched against the name, or against the path relative to
+   * the monitored directory when they contain a {@code /}. Directories that are not accepted are
+   * not listed at all. Must be called before {@link #init()}.
+   *
+   * @param includeFiles globs of which files must match one, or empty to include every file
+   * @param excludeFiles globs of files that are not monitored
+   * @param includeDirectories globs of which directories must match one, or empty to include every
+   *     directory
+   * @param excludeDirectories globs of directories that are not descended into
+   */
+  public void setFilters(
+      List<String> includeFiles,
+      List<String> excludeFiles,
+      List<String> includeDirectories,
+      List<String> excludeDirectories) {
+    this.includeFiles = includeFiles;
+    this.excludeFiles = excludeFiles;
+    this.includeDirectories = includeDirectories;
+    this.excludeDirectories = excludeDirectories;
+  }
+
+  /**
+   * Set how the monitor knows a file is complete. By default files are processed once they have not
+   * changed for the stability period. The other modes process files as soon as they are signalled
+   * complete, without waiting. Signal files are seen whatever the filters and are never processed
+   * themselves. Must be called before {@link #init()}.
+   *
+   * @param completionMode how files are known to be complete
+   * @param markerSuffix the suffix added to a file's name to get its marker file, for {@link
+   *     CompletionMode#MARKER}
+   * @param manifestFiles a glob matching the names of manifest files, for {@link
+   *     CompletionMode#MANIFEST}
+   */
+  public void setCompletion(
+      CompletionMode completionMode, String markerSuffix, String manifestFiles) {
+    this.completionMode = completionMode;
+    this.markerSuffix = markerSuffix;
+    this.manifestFiles = manifestFiles;
+  }
+
+  /**
+   * Share the processing of the monitored directory with other nodes monitoring the same directory
+   * and repository. This node then only processes the events of the shards it holds a lease on.
+   * Snapshots are not used, as the shards a node holds change between runs. Must be called before
+   * {@link #init()}.
+   *
+   * @param sharding the coordinator for the monitored directory's root id, or null to process every
+   *     event
+   */
+  public void setSharding(ShardCoordinator sharding) {
+    this.sharding = sharding;
+  }
+
+  /**
+   * Skip listing directories whose modified time has not changed since the previous scan, reading
+   * only the attributes of the files they held. Only has an effect when polling and only safe on
+   * file systems that update a directory's modified time when entries are added or removed. Must be
+   * called before {@link #init()}.
+   *
+   * @param directoryPruning true to reuse the listings of unchanged directories
+   */
+  public void setDirectoryPruning(boolean directoryPruning) {
+    this.directoryPruning = directoryPruning;
+  }
+
+  /**
+   * Report files moved within the monitored directory to the processor as moves rather than as a
+   * delete and a create. Files that could be moves are held until the end of each scan so they can
+   * be paired, while newly written files are still handed on as they are found. Only has an effect
+   * when polling. Must be called before {@link #init()}.
+   *
+   * @param moveDetection true to detect moves
+   */
+  public void setMoveDetection(boolean moveDetection) {
+    this.moveDetection = moveDetection;
+  }
+
+  /**
+   * Check directories that have not changed recently less often than every check period. An idle
+   * directory's checks back off exponentially up to the maximum interval, and it is checked every
+   * check period again once it changes. Only has an effect when polling. Must be called before
+   * {@link #init()}.
+   *
+   * @param maxScanInterval the longest time in milliseconds between checks of an idle directory, 0
+   *     to check every directory every check period
+   * @param fullScanInterval the time in milliseconds between scans that check every directory
+   */
+  public void setTieredScanning(long maxScanInterval, long fullScanInterval) {
+    this.maxScanInterval = maxScanInterval;
+    this.fullScanInterval = fullScanInterval;
+  }
+
+  /**
+   * Turn on content fingerprints. Each processed file's content is fingerprinted, and an update
+   * whose content has the same fingerprint as when the file was last processed, such as a touch, is
+   * not handed to the processor. A move is only handed to the processor as a move when the file at
+   * the new path has the fingerprint the file had at the old one. Must be called before {@link
+   * #init()}.
+   *
+   * @param fingerprintThreads the most files read for fingerprinting at once, 0 to not fingerprint
+   */
+  public void setFingerprintThreads(int fingerprintThreads) {
+    this.fingerprintThreads = fingerprintThreads;
+  }
+
+  /**
+   * Report the monitor's measurements, such as scan and processing times, to a metrics recorder.
+   * Must be called before {@link #init()}.
+   *
+   * @param metrics the recorder, which is bound to this monitor as it starts
+   */
+  public void setMetrics(MonitorMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Get the id of the processor the monitor hands events to.
+   *
+   * @return the processor id
+   */
+  public String getProcessorId() {
+    return processor.getId();
+  }
+
+  /**
+   * Get the number of events detected but not yet processed.
+   *
+   * @return the event queue depth
+   */
+  public int getQueueDepth() {
+    return eventQueue.getDepth();
+  }
+
+  /**
+   * Get the number of events dropped because the event queue was full.
+   *
+   * @return the dropped event count
+   */
+  public long getDroppedEventCount() {
+    return eventQueue.getDroppedCount();
+  }
+
+  /**
+   * Get the number of events collapsed into an event already queued for the same file.
+   *
+   * @return the collapsed event count
+   */
+  public long getCollapsedEventCount() {
+    return eventQueue.getCollapsedCount();
+  }
+
+  /**
+   * Get the number of events merged into or cancelled out by another event for the same file within
+   * the coalesce window.
+   *
+   * @return the coalesced event count
+   */
+  public long getCoalescedEventCount() {
+    return coalescer != null ? coalescer.getAvoidedCount() : 0L;
+  }
+
+  /**
+   * Get the number of files waiting to become complete before their events are processed.
+   *
+   * @return the pending completion count
+   */
+  public int getPendingCompletionCount() {
+    return completion.getPendingCount();
+  }
+
+  /**
+   * Get the number of the monitored directory's items in each status that still needs processing,
+   * as counted when unprocessed items were last retried. Items given up on are counted as {@link
+   * Status#FAILED}. When the directory is sharded the counts cover every node's items.
+   *
+   * @return the item count of each unprocessed status
+   */
+  public Map<Status, Long> getPendingRetryCounts() {
+    return pendingRetryCounts;
+  }
+
+  /**
+   * Get the number of updates not handed to the processor because the file's content had not
+   * changed.
+   *
+   * @return the unchanged update count
+   */
+  public long getUnchangedUpdateCount() {
+    return unchangedUpdates.get();
   }
 
   public void init() throws Exception {
@@ -73,196 +537,987 @@ public class DirectoryMonitor {
           "Monitored directory does not exist: " + directory.getAbsolutePath());
     }
     LOGGER.info("Monitoring directory: {}", directory.getCanonicalPath());
-    FileAlterationObserver fao = new SafeFileAlterationObserver(directory, this::fileMatchesFilter);
-    fao.addListener(
-        new FileAlterationListenerAdaptor() {
-          long start = 0;
-
-          @Override
-          public void onStart(FileAlterationObserver observer) {
-            start = System.currentTimeMillis();
-          }
+    fileFilter =
+        new MonitorFileFilter(
+            directory,
+            fileRegEx,
+            includeFiles,
+            excludeFiles,
+            includeDirectories,
+            excludeDirectories);
+    completion = completionStrategy();
+    fileFilter.setSignalFiles(completion::isSignalFile);
+    fileItemStore =
+        new FileItemStore(fileItemRepository, persistenceBatchSize, persistenceDelay, metrics);
+    eventQueue = new EventQueue(queueCapacity, overflowPolicy);
+    metrics.bind(this);
+    if (coalesceWindow > 0) {
+      coalescer =
+          new EventCoalescer(
+              coalesceWindow, queueCapacity, (file, kind) -> enqueue(file, kind, true));
+    }
+    if (group != null) {
+      executorService = group.getScheduler();
+      dispatcher = group.getDispatcher();
+    } else {
+      executorService = Executors.newSingleThreadScheduledExecutor();
+      dispatcher = new EventDispatcher(processingThreads);
+    }
+    lane = dispatcher.lane(rootId);
+    int adopted = fileItemRepository.assignRoot(rootId, likePrefix(directory));
+    if (adopted > 0) {
+      LOGGER.info("Assigned {} existing items to root {}", adopted, rootId);
+    }
+    if (sharding != null) {
+      if (snapshotFile != null) {
+        LOGGER.info("Not using snapshot {} as the directory is sharded", snapshotFile);
+        snapshotFile = null;
+      }
+      // take a share of the shards before the startup reconciliation so it covers them
+      sharding.heartbeat(fileItemStore::flush);
+    }
+    if (fingerprintThreads > 0) {
+      fingerprinter = new FileFingerprinter(fingerprintThreads);
+    }
+    if (processor instanceof BatchProcessor) {
+      batcher = new EventBatcher((BatchProcessor) processor, maxBatchSize, maxBatchAge);
+    } else if (processor instanceof AsyncProcessor) {
+      inFlight = new Semaphore(Math.max(1, maxInFlight));
+    }
+    FileAlterationListener listener = moveDetection ? new MoveListener() : new ScanListener();
+    if (mode == MonitorMode.WATCH && canWatch(directory)) {
+      FileAlterationObserver fao = new WatchServiceFileAlterationObserver(directory, fileFilter);
+      fao.addListener(listener);
+      LOGGER.info("Starting monitor. Watching for changes");
+      try {
+        startScanning(fao, WATCH_PERIOD);
+      } catch (Exception e) {
+        LOGGER.warn("Could not watch {}. Falling back to polling.", directory, e);
+        monitor = null;
+        scanObserver = null;
+      }
+    } else if (mode == MonitorMode.WATCH) {
+      LOGGER.warn("Watching is not supported for {}. Falling back to polling.", directory);
+    }
+    if (scanObserver == null) {
+      SafeFileAlterationObserver fao = new SafeFileAlterationObserver(directory, fileFilter);
+      fao.setScanParallelism(scanParallelism);
+      fao.setSnapshotFile(snapshotFile);
+      fao.setDirectoryPruning(directoryPruning);
+      fao.setTieredScanning(
+          (int) Math.min(Integer.MAX_VALUE, maxScanInterval / Math.max(1, checkPeriod)),
+          fullScanInterval);
+      fao.setColdStartListener(this::reconcile);
+      fao.addListener(listener);
+      pollObserver = fao;
+      LOGGER.info("Starting monitor. Checking every {} MS", checkPeriod);
+      startScanning(fao, checkPeriod);
+    }
 
-          @Override
-          public void onFileCreate(File file) {
-            notifyCreate(file);
-          }
+    if (pollObserver == null) {
+      scheduled.add(
+          executorService.schedule(
+              serially(this::checkForChangesSinceLastRun), 10, TimeUnit.SECONDS));
+    } else if (pollObserver.isResumed()) {
+      // the changes since the snapshot was saved were found when the observer started
+      LOGGER.info(
+          "Resumed from snapshot {}. {} events queued", snapshotFile, eventQueue.getDepth());
+      startupReconciled = true;
+      lastCheckpoint = System.currentTimeMillis();
+    }
+    scheduled.add(
+        executorService.scheduleWithFixedDelay(
+            serially(this::retryUnprocessed), retryDelay, retryDelay, TimeUnit.MILLISECONDS));
+    if (sharding != null) {
+      long period = sharding.getHeartbeatPeriod();
+      scheduled.add(
+          executorService.scheduleWithFixedDelay(
+              this::heartbeat, period, period, TimeUnit.MILLISECONDS));
+    }
+    if (overflowPolicy == OverflowPolicy.DROP) {
+      scheduled.add(
+          executorService.scheduleWithFixedDelay(
+              serially(this::reconcileDroppedEvents),
+              checkPeriod,
+              checkPeriod,
+              TimeUnit.MILLISECONDS));
+    }
+    countPendingRetries();
+  }
 
-          @Override
-          public void onFileChange(File file) {
-            notifyUpdate(file);
-          }
+  /** Check whether the monitored directory can be watched rather than polled. */
+  boolean canWatch(File directory) {
+    return WatchServiceFileAlterationObserver.isSupported(directory);
+  }
 
-          @Override
-          public void onFileDelete(File file) {
-            notifyDelete(file);
-          }
+  /**
+   * Start an observer and check it for changes at a fixed period, on the group's scheduler when the
+   * monitor is in a group or on a thread of its own otherwise.
+   */
+  private void startScanning(FileAlterationObserver fao, long period) throws Exception {
+    if (group == null) {
+      monitor = new FileAlterationMonitor(period, fao);
+      monitor.start();
+    } else {
+      fao.initialize();
+      scheduled.add(
+          executorService.scheduleWithFixedDelay(
+              () -> scan(fao), period, period, TimeUnit.MILLISECONDS));
+    }
+    scanObserver = fao;
+  }
 
-          @Override
-          public void onStop(FileAlterationObserver observer) {
-            LOGGER.info(
-                "Directory scan took {} seconds", (System.currentTimeMillis() - start) / 1000f);
-          }
-        });
-    monitor = new FileAlterationMonitor(checkPeriod);
-    monitor.addObserver(fao);
-    LOGGER.info("Starting monitor. Checking every {} MS", checkPeriod);
-    monitor.start();
+  private void scan(FileAlterationObserver fao) {
+    synchronized (scanLock) {
+      if (scanObserver != fao) {
+        return;
+      }
+      try {
+        fao.checkAndNotify();
+      } catch (RuntimeException e) {
+        LOGGER.warn("Error checking {} for changes", monitoredDirectory, e);
+      }
+    }
+  }
 
-    executorService.schedule(this::checkForChangesSinceLastRun, 10, TimeUnit.SECONDS);
-    executorService.scheduleAtFixedRate(this::retryUnprocessed, 120, 120, TimeUnit.SECONDS);
+  private void stopScanning() throws Exception {
+    if (monitor != null) {
+      monitor.stop(1000);
+    } else if (scanObserver != null) {
+      synchronized (scanLock) {
+        // waits for a scan in progress, later runs of the cancelled task find no observer
+        scanObserver.destroy();
+        scanObserver = null;
+      }
+    }
   }
 
-  private boolean fileMatchesFilter(File file) {
-    return fileMatchesFilter(file, true);
+  /**
+   * Wrap a housekeeping task so it never runs at the same time as another of this monitor's, as the
+   * tasks of a monitor in a group share the group's scheduler threads.
+   */
+  private Runnable serially(Runnable task) {
+    return () -> {
+      synchronized (housekeepingLock) {
+        task.run();
+      }
+    };
   }
 
-  private boolean fileMatchesFilter(File file, boolean includeDirs) {
-    String name = file.getName();
-    return (includeDirs || !file.isDirectory()) && !name.startsWith(".") && name.matches(fileRegEx);
+  private CompletionStrategy completionStrategy() {
+    switch (completionMode) {
+      case MARKER:
+        return new MarkerCompletion(markerSuffix);
+      case MANIFEST:
+        return new ManifestCompletion(manifestFiles);
+      case RENAME:
+        return new RenameCompletion();
+      default:
+        return new StabilityTracker(stabilityPeriod);
+    }
   }
 
-  private synchronized void notifyCreate(File file) {
-    waitForFileToStabilize(file);
-    FileItem item = fileItemRepository.findByFileId(file.getAbsolutePath());
-    if (item != null && item.getStatus() != Status.UNPROCESSED) {
+  /** Renew shard leases, reconciling the changes to any shards taken over from other nodes. */
+  private void heartbeat() {
+    Set<Integer> acquired;
+    try {
+      acquired = sharding.heartbeat(fileItemStore::flush);
+    } catch (RuntimeException e) {
+      LOGGER.warn("Could not renew the shard leases of {}", rootId, e);
+      return;
+    }
+    if (!acquired.isEmpty() && startupReconciled) {
+      serially(this::checkForChangesSinceLastRun).run();
+    }
+  }
+
+  /** Check whether this node processes a file's events. */
+  private boolean owns(File file) {
+    return sharding == null || sharding.owns(shardOf(file));
+  }
+
+  private int shardOf(File file) {
+    String path = file.getAbsolutePath();
+    String root = new File(monitoredDirectory).getAbsolutePath();
+    String relative = path.startsWith(root) ? path.substring(root.length()) : path;
+    if (File.separatorChar != '/') {
+      relative = relative.replace(File.separatorChar, '/');
+    }
+    return ShardCoordinator.shardOf(relative, sharding.getShardCount());
+  }
+
+  /** Get a like pattern matching the file ids of files below a directory. */
+  private static String likePrefix(File directory) {
+    String path = directory.getAbsolutePath();
+    if (!path.endsWith(File.separator)) {
+      path += File.separator;
+    }
+    return path.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+  }
+
+  /** Hands the events found by each scan on to be processed. */
+  private class ScanListener extends FileAlterationListenerAdaptor {
+    private long start = 0;
+
+    private long startNanos = 0;
+
+    @Override
+    public void onStart(FileAlterationObserver observer) {
+      start = System.currentTimeMillis();
+      startNanos = System.nanoTime();
+    }
+
+    @Override
+    public void onFileCreate(File file) {
+      detected(file, EventQueue.Kind.CREATE);
+    }
+
+    @Override
+    public void onFileChange(File file) {
+      detected(file, EventQueue.Kind.UPDATE);
+    }
+
+    @Override
+    public void onFileDelete(File file) {
+      detected(file, EventQueue.Kind.DELETE);
+    }
+
+    @Override
+    public void onStop(FileAlterationObserver observer) {
+      if (observer == pollObserver) {
+        FileTreeSnapshot snapshot = pollObserver.getSnapshot();
+        metrics.scanned(System.nanoTime() - startNanos, snapshot == null ? 0 : snapshot.size());
+      }
+      LOGGER.info(
+          "Directory scan took {} seconds. {} events queued",
+          (System.currentTimeMillis() - start) / 1000f,
+          eventQueue.getDepth());
+      if (observer == pollObserver
+          && snapshotFile != null
+          && System.currentTimeMillis() - lastCheckpoint >= snapshotPeriod) {
+        checkpoint();
+      }
+    }
+  }
+
+  /** Also hands the moves found by each scan on to be processed. */
+  private class MoveListener extends ScanListener implements FileMoveListener {
+
+    @Override
+    public void onFileMove(File from, File to) {
+      if (completion.isSignalFile(from)
+          || completion.isSignalFile(to)
+          || (sharding != null && shardOf(from) != shardOf(to))) {
+        // a signal file moved, or the paths may be processed by different nodes
+        detected(from, EventQueue.Kind.DELETE);
+        detected(to, EventQueue.Kind.CREATE);
+        return;
+      }
+      if (!owns(to)) {
+        return;
+      }
+      boolean queued = eventQueue.offer(to.getAbsolutePath(), EventQueue.Kind.MOVE);
+      metrics.event(MonitorMetrics.MOVE, queued ? MonitorMetrics.QUEUED : MonitorMetrics.DROPPED);
+      if (queued) {
+        dispatchMove(from, to);
+      }
+    }
+  }
+
+  /**
+   * Save the poll observer's state, as long as every event it has found has been processed and
+   * written. Otherwise a restart from the snapshot would miss the changes behind those events.
+   */
+  private void checkpoint() {
+    if (!startupReconciled
+        || eventQueue.getDepth() > 0
+        || completion.getPendingCount() > 0
+        || (coalescer != null && coalescer.getHeldCount() > 0)
+        || eventQueue.getDroppedCount() != reconciledDropCount) {
       return;
     }
-    LOGGER.info("Notify file created: {}", file.getAbsolutePath());
-    String altId = null;
-    Status status = Status.UNPROCESSED;
     try {
-      altId = processor.processCreate(file);
-      status = Status.PROCESSED;
-    } catch (Exception e) {
-      LOGGER.warn("Error processing create event", e);
+      fileItemStore.flush();
+      pollObserver.checkpoint();
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Could not save snapshot to {}", snapshotFile, e);
+    } finally {
+      lastCheckpoint = System.currentTimeMillis();
     }
-    if (item == null) {
-      item = new FileItem(file.getAbsolutePath(), altId, file.lastModified(), status);
+  }
+
+  /** Hand an event from the scanner on, through the coalescer when there is one. */
+  private void detected(File file, EventQueue.Kind kind) {
+    if (coalescer != null) {
+      coalescer.add(file, kind);
     } else {
-      item.setAltFileId(altId);
-      item.setModified(file.lastModified());
-      item.setStatus(status);
+      enqueue(file, kind, true);
     }
-    fileItemRepository.save(item);
   }
 
-  private synchronized void notifyUpdate(File file) {
-    waitForFileToStabilize(file);
-    FileItem item = fileItemRepository.findByFileId(file.getAbsolutePath());
-    if (item != null) {
-      if (item.getModified() >= file.lastModified()
-          && item.getStatus() != Status.UNPROCESSED_UPDATE) {
-        return;
+  /**
+   * Admit an event to the queue and hand it on for processing.
+   *
+   * @param scanned true for events from the scanner, which are subject to the overflow policy.
+   *     Other events wait for room in the queue.
+   */
+  private void enqueue(File file, EventQueue.Kind kind, boolean scanned) {
+    enqueue(file, kind, scanned, false);
+  }
+
+  /**
+   * Admit an event to the queue and hand it on for processing.
+   *
+   * @param scanned true for events from the scanner, which are subject to the overflow policy
+   * @param retry true for events retrying a file that failed to process, which was complete then
+   */
+  private void enqueue(File file, EventQueue.Kind kind, boolean scanned, boolean retry) {
+    if (completion.isSignalFile(file)) {
+      // signal files are never processed, and every node sees them
+      if (kind == EventQueue.Kind.DELETE) {
+        completion.signalRemoved(file);
+      } else {
+        completion.signalled(file);
       }
-      LOGGER.info("Notify file updated: {}", file.getAbsolutePath());
-      try {
-        processor.processUpdate(file, item.getAltFileId());
-        item.setModified(file.lastModified());
-        item.setStatus(Status.PROCESSED);
-      } catch (Exception e) {
-        LOGGER.warn("Error processing update event", e);
-        item.setStatus(Status.UNPROCESSED_UPDATE);
+      return;
+    }
+    if (!owns(file)) {
+      return;
+    }
+    if (kind == EventQueue.Kind.DELETE) {
+      if (admit(file, kind, scanned)) {
+        dispatchDelete(file);
       }
+    } else if (completion.holdsUntilSignalled()) {
+      // held files take no place in the queue until they are released, so a full queue can never
+      // keep the scanner from reaching the signal files that would make room. Their signal has been
+      // used up by then, so they wait for room whatever the overflow policy.
+      whenComplete(
+          file,
+          retry,
+          () -> {
+            if (admit(file, kind, false)) {
+              dispatch(file, kind);
+            }
+          },
+          () -> {});
+    } else if (admit(file, kind, scanned)) {
+      whenComplete(
+          file,
+          retry,
+          () -> dispatch(file, kind),
+          () -> eventQueue.abandon(file.getAbsolutePath(), kind));
+    }
+  }
+
+  /**
+   * Admit an event to the queue.
+   *
+   * @param scanned true for events from the scanner, which are subject to the overflow policy
+   * @return true if the event was admitted and must be handed on
+   */
+  private boolean admit(File file, EventQueue.Kind kind, boolean scanned) {
+    String path = file.getAbsolutePath();
+    boolean queued = scanned ? eventQueue.offer(path, kind) : eventQueue.put(path, kind);
+    metrics.event(typeOf(kind), queued ? MonitorMetrics.QUEUED : MonitorMetrics.DROPPED);
+    return queued;
+  }
+
+  /** Hand a create or update whose file is complete on to a worker. */
+  private void dispatch(File file, EventQueue.Kind kind) {
+    Function<File, CompletionStage<?>> notify =
+        kind == EventQueue.Kind.CREATE ? this::notifyCreate : this::notifyUpdate;
+    dispatcher.dispatchAsync(lane, file.getAbsolutePath(), () -> process(file, kind, notify));
+  }
 
-      fileItemRepository.save(item);
+  /**
+   * Run a task once a file is complete.
+   *
+   * @param retry true for a file that failed to process, which was complete then
+   * @param dispatch called once the file is complete
+   * @param dropped called instead if the completion strategy drops the file
+   */
+  private void whenComplete(File file, boolean retry, Runnable dispatch, Runnable dropped) {
+    long start = System.nanoTime();
+    Runnable timed =
+        () -> {
+          metrics.completionWaited(System.nanoTime() - start);
+          dispatch.run();
+        };
+    if (retry) {
+      completion.trackAgain(file, timed, dropped);
     } else {
-      notifyCreate(file);
+      completion.track(file, timed, dropped);
+    }
+  }
+
+  private void dispatchDelete(File file) {
+    completion.cancel(file);
+    dispatcher.dispatchAsync(
+        lane,
+        file.getAbsolutePath(),
+        () -> process(file, EventQueue.Kind.DELETE, this::notifyDelete));
+  }
+
+  /**
+   * Hand on a move. The move is run in order with the other events for the new path, and any event
+   * still waiting to become complete at the old path is dropped.
+   */
+  private void dispatchMove(File from, File to) {
+    completion.cancel(from);
+    dispatcher.dispatchAsync(
+        lane,
+        to.getAbsolutePath(),
+        () -> process(to, EventQueue.Kind.MOVE, file -> notifyMove(from, file)));
+  }
+
+  /** Run an event and release its place in the queue once it has completed. */
+  private CompletionStage<?> process(
+      File file, EventQueue.Kind kind, Function<File, CompletionStage<?>> notify) {
+    eventQueue.started(file.getAbsolutePath(), kind);
+    int shard = sharding == null ? -1 : shardOf(file);
+    if (shard >= 0 && !sharding.begin(shard)) {
+      // the shard was given up since the event was queued, its new holder reconciles it
+      eventQueue.completed();
+      return null;
+    }
+    CompletionStage<?> stage = null;
+    try {
+      stage = notify.apply(file);
+    } finally {
+      if (stage == null) {
+        completed(shard);
+      }
+    }
+    return stage != null ? stage.whenComplete((result, e) -> completed(shard)) : null;
+  }
+
+  private void completed(int shard) {
+    eventQueue.completed();
+    if (shard >= 0) {
+      sharding.end(shard);
+    }
+  }
+
+  private CompletionStage<?> notifyCreate(File file) {
+    FileItem existing = fileItemStore.findByFileId(file.getAbsolutePath());
+    if (existing != null && existing.getStatus() != Status.UNPROCESSED) {
+      return null;
+    }
+    LOGGER.info("Notify file created: {}", file.getAbsolutePath());
+    FileItem item = existing != null ? existing : newItem(file);
+    CompletionStage<String> fingerprint = fingerprint(file);
+    return measured(MonitorMetrics.CREATE, () -> processCreate(file))
+        .thenCombine(
+            fingerprint,
+            (result, contentFingerprint) -> {
+              if (result.isSuccess()) {
+                item.setAltFileId(result.getAltId());
+                item.setFingerprint(contentFingerprint);
+                processed(item);
+              } else {
+                LOGGER.warn("Error processing create event", result.getCause());
+                item.setAltFileId(null);
+                failed(item, Status.UNPROCESSED);
+              }
+              item.setModified(file.lastModified());
+              fileItemStore.save(item);
+              return null;
+            });
+  }
+
+  private CompletionStage<?> notifyUpdate(File file) {
+    FileItem item = fileItemStore.findByFileId(file.getAbsolutePath());
+    if (item == null) {
+      return notifyCreate(file);
+    }
+    if (item.getModified() >= file.lastModified()
+        && item.getStatus() != Status.UNPROCESSED_UPDATE) {
+      return null;
+    }
+    if (fingerprinter == null) {
+      return update(file, item, null);
     }
+    // carry on on a worker so the processor is never called from a hashing thread
+    return fingerprint(file)
+        .thenComposeAsync(
+            contentFingerprint -> {
+              if (contentFingerprint != null
+                  && item.getStatus() == Status.PROCESSED
+                  && contentFingerprint.equals(item.getFingerprint())) {
+                LOGGER.debug("Content of {} unchanged. Skipping update", file.getAbsolutePath());
+                unchangedUpdates.incrementAndGet();
+                item.setModified(file.lastModified());
+                fileItemStore.save(item);
+                return CompletableFuture.completedFuture(null);
+              }
+              return update(file, item, contentFingerprint);
+            },
+            dispatcher::execute);
   }
 
-  private synchronized void notifyDelete(File file) {
+  private CompletionStage<?> update(File file, FileItem item, String contentFingerprint) {
+    LOGGER.info("Notify file updated: {}", file.getAbsolutePath());
+    return measured(MonitorMetrics.UPDATE, () -> processUpdate(file, item.getAltFileId()))
+        .thenAccept(
+            result -> {
+              if (result.isSuccess()) {
+                item.setModified(file.lastModified());
+                item.setFingerprint(contentFingerprint);
+                processed(item);
+              } else {
+                LOGGER.warn("Error processing update event", result.getCause());
+                failed(item, Status.UNPROCESSED_UPDATE);
+              }
+              fileItemStore.save(item);
+            });
+  }
 
-    FileItem item = fileItemRepository.findByFileId(file.getAbsolutePath());
+  private CompletionStage<?> notifyDelete(File file) {
+    FileItem item = fileItemStore.findByFileId(file.getAbsolutePath());
     if (item == null) {
       // never processed. noop
-      return;
+      return null;
     }
     if (item.getStatus() == Status.UNPROCESSED) {
       // item never successfully processed so just remove it from the db
-      fileItemRepository.deleteByFileId(file.getAbsolutePath());
+      fileItemStore.delete(item);
     }
     LOGGER.info("Notify file deleted: {}", file.getAbsolutePath());
+    return measured(MonitorMetrics.DELETE, () -> processDelete(file, item.getAltFileId()))
+        .thenAccept(
+            result -> {
+              if (result.isSuccess()) {
+                fileItemStore.delete(item);
+              } else {
+                LOGGER.warn("Error processing delete event", result.getCause());
+                failed(item, Status.UNPROCESSED_DELETE);
+                fileItemStore.save(item);
+              }
+            });
+  }
+
+  private CompletionStage<?> notifyMove(File from, File to) {
+    FileItem item = fileItemStore.findByFileId(from.getAbsolutePath());
+    if (item == null
+        || item.getStatus() != Status.PROCESSED
+        || !fileItemStore.isFree(to.getAbsolutePath())) {
+      // nothing processed to carry over to the new path
+      return both(notifyDelete(from), notifyUpdate(to));
+    }
+    if (fingerprinter == null || item.getFingerprint() == null) {
+      return move(from, to, item);
+    }
+    // a new file can be given a deleted file's key, so make sure the content came along too
+    return fingerprint(to)
+        .thenComposeAsync(
+            contentFingerprint -> {
+              if (item.getFingerprint().equals(contentFingerprint)) {
+                return move(from, to, item);
+              }
+              LOGGER.debug(
+                  "Content of {} differs from {}. Not a move",
+                  to.getAbsolutePath(),
+                  item.getFileId());
+              CompletionStage<?> replaced = both(notifyDelete(from), notifyUpdate(to));
+              return replaced != null
+                  ? replaced.thenAccept(done -> {})
+                  : CompletableFuture.<Void>completedFuture(null);
+            },
+            dispatcher::execute);
+  }
+
+  private CompletionStage<Void> move(File from, File to, FileItem item) {
+    LOGGER.info("Notify file moved: {} to {}", from.getAbsolutePath(), to.getAbsolutePath());
+    String fromId = item.getFileId();
+    return measured(MonitorMetrics.MOVE, () -> processMove(from, to, item.getAltFileId()))
+        .thenAccept(
+            result -> {
+              if (result.isSuccess()) {
+                item.setFileId(to.getAbsolutePath());
+                item.setAltFileId(result.getAltId());
+                item.setModified(to.lastModified());
+                processed(item);
+                fileItemStore.move(fromId, item);
+              } else {
+                // retry the move as a delete of the old path and a create of the new one
+                LOGGER.warn("Error processing move event", result.getCause());
+                failed(item, Status.UNPROCESSED_DELETE);
+                fileItemStore.save(item);
+                FileItem created = newItem(to);
+                failed(created, Status.UNPROCESSED);
+                fileItemStore.save(created);
+              }
+            });
+  }
+
+  /**
+   * Fingerprint a file's content when fingerprints are turned on.
+   *
+   * @return completes with the fingerprint, or with null when fingerprints are off or the file
+   *     could not be read
+   */
+  private CompletionStage<String> fingerprint(File file) {
+    if (fingerprinter == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return fingerprinter
+        .fingerprint(file)
+        .exceptionally(
+            e -> {
+              LOGGER.debug("Could not fingerprint {}", file.getAbsolutePath(), e);
+              return null;
+            });
+  }
+
+  private static CompletionStage<?> both(CompletionStage<?> first, CompletionStage<?> second) {
+    if (first == null) {
+      return second;
+    }
+    return second == null ? first : first.thenCombine(second, (a, b) -> null);
+  }
+
+  /** Time an event's processing and report its outcome once it completes. */
+  private CompletionStage<ProcessingResult> measured(
+      String type, Supplier<CompletionStage<ProcessingResult>> operation) {
+    long start = System.nanoTime();
+    return operation
+        .get()
+        .whenComplete(
+            (result, e) -> {
+              boolean success = result != null && result.isSuccess();
+              metrics.processed(processor.getId(), type, success, System.nanoTime() - start);
+              metrics.event(type, success ? MonitorMetrics.PROCESSED : MonitorMetrics.FAILED);
+            });
+  }
+
+  private static String typeOf(EventQueue.Kind kind) {
+    switch (kind) {
+      case CREATE:
+        return MonitorMetrics.CREATE;
+      case UPDATE:
+        return MonitorMetrics.UPDATE;
+      case DELETE:
+        return MonitorMetrics.DELETE;
+      default:
+        return MonitorMetrics.MOVE;
+    }
+  }
+
+  /**
+   * Hand a create to the batcher or start it on the async processor, or else process it straight
+   * away.
+   */
+  private CompletionStage<ProcessingResult> processCreate(File file) {
+    if (batcher != null) {
+      return batcher.create(file);
+    }
+    if (inFlight != null) {
+      return processAsync(
+          () -> ((AsyncProcessor) processor).processCreateAsync(file), ProcessingResult::success);
+    }
     try {
-      processor.processDelete(file, item.getAltFileId());
-      fileItemRepository.deleteByFileId(file.getAbsolutePath());
+      return CompletableFuture.completedFuture(
+          ProcessingResult.success(processor.processCreate(file)));
     } catch (Exception e) {
-      LOGGER.warn("Error processing delete event", e);
-      item.setStatus(Status.UNPROCESSED_DELETE);
-      fileItemRepository.save(item);
+      return CompletableFuture.completedFuture(ProcessingResult.failure(e));
     }
   }
 
-  private void waitForFileToStabilize(File file) {
-    while (System.currentTimeMillis() - file.lastModified() < stabilityPeriod) {
-      try {
-        Thread.sleep(stabilityPeriod);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
+  private CompletionStage<ProcessingResult> processUpdate(File file, String altId) {
+    if (batcher != null) {
+      return batcher.update(file, altId);
+    }
+    if (inFlight != null) {
+      return processAsync(
+          () -> ((AsyncProcessor) processor).processUpdateAsync(file, altId),
+          result -> ProcessingResult.success());
+    }
+    try {
+      processor.processUpdate(file, altId);
+      return CompletableFuture.completedFuture(ProcessingResult.success());
+    } catch (Exception e) {
+      return CompletableFuture.completedFuture(ProcessingResult.failure(e));
+    }
+  }
+
+  private CompletionStage<ProcessingResult> processDelete(File file, String altId) {
+    if (batcher != null) {
+      return batcher.delete(file, altId);
+    }
+    if (inFlight != null) {
+      return processAsync(
+          () -> ((AsyncProcessor) processor).processDeleteAsync(file, altId),
+          result -> ProcessingResult.success());
+    }
+    try {
+      processor.processDelete(file, altId);
+      return CompletableFuture.completedFuture(ProcessingResult.success());
+    } catch (Exception e) {
+      return CompletableFuture.completedFuture(ProcessingResult.failure(e));
+    }
+  }
+
+  /**
+   * Moves are rare, so a {@link BatchProcessor} is handed each one on its own rather than through
+   * the batcher.
+   */
+  private CompletionStage<ProcessingResult> processMove(File from, File to, String altId) {
+    if (inFlight != null) {
+      return processAsync(
+          () -> ((AsyncProcessor) processor).processMoveAsync(from, to, altId),
+          ProcessingResult::success);
+    }
+    try {
+      return CompletableFuture.completedFuture(
+          ProcessingResult.success(processor.processMove(from, to, altId)));
+    } catch (Exception e) {
+      return CompletableFuture.completedFuture(ProcessingResult.failure(e));
+    }
+  }
+
+  /**
+   * Start an async operation once there is room for it, blocking the worker thread until there is.
+   * The permit is released when the operation completes.
+   */
+  private <T> CompletionStage<ProcessingResult> processAsync(
+      Supplier<CompletableFuture<T>> operation, Function<T, ProcessingResult> onSuccess) {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return CompletableFuture.completedFuture(ProcessingResult.failure(e));
+    }
+    CompletableFuture<T> future;
+    try {
+      future = operation.get();
+      if (future == null) {
+        throw new IllegalStateException("No future returned by " + processor.getId());
       }
+    } catch (Exception e) {
+      inFlight.release();
+      return CompletableFuture.completedFuture(ProcessingResult.failure(e));
     }
+    return future.handle(
+        (result, e) -> {
+          inFlight.release();
+          if (e == null) {
+            return onSuccess.apply(result);
+          }
+          Throwable cause =
+              e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+          return ProcessingResult.failure(
+              cause instanceof Exception ? (Exception) cause : new CompletionException(cause));
+        });
+  }
+
+  private void processed(FileItem item) {
+    item.setStatus(Status.PROCESSED);
+    item.setAttempts(0);
+    item.setNextAttempt(0);
+  }
+
+  /** Schedule the next retry of a failed item, or give up on it after too many attempts. */
+  void failed(FileItem item, Status status) {
+    int attempts = item.getAttempts() + 1;
+    item.setAttempts(attempts);
+    if (attempts >= maxAttempts) {
+      LOGGER.warn("Giving up on {} after {} failed attempts", item.getFileId(), attempts);
+      item.setStatus(Status.FAILED);
+      item.setNextAttempt(0);
+      return;
+    }
+    long delay = Math.min(maxRetryDelay, retryDelay << Math.min(attempts - 1, 30));
+    item.setStatus(status);
+    item.setNextAttempt(
+        System.currentTimeMillis()
+            + delay / 2
+            + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+  }
+
+  private FileItem newItem(File file) {
+    FileItem item = new FileItem(file.getAbsolutePath(), null, 0, Status.UNPROCESSED);
+    item.setRootId(rootId);
+    return item;
   }
 
   private void checkForChangesSinceLastRun() {
-    checkForNewFiles();
-    checkForDeletedFiles();
+    flushFileItems();
+    newReconciler().reconcile();
+    startupReconciled = true;
+  }
+
+  /**
+   * Compare the tree seen by the poll observer's first scan with the repository. Runs as the
+   * observer starts, so the tree is listed once at startup and no scan can report a file before it
+   * has been reconciled.
+   */
+  private void reconcile(FileTreeSnapshot snapshot) {
+    flushFileItems();
+    newReconciler().reconcile(snapshot);
+    startupReconciled = true;
+  }
+
+  /** Create a reconciler that queues the changes it finds as events. */
+  private FileItemReconciler newReconciler() {
+    return new FileItemReconciler(
+        fileItemRepository,
+        rootId,
+        new File(monitoredDirectory),
+        fileFilter,
+        file -> enqueue(file, EventQueue.Kind.CREATE, false),
+        file -> enqueue(file, EventQueue.Kind.UPDATE, false),
+        file -> enqueue(file, EventQueue.Kind.DELETE, false));
+  }
+
+  /** Pick up changes whose events were dropped, once the queue has room again. */
+  private void reconcileDroppedEvents() {
+    long dropped = eventQueue.getDroppedCount();
+    if (dropped == reconciledDropCount || eventQueue.getDepth() > eventQueue.getCapacity() / 2) {
+      return;
+    }
+    LOGGER.info(
+        "{} events were dropped while the event queue was full. Reconciling.",
+        dropped - reconciledDropCount);
+    checkForChangesSinceLastRun();
+    reconciledDropCount = dropped;
   }
 
   private void retryUnprocessed() {
     long start = System.currentTimeMillis();
-    fileItemRepository.findByStatus(Status.UNPROCESSED).stream()
-        .map(item -> new File(item.getFileId()))
-        .filter(File::exists)
-        .forEach(this::notifyCreate);
-    fileItemRepository.findByStatus(Status.UNPROCESSED_UPDATE).stream()
-        .map(item -> new File(item.getFileId()))
-        .filter(File::exists)
-        .forEach(this::notifyUpdate);
-    fileItemRepository.findByStatus(Status.UNPROCESSED_DELETE).stream()
-        .map(item -> new File(item.getFileId()))
-        .forEach(this::notifyDelete);
-    LOGGER.info("retryUnprocessed took {} seconds", (System.currentTimeMillis() - start) / 1000f);
-  }
-
-  private void checkForNewFiles() {
-    long start = System.currentTimeMillis();
-    Map<String, Long> knownFiles = new HashMap<>((int) fileItemRepository.count());
-    fileItemRepository
-        .findAll()
-        .forEach(item -> knownFiles.put(item.getFileId(), item.getModified()));
-    try (Stream<Path> fileStream =
-        Files.walk(Paths.get(monitoredDirectory), FileVisitOption.FOLLOW_LINKS)) {
-      fileStream
-          .filter(t -> fileMatchesFilter(t.toFile(), false))
-          .forEach(
-              path -> {
-                File file = path.toFile();
-                long modified = knownFiles.getOrDefault(file.getAbsolutePath(), 0L);
-                if (modified == 0) {
-                  notifyCreate(file);
-                } else if (file.lastModified() > modified) {
-                  notifyUpdate(file);
-                }
-              });
-    } catch (IOException e) {
-      LOGGER.warn("Error encountered while checking for new files.", e);
-    }
-    LOGGER.info("New file check took {} seconds", (System.currentTimeMillis() - start) / 1000f);
-  }
-
-  private void checkForDeletedFiles() {
-    long start = System.currentTimeMillis();
-    StreamSupport.stream(fileItemRepository.findAll().spliterator(), false)
-        .map(item -> new File(item.getFileId()))
-        .filter(file -> !file.exists())
-        .forEach(this::notifyDelete);
-    LOGGER.info(
-        "Deleted files check took {} seconds", (System.currentTimeMillis() - start) / 1000f);
+    flushFileItems();
+    int due =
+        retryDue(
+                Status.UNPROCESSED,
+                start,
+                item -> {
+                  File file = new File(item.getFileId());
+                  if (file.exists()) {
+                    enqueue(file, EventQueue.Kind.CREATE, false, true);
+                  } else {
+                    // never processed, so there is nothing to tell the processor
+                    fileItemStore.delete(item);
+                  }
+                })
+            + retryDue(
+                Status.UNPROCESSED_UPDATE,
+                start,
+                item -> {
+                  File file = new File(item.getFileId());
+                  // the processor has an earlier version of a file that is gone
+                  enqueue(
+                      file,
+                      file.exists() ? EventQueue.Kind.UPDATE : EventQueue.Kind.DELETE,
+                      false,
+                      true);
+                })
+            + retryDue(
+                Status.UNPROCESSED_DELETE,
+                start,
+                item -> enqueue(new File(item.getFileId()), EventQueue.Kind.DELETE, false, true));
+    if (due > 0) {
+      LOGGER.info(
+          "retryUnprocessed found {} due items in {} seconds",
+          due,
+          (System.currentTimeMillis() - start) / 1000f);
+    }
+    countPendingRetries();
+  }
+
+  /** Count the items in each unprocessed status for {@link #getPendingRetryCounts()}. */
+  private void countPendingRetries() {
+    Map<Status, Long> counts = new EnumMap<>(Status.class);
+    try {
+      for (Status status : Status.values()) {
+        if (status != Status.PROCESSED) {
+          long start = System.nanoTime();
+          counts.put(status, fileItemRepository.countByRootIdAndStatus(rootId, status));
+          metrics.repositoryCalled("countByRootIdAndStatus", System.nanoTime() - start);
+        }
+      }
+    } catch (RuntimeException e) {
+      LOGGER.warn("Could not count the unprocessed items of {}", rootId, e);
+      return;
+    }
+    pendingRetryCounts = Collections.unmodifiableMap(counts);
+  }
+
+  /**
+   * Retry every item in a status whose next attempt has passed. Each item's next attempt is pushed
+   * back by one retry delay before it is retried, so it is not picked up again while the retry is
+   * still running. Items with a pending change have been handled since the last flush and are
+   * skipped.
+   *
+   * @return the number of items retried
+   */
+  int retryDue(Status status, long now, Consumer<FileItem> retry) {
+    int count = 0;
+    long afterAttempt = Long.MIN_VALUE;
+    long afterId = 0;
+    List<FileItem> page;
+    do {
+      long start = System.nanoTime();
+      page =
+          fileItemRepository.findDue(
+              rootId, status, now, afterAttempt, afterId, PageRequest.of(0, RETRY_PAGE_SIZE));
+      metrics.repositoryCalled("findDue", System.nanoTime() - start);
+      for (FileItem item : page) {
+        afterAttempt = item.getNextAttempt();
+        afterId = item.getId();
+        if (!owns(new File(item.getFileId()))) {
+          continue;
+        }
+        item.setNextAttempt(now + retryDelay);
+        if (fileItemStore.saveIfAbsent(item)) {
+          retry.accept(item);
+          count++;
+        }
+      }
+    } while (page.size() == RETRY_PAGE_SIZE);
+    return count;
+  }
+
+  /** Write pending item changes so queries against the repository see them. */
+  private void flushFileItems() {
+    try {
+      fileItemStore.flush();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Could not write pending item changes", e);
+    }
   }
 
   public void destroy() throws Exception {
     LOGGER.info("Shutting down...");
-    executorService.shutdownNow();
-    monitor.stop(1000);
+    scheduled.forEach(task -> task.cancel(false));
+    if (group == null) {
+      executorService.shutdownNow();
+    }
+    eventQueue.shutdown();
+    stopScanning();
+    if (pollObserver != null && snapshotFile != null) {
+      checkpoint();
+    }
+    if (coalescer != null) {
+      coalescer.shutdown();
+    }
+    completion.shutdown();
+    if (batcher != null) {
+      batcher.shutdown();
+    }
+    if (group == null) {
+      dispatcher.shutdown(1000);
+    }
+    if (fingerprinter != null) {
+      fingerprinter.shutdown();
+    }
+    if (sharding != null) {
+      try {
+        sharding.leave(fileItemStore::flush);
+      } catch (RuntimeException e) {
+        LOGGER.warn("Could not give up the shards of {}. Their leases will expire", rootId, e);
+      }
+    }
+    fileItemStore.shutdown();
+    metrics.unbind(this);
   }
 }
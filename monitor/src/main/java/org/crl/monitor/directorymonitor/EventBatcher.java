@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups events into batches for a {@link BatchProcessor}. Creates, updates and deletes are batched
+ * separately. A batch is handed to the processor once it holds {@code maxBatchSize} events or its
+ * first event is {@code maxBatchAge} milliseconds old, whichever comes first. Batches are processed
+ * one at a time on a single thread.
+ */
+class EventBatcher {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(EventBatcher.class);
+
+  private enum Kind {
+    CREATE,
+    UPDATE,
+    DELETE
+  }
+
+  private final BatchProcessor processor;
+
+  private final int maxBatchSize;
+
+  private final long maxBatchAge;
+
+  private final ScheduledExecutorService executor;
+
+  private final Batch[] pending = new Batch[Kind.values().length];
+
+  /**
+   * Create a batcher.
+   *
+   * @param processor the processor to hand batches to
+   * @param maxBatchSize the largest number of events in a batch
+   * @param maxBatchAge the longest time in milliseconds an event waits for its batch to fill
+   */
+  EventBatcher(BatchProcessor processor, int maxBatchSize, long maxBatchAge) {
+    this.processor = processor;
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+    this.maxBatchAge = maxBatchAge;
+    this.executor =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "monitor-batch");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Add a create event to the next batch.
+   *
+   * @param file the file that was discovered
+   * @return completes with the result for the file once its batch has been processed
+   */
+  CompletableFuture<ProcessingResult> create(File file) {
+    return add(Kind.CREATE, file, null);
+  }
+
+  /**
+   * Add an update event to the next batch.
+   *
+   * @param file the file that was updated
+   * @param altId the alternate id of the file
+   * @return completes with the result for the file once its batch has been processed
+   */
+  CompletableFuture<ProcessingResult> update(File file, String altId) {
+    return add(Kind.UPDATE, file, altId);
+  }
+
+  /**
+   * Add a delete event to the next batch.
+   *
+   * @param file the file that was deleted
+   * @param altId the alternate id of the file
+   * @return completes with the result for the file once its batch has been processed
+   */
+  CompletableFuture<ProcessingResult> delete(File file, String altId) {
+    return add(Kind.DELETE, file, altId);
+  }
+
+  /** Process the batches that are still filling and stop. */
+  void shutdown() throws InterruptedException {
+    synchronized (this) {
+      for (int i = 0; i < pending.length; i++) {
+        if (pending[i] != null) {
+          submit(pending[i]);
+          pending[i] = null;
+        }
+      }
+    }
+    executor.shutdown();
+    executor.awaitTermination(1000, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized CompletableFuture<ProcessingResult> add(Kind kind, File file, String altId) {
+    Batch batch = pending[kind.ordinal()];
+    if (batch == null) {
+      batch = new Batch(kind);
+      pending[kind.ordinal()] = batch;
+      Batch filling = batch;
+      try {
+        executor.schedule(() -> flush(filling), maxBatchAge, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        LOGGER.debug("Batcher shut down. Processing {} immediately", file);
+      }
+    }
+    CompletableFuture<ProcessingResult> result = new CompletableFuture<>();
+    batch.files.add(file);
+    batch.altIds.add(altId);
+    batch.results.add(result);
+    if (batch.files.size() >= maxBatchSize || executor.isShutdown()) {
+      pending[kind.ordinal()] = null;
+      submit(batch);
+    }
+    return result;
+  }
+
+  private void flush(Batch batch) {
+    synchronized (this) {
+      if (pending[batch.kind.ordinal()] != batch) {
+        return;
+      }
+      pending[batch.kind.ordinal()] = null;
+    }
+    process(batch);
+  }
+
+  private void submit(Batch batch) {
+    try {
+      executor.execute(() -> process(batch));
+    } catch (RejectedExecutionException e) {
+      process(batch);
+    }
+  }
+
+  private void process(Batch batch) {
+    List<ProcessingResult> results;
+    try {
+      switch (batch.kind) {
+        case CREATE:
+          results = processor.processCreates(batch.files);
+          break;
+        case UPDATE:
+          results = processor.processUpdates(batch.files, batch.altIds);
+          break;
+        default:
+          results = processor.processDeletes(batch.files, batch.altIds);
+          break;
+      }
+      if (results == null || results.size() != batch.files.size()) {
+        throw new IllegalStateException(
+            "Expected "
+                + batch.files.size()
+                + " results from "
+                + processor.getId()
+                + " but got "
+                + (results == null ? 0 : results.size()));
+      }
+    } catch (RuntimeException e) {
+      LOGGER.warn("Error processing batch of {} {} events", batch.files.size(), batch.kind, e);
+      results = new ArrayList<>(batch.files.size());
+      for (int i = 0; i < batch.files.size(); i++) {
+        results.add(ProcessingResult.failure(e));
+      }
+    }
+    for (int i = 0; i < batch.results.size(); i++) {
+      ProcessingResult result = results.get(i);
+      batch
+          .results
+          .get(i)
+          .complete(
+              result != null
+                  ? result
+                  : ProcessingResult.failure(new IllegalStateException("No result returned")));
+    }
+  }
+
+  private static class Batch {
+    private final Kind kind;
+    private final List<File> files = new ArrayList<>();
+    private final List<String> altIds = new ArrayList<>();
+    private final List<CompletableFuture<ProcessingResult>> results = new ArrayList<>();
+
+    Batch(Kind kind) {
+      this.kind = kind;
+    }
+  }
+}
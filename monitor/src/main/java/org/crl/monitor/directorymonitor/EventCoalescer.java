@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import org.crl.monitor.directorymonitor.EventQueue.Kind;
+
+/**
+ * Merges the events seen for a path within a window into a single event. The first event for a path
+ * is held for the window and any events for the same path that arrive meanwhile are merged into it.
+ * When the window ends the merged event, if any, is released.
+ *
+ * <ul>
+ *   <li>create then update is a create
+ *   <li>create then delete is nothing
+ *   <li>update then update is an update
+ *   <li>update then delete is a delete
+ *   <li>delete then create is an update, since the file was replaced
+ * </ul>
+ *
+ * <p>At most {@code capacity} paths are held at once. Events for other paths are released straight
+ * away while the coalescer is full, so holding events never hides them from the event queue's
+ * overflow policy.
+ */
+class EventCoalescer {
+
+  private final long window;
+
+  private final int capacity;
+
+  private final BiConsumer<File, Kind> release;
+
+  private final Map<String, Held> held = new HashMap<>();
+
+  private final ScheduledThreadPoolExecutor timer;
+
+  private final AtomicLong avoided = new AtomicLong();
+
+  /**
+   * Create a coalescer.
+   *
+   * @param window the time in milliseconds events for a path are held and merged
+   * @param capacity the most paths held at once
+   * @param release called with each merged event once its window ends, from the timer thread, or
+   *     from the calling thread when the coalescer is full
+   */
+  EventCoalescer(long window, int capacity, BiConsumer<File, Kind> release) {
+    this.window = window;
+    this.capacity = Math.max(1, capacity);
+    this.release = release;
+    this.timer =
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              Thread thread = new Thread(runnable, "monitor-coalesce");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Add an event, merging it into the event held for the path if there is one.
+   *
+   * @param file the file the event is for
+   * @param kind the kind of event
+   */
+  void add(File file, Kind kind) {
+    String path = file.getAbsolutePath();
+    Held entry;
+    synchronized (held) {
+      Held current = held.get(path);
+      if (current != null) {
+        Kind merged = merge(current.kind, kind);
+        if (merged == null) {
+          held.remove(path);
+          avoided.addAndGet(2);
+        } else {
+          current.file = file;
+          current.kind = merged;
+          avoided.incrementAndGet();
+        }
+        return;
+      }
+      if (held.size() >= capacity) {
+        entry = null;
+      } else {
+        entry = new Held(file, kind);
+        held.put(path, entry);
+      }
+    }
+    if (entry == null) {
+      release.accept(file, kind);
+      return;
+    }
+    try {
+      timer.schedule(() -> release(path, entry), window, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // shut down. the event is lost with the rest of the held events
+      synchronized (held) {
+        held.remove(path, entry);
+      }
+    }
+  }
+
+  private void release(String path, Held entry) {
+    File file;
+    Kind kind;
+    synchronized (held) {
+      if (!held.remove(path, entry)) {
+        // cancelled out by a later event
+        return;
+      }
+      file = entry.file;
+      kind = entry.kind;
+    }
+    release.accept(file, kind);
+  }
+
+  /**
+   * Merge an event into the one held for the same path.
+   *
+   * @return the merged event, or null if the two cancel out
+   */
+  static Kind merge(Kind held, Kind next) {
+    switch (held) {
+      case CREATE:
+        return next == Kind.DELETE ? null : Kind.CREATE;
+      case UPDATE:
+        return next == Kind.DELETE ? Kind.DELETE : Kind.UPDATE;
+      default:
+        return next == Kind.DELETE ? Kind.DELETE : Kind.UPDATE;
+    }
+  }
+
+  /**
+   * Get the number of paths with an event held.
+   *
+   * @return the number of held events
+   */
+  int getHeldCount() {
+    synchronized (held) {
+      return held.size();
+    }
+  }
+
+  /**
+   * Get the number of events that were merged away or cancelled out and so never processed.
+   *
+   * @return the avoided event count
+   */
+  long getAvoidedCount() {
+    return avoided.get();
+  }
+
+  /** Stop the timer. Events still held are discarded and are picked up by the next reconcile. */
+  void shutdown() {
+    timer.shutdownNow();
+    synchronized (held) {
+      held.clear();
+    }
+  }
+
+  private static class Held {
+    private File file;
+    private Kind kind;
+
+    Held(File file, Kind kind) {
+      this.file = file;
+      this.kind = kind;
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs event tasks on a pool of worker threads. Tasks dispatched with different keys run in
+ * parallel while tasks dispatched with the same key run one at a time in the order they were
+ * dispatched. A task may also finish asynchronously by returning a {@link CompletionStage}, in
+ * which case the next task for its key waits for the stage to complete without holding a worker
+ * thread.
+ *
+ * <p>Keys belong to {@link Lane}s. When several lanes have keys ready to run, workers take a key
+ * from each lane in turn, so a flood of events in one lane, such as one monitored directory of
+ * several sharing the dispatcher, does not hold up the others.
+ */
+public class EventDispatcher {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(EventDispatcher.class);
+
+  private final ExecutorService executor;
+
+  private final ConcurrentHashMap<String, KeyQueue> queues = new ConcurrentHashMap<>();
+
+  private final Lane defaultLane = new Lane("default");
+
+  /** Lanes with keys ready to run, in the order they are served. Guards every lane's keys. */
+  private final ArrayDeque<Lane> readyLanes = new ArrayDeque<>();
+
+  /**
+   * Create a dispatcher backed by a fixed size worker pool.
+   *
+   * @param threads the number of worker threads
+   */
+  public EventDispatcher(int threads) {
+    this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new WorkerThreadFactory());
+  }
+
+  /**
+   * Queue a task for execution. The task will not start until all tasks previously dispatched with
+   * the same key have completed.
+   *
+   * @param key the key to order tasks by, usually the absolute path of a file
+   * @param task the task to run
+   */
+  public void dispatch(String key, Runnable task) {
+    dispatchAsync(
+        key,
+        () -> {
+          task.run();
+          return null;
+        });
+  }
+
+  /**
+   * Queue a task that finishes asynchronously. The task runs on a worker thread once all tasks
+   * previously dispatched with the same key have completed, and later tasks for the key wait until
+   * the returned stage completes.
+   *
+   * @param key the key to order tasks by, usually the absolute path of a file
+   * @param task the task to run, returning the stage that completes it or null if it is already
+   *     complete
+   */
+  public void dispatchAsync(String key, Supplier<CompletionStage<?>> task) {
+    dispatchAsync(defaultLane, key, task);
+  }
+
+  /**
+   * Queue a task that finishes asynchronously in a lane. A key stays in the lane of the task that
+   * was dispatched for it while it had nothing queued.
+   *
+   * @param lane the lane the key shares workers through
+   * @param key the key to order tasks by, usually the absolute path of a file
+   * @param task the task to run, returning the stage that completes it or null if it is already
+   *     complete
+   */
+  public void dispatchAsync(Lane lane, String key, Supplier<CompletionStage<?>> task) {
+    boolean[] idle = new boolean[1];
+    KeyQueue queued =
+        queues.compute(
+            key,
+            (k, queue) -> {
+              if (queue == null) {
+                queue = new KeyQueue(lane);
+                idle[0] = true;
+              }
+              queue.add(task);
+              return queue;
+            });
+    if (idle[0]) {
+      schedule(queued.lane, key);
+    }
+  }
+
+  /**
+   * Create a lane. Workers take ready keys from each lane in turn.
+   *
+   * @param name the name of the lane, used in log messages
+   * @return the lane
+   */
+  public Lane lane(String name) {
+    return new Lane(name);
+  }
+
+  /**
+   * Run a task on a worker thread outside of the order of any key. Used to carry on with a task
+   * after it has waited on another pool.
+   *
+   * @param task the task to run
+   */
+  public void execute(Runnable task) {
+    executor.execute(task);
+  }
+
+  /**
+   * Get the number of keys that currently have queued or running tasks.
+   *
+   * @return the number of active keys
+   */
+  public int getActiveKeyCount() {
+    return queues.size();
+  }
+
+  /**
+   * Runs the task at the head of the key's queue. The task stays at the head until it completes so
+   * that concurrent dispatches for the same key queue up behind it instead of starting a second
+   * runner.
+   */
+  private void runNext(String key) {
+    CompletionStage<?> stage = null;
+    try {
+      stage = queues.get(key).peek().get();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Error running event task for {}", key, e);
+    }
+    if (stage == null) {
+      completed(key);
+    } else {
+      stage.whenComplete(
+          (result, e) -> {
+            if (e != null) {
+              LOGGER.warn("Error running event task for {}", key, e);
+            }
+            completed(key);
+          });
+    }
+  }
+
+  private void completed(String key) {
+    KeyQueue remaining =
+        queues.computeIfPresent(
+            key,
+            (k, q) -> {
+              q.poll();
+              return q.isEmpty() ? null : q;
+            });
+    if (remaining != null) {
+      // resubmit rather than loop so busy keys share the pool fairly with other keys
+      schedule(remaining.lane, key);
+    }
+  }
+
+  /** Mark a key as ready to run and hand a worker the next ready key. */
+  private void schedule(Lane lane, String key) {
+    synchronized (readyLanes) {
+      if (lane.ready.isEmpty()) {
+        readyLanes.add(lane);
+      }
+      lane.ready.add(key);
+    }
+    try {
+      executor.execute(this::runReady);
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug("Dispatcher shut down. Dropping tasks for {} in {}", key, lane.name);
+      queues.remove(key);
+    }
+  }
+
+  /**
+   * Run the next ready key of the lane at the front, then move the lane to the back. Every key that
+   * becomes ready hands the pool one of these, so every ready key is run.
+   */
+  private void runReady() {
+    String key;
+    synchronized (readyLanes) {
+      Lane lane = readyLanes.poll();
+      if (lane == null) {
+        return;
+      }
+      key = lane.ready.poll();
+      if (!lane.ready.isEmpty()) {
+        readyLanes.add(lane);
+      }
+    }
+    runNext(key);
+  }
+
+  /**
+   * Stop accepting tasks and wait for running tasks to complete.
+   *
+   * @param timeout the maximum time to wait in milliseconds
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void shutdown(long timeout) throws InterruptedException {
+    executor.shutdownNow();
+    executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  /** A group of keys that takes turns with other lanes for workers. */
+  public static final class Lane {
+    private final String name;
+    private final ArrayDeque<String> ready = new ArrayDeque<>();
+
+    private Lane(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  /** The queued tasks for a key along with the key's lane. */
+  private static final class KeyQueue extends ConcurrentLinkedQueue<Supplier<CompletionStage<?>>> {
+    private static final long serialVersionUID = 1L;
+    private final transient Lane lane;
+
+    KeyQueue(Lane lane) {
+      this.lane = lane;
+    }
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "monitor-worker-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
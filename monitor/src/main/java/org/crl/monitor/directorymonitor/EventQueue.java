@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the number of events between detection and the end of processing. An event is admitted by
+ * {@link #offer} and holds a place in the queue until {@link #completed()} or {@link #abandon} is
+ * called for it, so the depth covers events waiting to become stable, waiting for a worker and
+ * being processed.
+ *
+ * <p>An event is collapsed into one already waiting for the same path when it is the same kind, or
+ * when it is an update following a create. Moves are never collapsed. Once processing of the
+ * waiting event has {@link #started} a new event for the path is admitted again, since the file may
+ * have changed while it was processed.
+ */
+class EventQueue {
+
+  enum Kind {
+    CREATE,
+    UPDATE,
+    DELETE,
+    MOVE
+  }
+
+  private final int capacity;
+
+  private final OverflowPolicy overflowPolicy;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition notFull = lock.newCondition();
+
+  private final Map<String, Kind> waiting = new HashMap<>();
+
+  private int depth;
+
+  private boolean shutdown;
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  private final AtomicLong collapsed = new AtomicLong();
+
+  /**
+   * Create a queue.
+   *
+   * @param capacity the most events admitted at once
+   * @param overflowPolicy what to do with events offered by the scanner when the queue is full
+   */
+  EventQueue(int capacity, OverflowPolicy overflowPolicy) {
+    this.capacity = Math.max(1, capacity);
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * Offer an event from the scanner, applying the overflow policy when the queue is full.
+   *
+   * @param path the absolute path of the file
+   * @param kind the kind of event
+   * @return true if the event was admitted and must be handed on for processing
+   */
+  boolean offer(String path, Kind kind) {
+    return offer(path, kind, overflowPolicy == OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * Offer an event, waiting for room if the queue is full. Used for events found by reconciliation
+   * and retries, which must not be dropped.
+   *
+   * @param path the absolute path of the file
+   * @param kind the kind of event
+   * @return true if the event was admitted and must be handed on for processing
+   */
+  boolean put(String path, Kind kind) {
+    return offer(path, kind, true);
+  }
+
+  private boolean offer(String path, Kind kind, boolean block) {
+    lock.lock();
+    try {
+      Kind previous = waiting.get(path);
+      if (kind != Kind.MOVE
+          && (previous == kind || (previous == Kind.CREATE && kind == Kind.UPDATE))) {
+        collapsed.incrementAndGet();
+        return false;
+      }
+      while (depth >= capacity && !shutdown) {
+        if (!block) {
+          dropped.incrementAndGet();
+          return false;
+        }
+        notFull.awaitUninterruptibly();
+      }
+      if (shutdown) {
+        return false;
+      }
+      depth++;
+      waiting.put(path, kind);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Record that processing of an admitted event has started, so later events for the path are no
+   * longer collapsed into it.
+   *
+   * @param path the absolute path of the file
+   * @param kind the kind of event
+   */
+  void started(String path, Kind kind) {
+    lock.lock();
+    try {
+      waiting.remove(path, kind);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Release the place held by an admitted event that will never be processed, such as one dropped
+   * while it waited to become complete. Later events for the path are no longer collapsed into it.
+   *
+   * @param path the absolute path of the file
+   * @param kind the kind of event
+   */
+  void abandon(String path, Kind kind) {
+    lock.lock();
+    try {
+      waiting.remove(path, kind);
+      depth--;
+      notFull.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Release the place held by an admitted event once it has been processed. */
+  void completed() {
+    lock.lock();
+    try {
+      depth--;
+      notFull.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Release any callers waiting for room. Later offers are refused. */
+  void shutdown() {
+    lock.lock();
+    try {
+      shutdown = true;
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of admitted events that have not completed.
+   *
+   * @return the queue depth
+   */
+  int getDepth() {
+    lock.lock();
+    try {
+      return depth;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Get the number of events dropped because the queue was full.
+   *
+   * @return the dropped event count
+   */
+  long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Get the number of events collapsed into an event already waiting for the same path.
+   *
+   * @return the collapsed event count
+   */
+  long getCollapsedCount() {
+    return collapsed.get();
+  }
+}
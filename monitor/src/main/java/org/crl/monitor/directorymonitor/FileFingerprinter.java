@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes SHA-256 fingerprints of file contents on a fixed pool of threads, so at most {@code
+ * threads} files are read at once however many events are waiting. Files are streamed through a
+ * direct buffer per thread rather than read into memory.
+ */
+class FileFingerprinter {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final ExecutorService executor;
+
+  private final ThreadLocal<ByteBuffer> buffers =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+  /**
+   * Create a fingerprinter.
+   *
+   * @param threads the most files read at once
+   */
+  FileFingerprinter(int threads) {
+    AtomicInteger count = new AtomicInteger();
+    this.executor =
+        Executors.newFixedThreadPool(
+            Math.max(1, threads),
+            runnable -> {
+              Thread thread = new Thread(runnable, "monitor-hash-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Fingerprint a file once a hashing thread is free.
+   *
+   * @param file the file
+   * @return completes with the hex encoded fingerprint, or exceptionally if the file could not be
+   *     read
+   */
+  CompletableFuture<String> fingerprint(File file) {
+    return CompletableFuture.supplyAsync(
+        () -> {
+          try {
+            return fingerprint(file, buffers.get());
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        },
+        executor);
+  }
+
+  static String fingerprint(File file, ByteBuffer buffer) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+    buffer.clear();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+    return String.format("%064x", new BigInteger(1, digest.digest()));
+  }
+
+  /** Stop the hashing threads. Fingerprints that have not finished are abandoned. */
+  void shutdown() {
+    executor.shutdownNow();
+  }
+}
@@ -14,12 +14,21 @@ package org.crl.monitor.directorymonitor;
 import javax.persistence.*;
 
 @Entity
+@Table(
+    indexes = {
+      @Index(name = "idx_file_item_file_id", columnList = "fileId", unique = true),
+      @Index(name = "idx_file_item_status_next_attempt", columnList = "status, nextAttempt"),
+      @Index(name = "idx_file_item_root_file_id", columnList = "rootId, fileId")
+    })
 public class FileItem {
 
   @Id
   @GeneratedValue(strategy = GenerationType.AUTO)
   private long id;
 
+  /** Id of the monitored directory the file is in, or null for items from before roots had ids. */
+  private String rootId;
+
   private String fileId;
 
   private String altFileId;
@@ -28,6 +37,15 @@ public class FileItem {
 
   private Status status;
 
+  /** Earliest time in milliseconds the item should be retried. Zero when it can be retried now. */
+  private long nextAttempt;
+
+  /** Number of times processing has failed since the item was last processed. */
+  private int attempts;
+
+  /** Fingerprint of the file's content when it was last processed, or null if not known. */
+  private String fingerprint;
+
   public FileItem() {}
 
   public FileItem(String fileId, String altFileId, long modified, Status status) {
@@ -45,6 +63,14 @@ public class FileItem {
     this.id = id;
   }
 
+  public String getRootId() {
+    return rootId;
+  }
+
+  public void setRootId(String rootId) {
+    this.rootId = rootId;
+  }
+
   public void setFileId(String fileId) {
     this.fileId = fileId;
   }
@@ -77,12 +103,39 @@ public class FileItem {
     this.status = newStatus;
   }
 
+  public long getNextAttempt() {
+    return nextAttempt;
+  }
+
+  public void setNextAttempt(long nextAttempt) {
+    this.nextAttempt = nextAttempt;
+  }
+
+  public int getAttempts() {
+    return attempts;
+  }
+
+  public void setAttempts(int attempts) {
+    this.attempts = attempts;
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  public void setFingerprint(String fingerprint) {
+    this.fingerprint = fingerprint;
+  }
+
   @Override
   public String toString() {
     return "FileItem{"
         + "id='"
         + id
         + '\''
+        + ", rootId='"
+        + rootId
+        + '\''
         + ", fileId='"
         + fileId
         + '\''
@@ -93,6 +146,13 @@ public class FileItem {
         + modified
         + ", status="
         + status
+        + ", nextAttempt="
+        + nextAttempt
+        + ", attempts="
+        + attempts
+        + ", fingerprint='"
+        + fingerprint
+        + '\''
         + '}';
   }
 }
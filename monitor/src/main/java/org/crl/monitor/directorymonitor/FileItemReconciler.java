@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
+
+/**
+ * Brings the {@link FileItemRepository} in line with the monitored directory in a single pass. The
+ * directory is walked in absolute path order while the stored items are read in pages ordered by
+ * file id, and the two sides are merge joined. Only one page of items and the listing of the
+ * directories currently being walked are held in memory.
+ *
+ * <p>The files can also be taken from the {@link FileTreeSnapshot} built by an observer's scan, so
+ * the directory is not listed a second time.
+ *
+ * <p>The merge relies on the database ordering file ids the same way as {@link
+ * String#compareTo(String)}, which is how H2 orders strings by default.
+ */
+class FileItemReconciler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileItemReconciler.class);
+
+  static final int PAGE_SIZE = 1000;
+
+  private final FileItemRepository fileItemRepository;
+  private final String rootId;
+  private final File root;
+  private final MonitorFileFilter fileFilter;
+  private final Consumer<File> onCreate;
+  private final Consumer<File> onUpdate;
+  private final Consumer<File> onDelete;
+
+  private ItemCursor cursor;
+  private int created;
+  private int updated;
+  private int deleted;
+
+  /**
+   * Create a reconciler.
+   *
+   * @param fileItemRepository the repository to reconcile
+   * @param rootId the id the monitored directory's items are stored under
+   * @param root the monitored directory
+   * @param fileFilter decides which files are monitored and which directories are walked
+   * @param onCreate called for files that have no item
+   * @param onUpdate called for files modified since their item was stored
+   * @param onDelete called for items whose file no longer exists
+   */
+  FileItemReconciler(
+      FileItemRepository fileItemRepository,
+      String rootId,
+      File root,
+      MonitorFileFilter fileFilter,
+      Consumer<File> onCreate,
+      Consumer<File> onUpdate,
+      Consumer<File> onDelete) {
+    this.fileItemRepository = fileItemRepository;
+    this.rootId = rootId;
+    this.root = root.getAbsoluteFile();
+    this.fileFilter = fileFilter;
+    this.onCreate = onCreate;
+    this.onUpdate = onUpdate;
+    this.onDelete = onDelete;
+  }
+
+  /** Walk the directory and the stored items once, reporting every difference. */
+  void reconcile() {
+    if (!root.isDirectory() || !root.canRead()) {
+      LOGGER.warn("Monitored directory [{}] not available. Skipping reconciliation.", root);
+      return;
+    }
+    run(
+        () -> {
+          try {
+            walk(root.toPath(), new HashSet<>());
+          } catch (IOException e) {
+            LOGGER.warn("Error encountered while checking for changed files.", e);
+          }
+        });
+  }
+
+  /**
+   * Reconcile against the files recorded by an observer's scan of the directory instead of walking
+   * it. The snapshot has already been filtered by the observer.
+   *
+   * @param snapshot the snapshot, which must not be reused while this runs
+   */
+  void reconcile(FileTreeSnapshot snapshot) {
+    run(() -> visit(snapshot, FileTreeSnapshot.ROOT, root));
+  }
+
+  private void run(Runnable walk) {
+    long start = System.currentTimeMillis();
+    cursor = new ItemCursor();
+    created = 0;
+    updated = 0;
+    deleted = 0;
+    walk.run();
+    while (cursor.peek() != null) {
+      missing(cursor.next());
+    }
+    LOGGER.info(
+        "Reconciliation took {} seconds. {} new, {} updated and {} deleted files found",
+        (System.currentTimeMillis() - start) / 1000f,
+        created,
+        updated,
+        deleted);
+  }
+
+  /**
+   * Visit the files below a directory in absolute path order. Sorting siblings by name, with a
+   * separator appended to directory names, gives the same order as sorting the full paths.
+   */
+  private void walk(Path dir, Set<Object> ancestors) throws IOException {
+    BasicFileAttributes dirAttributes = Files.readAttributes(dir, BasicFileAttributes.class);
+    Object key = dirAttributes.fileKey() != null ? dirAttributes.fileKey() : dir.toRealPath();
+    if (!ancestors.add(key)) {
+      LOGGER.debug("Skipping directory cycle at {}", dir);
+      return;
+    }
+    try {
+      for (Child child : list(dir)) {
+        if (!fileFilter.accept(child.path.toFile(), child.attributes.isDirectory())) {
+          continue;
+        }
+        if (child.attributes.isDirectory()) {
+          try {
+            walk(child.path, ancestors);
+          } catch (IOException e) {
+            LOGGER.warn("Could not check directory {} for changes", child.path, e);
+          }
+        } else {
+          visit(child.path.toFile(), child.attributes.lastModifiedTime().toMillis());
+        }
+      }
+    } finally {
+      ancestors.remove(key);
+    }
+  }
+
+  /** Visit the files below a directory of a snapshot in absolute path order. */
+  private void visit(FileTreeSnapshot snapshot, int dir, File dirFile) {
+    int first = snapshot.getFirstChild(dir);
+    int count = snapshot.getChildCount(dir);
+    if (count == 0) {
+      return;
+    }
+    String[] sortKeys = new String[count];
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      String name = snapshot.getName(first + i);
+      sortKeys[i] = snapshot.isDirectory(first + i) ? name + File.separatorChar : name;
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> sortKeys[a].compareTo(sortKeys[b]));
+    for (int i : order) {
+      int entry = first + i;
+      File file = new File(dirFile, snapshot.getName(entry));
+      if (snapshot.isDirectory(entry)) {
+        visit(snapshot, entry, file);
+      } else {
+        visit(file, snapshot.getLastModified(entry));
+      }
+    }
+  }
+
+  private static List<Child> list(Path dir) throws IOException {
+    List<Child> children = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path path : stream) {
+        try {
+          children.add(new Child(path, Files.readAttributes(path, BasicFileAttributes.class)));
+        } catch (IOException e) {
+          LOGGER.debug("Could not read attributes of {}", path, e);
+        }
+      }
+    }
+    children.sort((a, b) -> a.sortKey.compareTo(b.sortKey));
+    return children;
+  }
+
+  private void visit(File file, long lastModified) {
+    String path = file.getAbsolutePath();
+    while (cursor.peek() != null && cursor.peek().getFileId().compareTo(path) < 0) {
+      missing(cursor.next());
+    }
+    if (cursor.peek() != null && cursor.peek().getFileId().equals(path)) {
+      FileItem item = cursor.next();
+      if (lastModified > item.getModified()) {
+        updated++;
+        onUpdate.accept(file);
+      }
+    } else {
+      created++;
+      onCreate.accept(file);
+    }
+  }
+
+  /**
+   * An item with no matching file in the walk. The file is only checked directly here, which keeps
+   * items for files that still exist but are no longer matched by the filter.
+   */
+  private void missing(FileItem item) {
+    File file = new File(item.getFileId());
+    if (!file.exists()) {
+      deleted++;
+      onDelete.accept(file);
+    }
+  }
+
+  private static class Child {
+    private final Path path;
+    private final BasicFileAttributes attributes;
+    private final String sortKey;
+
+    Child(Path path, BasicFileAttributes attributes) {
+      this.path = path;
+      this.attributes = attributes;
+      String name = path.getFileName().toString();
+      this.sortKey = attributes.isDirectory() ? name + File.separatorChar : name;
+    }
+  }
+
+  /** Reads items in file id order one page at a time using the last id seen as the key. */
+  private class ItemCursor {
+    private List<FileItem> page = new ArrayList<>();
+    private int index;
+    private String lastId = "";
+    private boolean exhausted;
+
+    FileItem peek() {
+      if (index == page.size() && !exhausted) {
+        page =
+            fileItemRepository.findByRootIdAndFileIdGreaterThanOrderByFileIdAsc(
+                rootId, lastId, PageRequest.of(0, PAGE_SIZE));
+        index = 0;
+        exhausted = page.size() < PAGE_SIZE;
+        if (!page.isEmpty()) {
+          lastId = page.get(page.size() - 1).getFileId();
+        }
+      }
+      return index < page.size() ? page.get(index) : null;
+    }
+
+    FileItem next() {
+      FileItem item = peek();
+      index++;
+      return item;
+    }
+  }
+}
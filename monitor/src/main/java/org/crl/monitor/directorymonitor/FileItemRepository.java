@@ -11,15 +11,95 @@
  */
 package org.crl.monitor.directorymonitor;
 
+import java.util.Collection;
 import java.util.List;
 import javax.transaction.Transactional;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 
-public interface FileItemRepository extends PagingAndSortingRepository<FileItem, String> {
+public interface FileItemRepository extends PagingAndSortingRepository<FileItem, Long> {
   FileItem findByFileId(String id);
 
   List<FileItem> findByStatus(Status status);
 
+  /**
+   * Get the next page of a monitored directory's items in file id order. Used to page through every
+   * item by passing the last file id of the previous page.
+   *
+   * @param rootId the id of the monitored directory
+   * @param fileId the file id to start after, empty for the first page
+   * @param pageable the page size
+   * @return up to one page of items with a file id greater than the given one
+   */
+  List<FileItem> findByRootIdAndFileIdGreaterThanOrderByFileIdAsc(
+      String rootId, String fileId, Pageable pageable);
+
+  /**
+   * Give items that do not belong to a monitored directory yet, as stored before directories had
+   * ids, to the directory their file is in.
+   *
+   * @param rootId the id of the monitored directory
+   * @param prefix a like pattern matching the file ids below the directory, escaped with {@code \}
+   * @return the number of items updated
+   */
+  @Transactional
+  @Modifying
+  @Query(
+      "update FileItem i set i.rootId = :rootId"
+          + " where i.rootId is null and i.fileId like :prefix escape '\\'")
+  int assignRoot(@Param("rootId") String rootId, @Param("prefix") String prefix);
+
+  /**
+   * Get the next page of a monitored directory's items in a status that are due to be retried,
+   * ordered by next attempt and id. Used to page through every due item by passing the next attempt
+   * and id of the last item of the previous page, so items that are updated while paging are
+   * neither skipped nor repeated.
+   *
+   * @param rootId the id of the monitored directory
+   * @param status the status
+   * @param now only items with a next attempt at or before this time are returned
+   * @param afterAttempt the next attempt of the last item seen, or {@link Long#MIN_VALUE}
+   * @param afterId the id of the last item seen
+   * @param pageable the page size
+   * @return up to one page of due items
+   */
+  @Query(
+      "select i from FileItem i where i.rootId = :rootId"
+          + " and i.status = :status and i.nextAttempt <= :now"
+          + " and (i.nextAttempt > :afterAttempt"
+          + " or (i.nextAttempt = :afterAttempt and i.id > :afterId))"
+          + " order by i.nextAttempt, i.id")
+  List<FileItem> findDue(
+      @Param("rootId") String rootId,
+      @Param("status") Status status,
+      @Param("now") long now,
+      @Param("afterAttempt") long afterAttempt,
+      @Param("afterId") long afterId,
+      Pageable pageable);
+
+  /**
+   * Count a monitored directory's items in a status.
+   *
+   * @param rootId the id of the monitored directory
+   * @param status the status
+   * @return the number of items
+   */
+  long countByRootIdAndStatus(String rootId, Status status);
+
   @Transactional
   void deleteByFileId(String id);
+
+  /**
+   * Delete the items for several files with a single statement.
+   *
+   * @param fileIds the file ids to delete
+   * @return the number of items deleted
+   */
+  @Transactional
+  @Modifying
+  @Query("delete from FileItem i where i.fileId in :fileIds")
+  int deleteByFileIdIn(@Param("fileIds") Collection<String> fileIds);
 }
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Upgrades a {@code file_item} table created by an earlier version to the current schema. Adding
+ * the not null retry columns and the unique {@code file_id} index to a table that already has rows
+ * cannot be done by Hibernate's schema update, so this must run before the entity manager factory
+ * is created. Tables that are already up to date, or do not exist yet, are left alone.
+ */
+public class FileItemSchemaMigration {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileItemSchemaMigration.class);
+
+  static final String TABLE = "file_item";
+
+  static final String FILE_ID_INDEX = "idx_file_item_file_id";
+
+  static final String STATUS_INDEX = "idx_file_item_status_next_attempt";
+
+  private final DataSource dataSource;
+
+  public FileItemSchemaMigration(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /**
+   * Bring the table up to date.
+   *
+   * @throws SQLException if the table could not be upgraded
+   */
+  public void migrate() throws SQLException {
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      DatabaseMetaData metaData = connection.getMetaData();
+      if (!exists(metaData.getTables(null, null, identifier(metaData, TABLE), null))) {
+        return;
+      }
+      addColumn(metaData, statement, "next_attempt", "bigint default 0 not null");
+      addColumn(metaData, statement, "attempts", "integer default 0 not null");
+      if (!hasIndex(metaData, FILE_ID_INDEX)) {
+        int removed =
+            statement.executeUpdate(
+                "delete from file_item where id not in "
+                    + "(select max(id) from file_item group by file_id)");
+        LOGGER.info("Adding {} index. Removed {} duplicate items.", FILE_ID_INDEX, removed);
+        statement.execute("create unique index " + FILE_ID_INDEX + " on file_item (file_id)");
+      }
+      if (!hasIndex(metaData, STATUS_INDEX)) {
+        LOGGER.info("Adding {} index", STATUS_INDEX);
+        statement.execute("create index " + STATUS_INDEX + " on file_item (status, next_attempt)");
+      }
+    }
+  }
+
+  private static void addColumn(
+      DatabaseMetaData metaData, Statement statement, String column, String definition)
+      throws SQLException {
+    if (!exists(
+        metaData.getColumns(
+            null, null, identifier(metaData, TABLE), identifier(metaData, column)))) {
+      LOGGER.info("Adding {} column to {}", column, TABLE);
+      statement.execute("alter table " + TABLE + " add column " + column + " " + definition);
+    }
+  }
+
+  private static boolean hasIndex(DatabaseMetaData metaData, String index) throws SQLException {
+    try (ResultSet indexes =
+        metaData.getIndexInfo(null, null, identifier(metaData, TABLE), false, false)) {
+      while (indexes.next()) {
+        if (index.equalsIgnoreCase(indexes.getString("INDEX_NAME"))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean exists(ResultSet resultSet) throws SQLException {
+    try (ResultSet rs = resultSet) {
+      return rs.next();
+    }
+  }
+
+  private static String identifier(DatabaseMetaData metaData, String name) throws SQLException {
+    if (metaData.storesUpperCaseIdentifiers()) {
+      return name.toUpperCase();
+    }
+    return metaData.storesLowerCaseIdentifiers() ? name.toLowerCase() : name;
+  }
+}
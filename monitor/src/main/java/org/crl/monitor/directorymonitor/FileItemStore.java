@@ -0,0 +1,311 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write behind cache in front of the {@link FileItemRepository}. Saves and deletes are held in
+ * memory and written in batches once {@code batchSize} changes are pending or {@code flushDelay}
+ * milliseconds have passed, whichever comes first. Reads check the pending changes before going to
+ * the repository so callers always see their own writes.
+ *
+ * <p>A change is only dropped from memory once the batch containing it has been written. If a flush
+ * fails the changes stay pending and are written by the next flush. Changes that are still pending
+ * when the process dies are lost, which leaves the item in the state it had before the event and
+ * the event is picked up again by the startup reconciliation.
+ */
+class FileItemStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileItemStore.class);
+
+  private final FileItemRepository fileItemRepository;
+
+  private final int batchSize;
+
+  private final Map<String, Change> pending = new ConcurrentHashMap<>();
+
+  /** Items moved to a new file id whose move has not been written yet. */
+  private final Set<FileItem> moved = ConcurrentHashMap.newKeySet();
+
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+  private final ScheduledExecutorService executor;
+
+  private final MonitorMetrics metrics;
+
+  /**
+   * Create a store and start flushing in the background.
+   *
+   * @param fileItemRepository the repository to write to
+   * @param batchSize the number of pending changes that triggers a flush
+   * @param flushDelay the longest time in milliseconds a change is kept pending
+   */
+  FileItemStore(FileItemRepository fileItemRepository, int batchSize, long flushDelay) {
+    this(fileItemRepository, batchSize, flushDelay, new MonitorMetrics() {});
+  }
+
+  /**
+   * Create a store that reports how long its repository calls take.
+   *
+   * @param fileItemRepository the repository to write to
+   * @param batchSize the number of pending changes that triggers a flush
+   * @param flushDelay the longest time in milliseconds a change is kept pending
+   * @param metrics receives the repository call times
+   */
+  FileItemStore(
+      FileItemRepository fileItemRepository,
+      int batchSize,
+      long flushDelay,
+      MonitorMetrics metrics) {
+    this.fileItemRepository = fileItemRepository;
+    this.metrics = metrics;
+    this.batchSize = batchSize;
+    this.executor =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "monitor-persistence");
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.scheduleWithFixedDelay(
+        this::flushQuietly, flushDelay, flushDelay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Find the item for a file, including changes that have not been written yet.
+   *
+   * @param fileId the file id
+   * @return the item or null if there is none
+   */
+  FileItem findByFileId(String fileId) {
+    Change change = pending.get(fileId);
+    if (change != null) {
+      return change.delete || change.movedAway ? null : change.item;
+    }
+    return findStored(fileId);
+  }
+
+  /**
+   * Queue an item to be saved.
+   *
+   * @param item the item
+   */
+  void save(FileItem item) {
+    pending.merge(
+        item.getFileId(),
+        new Change(item, false),
+        (previous, change) -> {
+          if (previous.delete && !previous.movedAway && item.getId() == 0) {
+            // the file came back before its delete was written, so reuse the row
+            item.setId(previous.item.getId());
+          }
+          return change;
+        });
+    requestFlushIfFull();
+  }
+
+  /**
+   * Queue an item to be saved unless there is already a pending change for its file. Used for items
+   * read straight from the repository, which are older than any pending change.
+   *
+   * @param item the item
+   * @return true if the item was queued
+   */
+  boolean saveIfAbsent(FileItem item) {
+    boolean saved = pending.putIfAbsent(item.getFileId(), new Change(item, false)) == null;
+    if (saved) {
+      requestFlushIfFull();
+    }
+    return saved;
+  }
+
+  /**
+   * Queue an item whose file has moved to be saved under its new file id. The item keeps its row,
+   * and until the move is written the old file id reads as having no item.
+   *
+   * @param fromFileId the file id the item had before the move
+   * @param item the item, already carrying its new file id
+   */
+  void move(String fromFileId, FileItem item) {
+    moved.add(item);
+    save(item);
+    pending.put(fromFileId, new Change(item, false, true));
+  }
+
+  /**
+   * Check whether a file id has no item and no pending change, so an item can be moved to it.
+   *
+   * @param fileId the file id
+   * @return true if nothing is stored for the file id
+   */
+  boolean isFree(String fileId) {
+    return !pending.containsKey(fileId) && findStored(fileId) == null;
+  }
+
+  /**
+   * Queue an item to be deleted.
+   *
+   * @param item the item
+   */
+  void delete(FileItem item) {
+    pending.put(item.getFileId(), new Change(item, true));
+    requestFlushIfFull();
+  }
+
+  /**
+   * Get the number of changes waiting to be written.
+   *
+   * @return the number of pending changes
+   */
+  int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Write all pending changes. Saves are written with a single {@code saveAll} and deletes with a
+   * single bulk delete. Changes made while the flush is running stay pending.
+   *
+   * @throws RuntimeException if the repository could not be written, in which case the changes stay
+   *     pending
+   */
+  synchronized void flush() {
+    flushRequested.set(false);
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<Map.Entry<String, Change>> saves = new ArrayList<>();
+    List<Map.Entry<String, Change>> deletes = new ArrayList<>();
+    List<Map.Entry<String, Change>> moves = new ArrayList<>();
+    for (Map.Entry<String, Change> entry : pending.entrySet()) {
+      Change change = entry.getValue();
+      (change.movedAway ? moves : change.delete ? deletes : saves)
+          .add(Map.entry(entry.getKey(), change));
+    }
+    long start = System.currentTimeMillis();
+    if (!moved.isEmpty()) {
+      // moved items are written first so their old file ids are free for items saved after them
+      List<Map.Entry<String, Change>> movedSaves = new ArrayList<>();
+      saves.removeIf(entry -> moved.contains(entry.getValue().item) && movedSaves.add(entry));
+      writeSaves(movedSaves);
+      moved.removeIf(item -> !pending.containsKey(item.getFileId()));
+    }
+    // the old file id of a moved item is free once the item has been saved under its new one
+    moves.forEach(
+        entry -> {
+          if (!pending.containsKey(entry.getValue().item.getFileId())) {
+            pending.remove(entry.getKey(), entry.getValue());
+          }
+        });
+    writeSaves(saves);
+    if (!deletes.isEmpty()) {
+      List<String> fileIds = new ArrayList<>(deletes.size());
+      deletes.forEach(entry -> fileIds.add(entry.getKey()));
+      long deleteStart = System.nanoTime();
+      try {
+        fileItemRepository.deleteByFileIdIn(fileIds);
+      } finally {
+        metrics.repositoryCalled("deleteByFileIdIn", System.nanoTime() - deleteStart);
+      }
+      deletes.forEach(entry -> pending.remove(entry.getKey(), entry.getValue()));
+    }
+    LOGGER.debug(
+        "Wrote {} saved, {} moved and {} deleted items in {} ms",
+        saves.size(),
+        moves.size(),
+        deletes.size(),
+        System.currentTimeMillis() - start);
+  }
+
+  private void writeSaves(List<Map.Entry<String, Change>> saves) {
+    if (saves.isEmpty()) {
+      return;
+    }
+    List<FileItem> items = new ArrayList<>(saves.size());
+    saves.forEach(entry -> items.add(entry.getValue().item));
+    long start = System.nanoTime();
+    try {
+      fileItemRepository.saveAll(items);
+    } finally {
+      metrics.repositoryCalled("saveAll", System.nanoTime() - start);
+    }
+    saves.forEach(entry -> pending.remove(entry.getKey(), entry.getValue()));
+  }
+
+  private FileItem findStored(String fileId) {
+    long start = System.nanoTime();
+    try {
+      return fileItemRepository.findByFileId(fileId);
+    } finally {
+      metrics.repositoryCalled("findByFileId", System.nanoTime() - start);
+    }
+  }
+
+  /** Write the remaining changes and stop flushing in the background. */
+  void shutdown() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(1000, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flushQuietly();
+    if (!pending.isEmpty()) {
+      LOGGER.warn("{} item changes could not be written before shutdown", pending.size());
+    }
+  }
+
+  private void requestFlushIfFull() {
+    if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+      try {
+        executor.execute(this::flushQuietly);
+      } catch (RejectedExecutionException e) {
+        flushRequested.set(false);
+      }
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Could not write {} item changes. Will retry.", pending.size(), e);
+    }
+  }
+
+  private static class Change {
+    private final FileItem item;
+    private final boolean delete;
+    private final boolean movedAway;
+
+    Change(FileItem item, boolean delete) {
+      this(item, delete, false);
+    }
+
+    Change(FileItem item, boolean delete, boolean movedAway) {
+      this.item = item;
+      this.delete = delete;
+      this.movedAway = movedAway;
+    }
+  }
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+
+/**
+ * Implemented by {@link org.apache.commons.io.monitor.FileAlterationListener}s that want to be told
+ * about files that were moved within the monitored tree. A {@link SafeFileAlterationObserver}
+ * reports a file that disappeared from one path and appeared at another with the same file key,
+ * size and last modified time as a move instead of a delete and a create. Listeners that do not
+ * implement this interface still receive the delete and the create.
+ */
+public interface FileMoveListener {
+
+  /**
+   * File moved event.
+   *
+   * @param from the path the file was at
+   * @param to the path the file is now at
+   */
+  void onFileMove(File from, File to);
+}
@@ -0,0 +1,505 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact record of a directory tree as seen by a single scan. Entries are stored in parallel
+ * primitive arrays indexed by entry number, with entry 0 being the root directory. The children of
+ * a directory occupy a contiguous, name ordered range of entries. Names are ids into a shared
+ * {@link NameTable}.
+ *
+ * <p>With a million entries a snapshot uses about 59 bytes per file when names repeat across
+ * directories and 92 bytes per file when every name is unique, including the file keys kept for
+ * move detection, as measured by FileTreeSnapshotTest.
+ *
+ * <p>Snapshots are built by {@link Builder} and are not modified afterwards, unless they are handed
+ * back to a builder for their arrays to be reused.
+ *
+ * <p>A snapshot can be written to a file and read back with {@link #write(Path, String)} and {@link
+ * #read(Path, String)}. The file holds the name table and the devices of the file keys followed by
+ * each entry array in turn and ends with a CRC32 of everything before it.
+ */
+final class FileTreeSnapshot {
+
+  static final int ROOT = 0;
+
+  private static final byte DIRECTORY = 1;
+
+  /** Set on a directory whose recorded modified time may be newer than its recorded children. */
+  private static final byte STALE_LISTING = 2;
+
+  private static final int IDLE_LEVEL_SHIFT = 2;
+
+  /** The highest idle level the flags can hold. */
+  static final int MAX_IDLE_LEVEL = 30;
+
+  private static final int MAGIC = 0x46545331;
+
+  private static final int VERSION = 2;
+
+  private final NameTable names;
+  private int size;
+  private int[] parent;
+  private int[] name;
+  private int[] firstChild;
+  private int[] childCount;
+  private long[] lastModified;
+  private long[] length;
+  /** The device of each entry's file key, as one more than its index in devices, 0 for none. */
+  private int[] fileDevice;
+
+  private long[] fileInode;
+
+  /** The devices of the tree's file keys. A tree usually spans a single device. */
+  private long[] devices = new long[1];
+
+  private int deviceCount;
+  private byte[] flags;
+
+  private FileTreeSnapshot(NameTable names, int capacity) {
+    this.names = names;
+    allocate(capacity);
+  }
+
+  /**
+   * Get the number of entries including the root.
+   *
+   * @return the number of entries
+   */
+  int size() {
+    return size;
+  }
+
+  NameTable getNames() {
+    return names;
+  }
+
+  int getParent(int entry) {
+    return parent[entry];
+  }
+
+  int getNameId(int entry) {
+    return name[entry];
+  }
+
+  String getName(int entry) {
+    return names.get(name[entry]);
+  }
+
+  int getFirstChild(int entry) {
+    return firstChild[entry];
+  }
+
+  int getChildCount(int entry) {
+    return childCount[entry];
+  }
+
+  boolean isDirectory(int entry) {
+    return (flags[entry] & DIRECTORY) != 0;
+  }
+
+  long getLastModified(int entry) {
+    return lastModified[entry];
+  }
+
+  /**
+   * Get how many scans in a row a directory has been checked and found unchanged, up to the cap in
+   * force when it was recorded.
+   *
+   * @param entry the entry
+   * @return the idle level, 0 for files and recently changed directories
+   */
+  int getIdleLevel(int entry) {
+    return (flags[entry] & 0xff) >>> IDLE_LEVEL_SHIFT;
+  }
+
+  /**
+   * Check whether a directory's children were carried over from an earlier scan after its modified
+   * time was seen to change, so its modified time can not be used to tell whether it has changed.
+   *
+   * @param entry the entry
+   * @return true if the directory must be listed before its modified time is trusted
+   */
+  boolean isListingStale(int entry) {
+    return (flags[entry] & STALE_LISTING) != 0;
+  }
+
+  long getLength(int entry) {
+    return length[entry];
+  }
+
+  /**
+   * Get the device part of the file system's key for an entry.
+   *
+   * @param entry the entry
+   * @return the device, or 0 if there is no file key
+   */
+  long getFileDevice(int entry) {
+    int device = fileDevice[entry];
+    return device == 0 ? 0L : devices[device - 1];
+  }
+
+  /**
+   * Get the inode part of the file system's key for an entry.
+   *
+   * @param entry the entry
+   * @return the inode, or 0 if there is no file key
+   */
+  long getFileInode(int entry) {
+    return fileInode[entry];
+  }
+
+  /**
+   * Rebuild the file for an entry by walking up its parents.
+   *
+   * @param entry the entry
+   * @param root the file of the root entry
+   * @return the file for the entry
+   */
+  File getFile(int entry, File root) {
+    if (entry == ROOT) {
+      return root;
+    }
+    return new File(getFile(parent[entry], root), getName(entry));
+  }
+
+  /**
+   * Get the approximate number of heap bytes used by the entry arrays and the name table.
+   *
+   * @return the memory used in bytes
+   */
+  long memoryUsage() {
+    return 4L
+            * (parent.length
+                + name.length
+                + firstChild.length
+                + childCount.length
+                + fileDevice.length)
+        + 8L * (lastModified.length + length.length + fileInode.length + devices.length)
+        + flags.length
+        + names.memoryUsage();
+  }
+
+  /**
+   * Write the snapshot to a file. The snapshot is written to a temporary file first and moved into
+   * place, so a reader never sees a partly written snapshot.
+   *
+   * @param path the file to write
+   * @param root the path of the root directory, checked when the snapshot is read back
+   * @throws IOException if the snapshot could not be written
+   */
+  void write(Path path, String root) throws IOException {
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    CRC32 crc = new CRC32();
+    try (DataOutputStream out =
+        new DataOutputStream(
+            new CheckedOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16), crc))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      byte[] rootBytes = root.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(rootBytes.length);
+      out.write(rootBytes);
+      names.write(out);
+      out.writeInt(deviceCount);
+      for (int i = 0; i < deviceCount; i++) {
+        out.writeLong(devices[i]);
+      }
+      out.writeInt(size);
+      for (int[] array : new int[][] {parent, name, firstChild, childCount, fileDevice}) {
+        for (int i = 0; i < size; i++) {
+          out.writeInt(array[i]);
+        }
+      }
+      for (long[] array : new long[][] {lastModified, length, fileInode}) {
+        for (int i = 0; i < size; i++) {
+          out.writeLong(array[i]);
+        }
+      }
+      out.write(flags, 0, size);
+      // the checksum covers everything written before it
+      out.writeLong(crc.getValue());
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Read a snapshot written by {@link #write(Path, String)}. The file is memory mapped and read
+   * straight into the entry arrays.
+   *
+   * @param path the file to read
+   * @param root the path of the root directory the snapshot must be for
+   * @return the snapshot, with a name table of its own
+   * @throws IOException if the file could not be read, is corrupt or is for another root
+   */
+  static FileTreeSnapshot read(Path path, String root) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long fileSize = channel.size();
+      if (fileSize < 8 || fileSize > Integer.MAX_VALUE) {
+        throw new IOException("Invalid snapshot size " + fileSize);
+      }
+      MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+      CRC32 crc = new CRC32();
+      ByteBuffer body = in.duplicate();
+      body.limit((int) fileSize - 8);
+      crc.update(body);
+      if (crc.getValue() != in.getLong((int) fileSize - 8)) {
+        throw new IOException("Snapshot checksum does not match");
+      }
+      in.limit((int) fileSize - 8);
+      try {
+        return read(in, root);
+      } catch (IllegalArgumentException | BufferUnderflowException e) {
+        throw new IOException("Invalid snapshot", e);
+      }
+    }
+  }
+
+  private static FileTreeSnapshot read(ByteBuffer in, String root) throws IOException {
+    if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+      throw new IOException("Not a snapshot file or an unsupported version");
+    }
+    int rootLength = in.getInt();
+    if (rootLength < 0 || rootLength > in.remaining()) {
+      throw new IllegalArgumentException("Invalid root length " + rootLength);
+    }
+    byte[] rootBytes = new byte[rootLength];
+    in.get(rootBytes);
+    String snapshotRoot = new String(rootBytes, StandardCharsets.UTF_8);
+    if (!snapshotRoot.equals(root)) {
+      throw new IOException("Snapshot is for " + snapshotRoot + " not " + root);
+    }
+    NameTable names = NameTable.read(in);
+    int deviceCount = in.getInt();
+    if (deviceCount < 0 || (long) deviceCount * 8 > in.remaining()) {
+      throw new IllegalArgumentException("Invalid device count " + deviceCount);
+    }
+    long[] devices = new long[Math.max(1, deviceCount)];
+    in.asLongBuffer().get(devices, 0, deviceCount);
+    in.position(in.position() + 8 * deviceCount);
+    int size = in.getInt();
+    if (size < 1 || (long) size * 45 != in.remaining()) {
+      throw new IllegalArgumentException("Invalid entry count " + size);
+    }
+    FileTreeSnapshot snapshot = new FileTreeSnapshot(names, size);
+    snapshot.size = size;
+    snapshot.devices = devices;
+    snapshot.deviceCount = deviceCount;
+    for (int[] array :
+        new int[][] {
+          snapshot.parent,
+          snapshot.name,
+          snapshot.firstChild,
+          snapshot.childCount,
+          snapshot.fileDevice
+        }) {
+      in.asIntBuffer().get(array, 0, size);
+      in.position(in.position() + 4 * size);
+    }
+    for (long[] array : new long[][] {snapshot.lastModified, snapshot.length, snapshot.fileInode}) {
+      in.asLongBuffer().get(array, 0, size);
+      in.position(in.position() + 8 * size);
+    }
+    in.get(snapshot.flags, 0, size);
+    snapshot.validate();
+    return snapshot;
+  }
+
+  /** Check that every entry refers to names and entries that exist. */
+  private void validate() {
+    for (int i = 0; i < size; i++) {
+      if ((i != ROOT && (parent[i] < 0 || parent[i] >= i))
+          || (i != ROOT && (name[i] < 0 || name[i] >= names.size()))
+          || childCount[i] < 0
+          || fileDevice[i] < 0
+          || fileDevice[i] > deviceCount
+          || (childCount[i] > 0 && (firstChild[i] <= i || firstChild[i] + childCount[i] > size))) {
+        throw new IllegalArgumentException("Invalid entry " + i);
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    parent = new int[capacity];
+    name = new int[capacity];
+    firstChild = new int[capacity];
+    childCount = new int[capacity];
+    lastModified = new long[capacity];
+    length = new long[capacity];
+    fileDevice = new int[capacity];
+    fileInode = new long[capacity];
+    flags = new byte[capacity];
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= parent.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, parent.length + (parent.length >> 1));
+    parent = Arrays.copyOf(parent, newCapacity);
+    name = Arrays.copyOf(name, newCapacity);
+    firstChild = Arrays.copyOf(firstChild, newCapacity);
+    childCount = Arrays.copyOf(childCount, newCapacity);
+    lastModified = Arrays.copyOf(lastModified, newCapacity);
+    length = Arrays.copyOf(length, newCapacity);
+    fileDevice = Arrays.copyOf(fileDevice, newCapacity);
+    fileInode = Arrays.copyOf(fileInode, newCapacity);
+    flags = Arrays.copyOf(flags, newCapacity);
+  }
+
+  /** Builds a snapshot one directory at a time. */
+  static final class Builder {
+
+    private final FileTreeSnapshot snapshot;
+
+    /**
+     * Create a builder.
+     *
+     * @param names the name table the snapshot will use
+     * @param recycle a snapshot that is no longer needed whose arrays can be reused, or null
+     */
+    Builder(NameTable names, FileTreeSnapshot recycle) {
+      if (recycle != null && recycle.names == names) {
+        snapshot = recycle;
+      } else {
+        snapshot = new FileTreeSnapshot(names, recycle == null ? 1024 : recycle.parent.length);
+      }
+      snapshot.size = 1;
+      snapshot.deviceCount = 0;
+      snapshot.parent[ROOT] = -1;
+      snapshot.flags[ROOT] = DIRECTORY;
+      snapshot.childCount[ROOT] = 0;
+    }
+
+    NameTable getNames() {
+      return snapshot.names;
+    }
+
+    /**
+     * Reserve a contiguous range of entries for the children of a directory.
+     *
+     * @param directory the directory entry
+     * @param count the number of children
+     * @return the index of the first child
+     */
+    int addChildren(int directory, int count) {
+      int first = snapshot.size;
+      snapshot.ensureCapacity(first + count);
+      snapshot.firstChild[directory] = first;
+      snapshot.childCount[directory] = count;
+      for (int i = first; i < first + count; i++) {
+        snapshot.parent[i] = directory;
+        snapshot.childCount[i] = 0;
+        snapshot.firstChild[i] = 0;
+      }
+      snapshot.size = first + count;
+      return first;
+    }
+
+    /**
+     * Fill in a reserved entry.
+     *
+     * @param entry the entry index
+     * @param nameId the name id
+     * @param directory true if the entry is a directory
+     * @param lastModified the last modified time
+     * @param length the length, zero for directories
+     */
+    void set(int entry, int nameId, boolean directory, long lastModified, long length) {
+      set(entry, nameId, directory, lastModified, length, 0L, 0L);
+    }
+
+    /**
+     * Fill in a reserved entry.
+     *
+     * @param entry the entry index
+     * @param nameId the name id
+     * @param directory true if the entry is a directory
+     * @param lastModified the last modified time
+     * @param length the length, zero for directories
+     * @param fileDevice the device of the file key, 0 if there is none
+     * @param fileInode the inode of the file key, 0 if there is none
+     */
+    void set(
+        int entry,
+        int nameId,
+        boolean directory,
+        long lastModified,
+        long length,
+        long fileDevice,
+        long fileInode) {
+      snapshot.name[entry] = nameId;
+      snapshot.flags[entry] = directory ? DIRECTORY : 0;
+      snapshot.lastModified[entry] = lastModified;
+      snapshot.length[entry] = length;
+      snapshot.fileDevice[entry] = fileDevice == 0 && fileInode == 0 ? 0 : device(fileDevice);
+      snapshot.fileInode[entry] = fileInode;
+    }
+
+    /** Get the index plus one of a device, adding it to the snapshot's devices if it is new. */
+    private int device(long device) {
+      long[] devices = snapshot.devices;
+      for (int i = 0; i < snapshot.deviceCount; i++) {
+        if (devices[i] == device) {
+          return i + 1;
+        }
+      }
+      if (snapshot.deviceCount == devices.length) {
+        snapshot.devices = devices = Arrays.copyOf(devices, devices.length * 2);
+      }
+      devices[snapshot.deviceCount] = device;
+      return ++snapshot.deviceCount;
+    }
+
+    long getLastModified(int entry) {
+      return snapshot.lastModified[entry];
+    }
+
+    /**
+     * Record the scheduling state of a filled in directory entry. Ignored for files.
+     *
+     * @param entry the entry index
+     * @param idleLevel the idle level, at most {@link #MAX_IDLE_LEVEL}
+     * @param staleListing true if the recorded modified time may be newer than the children
+     */
+    void setScanState(int entry, int idleLevel, boolean staleListing) {
+      if ((snapshot.flags[entry] & DIRECTORY) != 0) {
+        snapshot.flags[entry] =
+            (byte)
+                (DIRECTORY
+                    | (staleListing ? STALE_LISTING : 0)
+                    | Math.min(idleLevel, MAX_IDLE_LEVEL) << IDLE_LEVEL_SHIFT);
+      }
+    }
+
+    FileTreeSnapshot build() {
+      return snapshot;
+    }
+  }
+}
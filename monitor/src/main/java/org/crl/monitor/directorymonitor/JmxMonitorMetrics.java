@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records a monitor's measurements in memory and exposes them as an MXBean on the platform MBean
+ * server, for applications that do not use a metrics library. The bean is registered as {@code
+ * org.crl.monitor:type=DirectoryMonitor,root=<root id>} when the monitor starts and unregistered
+ * when it stops. Use one instance per monitor.
+ */
+public class JmxMonitorMetrics implements MonitorMetrics, MonitorMetricsMXBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JmxMonitorMetrics.class);
+
+  private static final double NANOS_PER_MILLI = 1_000_000d;
+
+  private final MBeanServer server;
+
+  private volatile DirectoryMonitor monitor;
+
+  private ObjectName name;
+
+  private final Timing scans = new Timing();
+
+  private volatile long lastScanNanos;
+
+  private volatile int lastFilesVisited;
+
+  private final Map<String, LongAdder> events = new ConcurrentHashMap<>();
+
+  private final Map<String, Timing> processing = new ConcurrentHashMap<>();
+
+  private final Timing completionWaits = new Timing();
+
+  private final Map<String, Timing> repository = new ConcurrentHashMap<>();
+
+  /** Create metrics registered on the platform MBean server. */
+  public JmxMonitorMetrics() {
+    this(ManagementFactory.getPlatformMBeanServer());
+  }
+
+  /**
+   * Create metrics registered on an MBean server.
+   *
+   * @param server the server to register the bean with
+   */
+  public JmxMonitorMetrics(MBeanServer server) {
+    this.server = server;
+  }
+
+  /**
+   * Get the name the bean for a monitored directory is registered under.
+   *
+   * @param rootId the id of the monitored directory
+   * @return the object name
+   * @throws JMException if the root id does not make a valid name
+   */
+  public static ObjectName objectName(String rootId) throws JMException {
+    return new ObjectName("org.crl.monitor:type=DirectoryMonitor,root=" + ObjectName.quote(rootId));
+  }
+
+  @Override
+  public synchronized void bind(DirectoryMonitor monitor) {
+    this.monitor = monitor;
+    try {
+      name = objectName(monitor.getRootId());
+      server.registerMBean(this, name);
+    } catch (JMException e) {
+      LOGGER.warn("Could not register metrics for {} with JMX", monitor.getRootId(), e);
+      name = null;
+    }
+  }
+
+  @Override
+  public synchronized void unbind(DirectoryMonitor monitor) {
+    if (name == null) {
+      return;
+    }
+    try {
+      server.unregisterMBean(name);
+    } catch (JMException e) {
+      LOGGER.debug("Could not unregister {}", name, e);
+    }
+    name = null;
+  }
+
+  @Override
+  public void scanned(long nanos, int filesVisited) {
+    scans.record(nanos);
+    lastScanNanos = nanos;
+    lastFilesVisited = filesVisited;
+  }
+
+  @Override
+  public void event(String type, String outcome) {
+    events.computeIfAbsent(type + '.' + outcome, key -> new LongAdder()).increment();
+  }
+
+  @Override
+  public void processed(String processorId, String type, boolean success, long nanos) {
+    processing
+        .computeIfAbsent(
+            processorId + '.' + type + (success ? ".success" : ".failure"), key -> new Timing())
+        .record(nanos);
+  }
+
+  @Override
+  public void completionWaited(long nanos) {
+    completionWaits.record(nanos);
+  }
+
+  @Override
+  public void repositoryCalled(String operation, long nanos) {
+    repository.computeIfAbsent(operation, key -> new Timing()).record(nanos);
+  }
+
+  @Override
+  public String getRootId() {
+    DirectoryMonitor bound = monitor;
+    return bound == null ? null : bound.getRootId();
+  }
+
+  @Override
+  public int getQueueDepth() {
+    DirectoryMonitor bound = monitor;
+    return bound == null ? 0 : bound.getQueueDepth();
+  }
+
+  @Override
+  public int getPendingCompletionCount() {
+    DirectoryMonitor bound = monitor;
+    return bound == null ? 0 : bound.getPendingCompletionCount();
+  }
+
+  @Override
+  public Map<String, Long> getPendingRetryCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    DirectoryMonitor bound = monitor;
+    if (bound != null) {
+      bound.getPendingRetryCounts().forEach((status, count) -> counts.put(status.name(), count));
+    }
+    return counts;
+  }
+
+  @Override
+  public long getScanCount() {
+    return scans.count.sum();
+  }
+
+  @Override
+  public double getLastScanMillis() {
+    return lastScanNanos / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getMeanScanMillis() {
+    return scans.meanMillis();
+  }
+
+  @Override
+  public double getMaxScanMillis() {
+    return scans.maxMillis();
+  }
+
+  @Override
+  public int getLastFilesVisited() {
+    return lastFilesVisited;
+  }
+
+  @Override
+  public Map<String, Long> getEventCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    events.forEach((key, count) -> counts.put(key, count.sum()));
+    return counts;
+  }
+
+  @Override
+  public Map<String, Long> getProcessingCounts() {
+    return counts(processing);
+  }
+
+  @Override
+  public Map<String, Double> getMeanProcessingMillis() {
+    return millis(processing, Timing::meanMillis);
+  }
+
+  @Override
+  public Map<String, Double> getMaxProcessingMillis() {
+    return millis(processing, Timing::maxMillis);
+  }
+
+  @Override
+  public long getCompletionWaitCount() {
+    return completionWaits.count.sum();
+  }
+
+  @Override
+  public double getMeanCompletionWaitMillis() {
+    return completionWaits.meanMillis();
+  }
+
+  @Override
+  public double getMaxCompletionWaitMillis() {
+    return completionWaits.maxMillis();
+  }
+
+  @Override
+  public Map<String, Long> getRepositoryCallCounts() {
+    return counts(repository);
+  }
+
+  @Override
+  public Map<String, Double> getMeanRepositoryMillis() {
+    return millis(repository, Timing::meanMillis);
+  }
+
+  @Override
+  public Map<String, Double> getMaxRepositoryMillis() {
+    return millis(repository, Timing::maxMillis);
+  }
+
+  private static Map<String, Long> counts(Map<String, Timing> timings) {
+    Map<String, Long> counts = new TreeMap<>();
+    timings.forEach((key, timing) -> counts.put(key, timing.count.sum()));
+    return counts;
+  }
+
+  private static Map<String, Double> millis(
+      Map<String, Timing> timings, ToDoubleFunction<Timing> value) {
+    Map<String, Double> millis = new TreeMap<>();
+    timings.forEach((key, timing) -> millis.put(key, value.applyAsDouble(timing)));
+    return millis;
+  }
+
+  /** The count, total and maximum of a set of times. */
+  private static final class Timing {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    void record(long nanos) {
+      count.increment();
+      total.add(nanos);
+      max.accumulate(nanos);
+    }
+
+    double meanMillis() {
+      long n = count.sum();
+      return n == 0 ? 0d : total.sum() / (double) n / NANOS_PER_MILLI;
+    }
+
+    double maxMillis() {
+      return max.get() / NANOS_PER_MILLI;
+    }
+  }
+}
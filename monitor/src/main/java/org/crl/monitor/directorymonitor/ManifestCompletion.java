@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file is complete once it is listed in a manifest. Manifests are files whose name matches a
+ * glob, listing one completed file per line relative to the manifest's directory. Blank lines and
+ * lines starting with {@code #} are ignored. A manifest may list files before they appear.
+ *
+ * <p>A listing is used up when the file it names is released, so a file rewritten later waits to be
+ * listed again. Rewriting a manifest does not renew the listings it has already used, but a new
+ * manifest, or one that was deleted and written again, does. Listings for files that never appear
+ * are kept until their manifest is deleted or the monitor stops.
+ */
+final class ManifestCompletion extends SignalledCompletion {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ManifestCompletion.class);
+
+  private final Pattern manifestName;
+
+  /** The manifest each listed file that has not been released yet was listed in. */
+  private final Map<String, String> listed = new ConcurrentHashMap<>();
+
+  /** The files each manifest has released, which its later versions do not release again. */
+  private final Map<String, Set<String>> consumed = new ConcurrentHashMap<>();
+
+  /**
+   * Create a strategy.
+   *
+   * @param manifestFiles a glob matching the names of manifest files, such as {@code *.manifest}
+   */
+  ManifestCompletion(String manifestFiles) {
+    this.manifestName = Pattern.compile(MonitorFileFilter.toRegEx(manifestFiles));
+  }
+
+  @Override
+  boolean isComplete(File file) {
+    String path = file.getAbsolutePath();
+    String manifest = listed.remove(path);
+    if (manifest == null) {
+      return false;
+    }
+    consumed(manifest).add(path);
+    return true;
+  }
+
+  @Override
+  public boolean isSignalFile(File file) {
+    return manifestName.matcher(file.getName()).matches();
+  }
+
+  @Override
+  public void signalled(File manifest) {
+    File directory = manifest.getAbsoluteFile().getParentFile();
+    String manifestPath = manifest.getAbsolutePath();
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      LOGGER.warn("Could not read manifest {}", manifest, e);
+      return;
+    }
+    Set<String> paths = new HashSet<>();
+    for (String line : lines) {
+      String name = line.trim();
+      if (!name.isEmpty() && !name.startsWith("#")) {
+        paths.add(new File(directory, name).getAbsolutePath());
+      }
+    }
+    Set<String> released = consumed(manifestPath);
+    // a file dropped from the manifest can be listed again by a later version
+    released.retainAll(paths);
+    for (String path : paths) {
+      if (released.contains(path)) {
+        continue;
+      }
+      listed.put(path, manifestPath);
+      File file = new File(path);
+      if (release(file)) {
+        listed.remove(path, manifestPath);
+        released.add(path);
+      }
+    }
+  }
+
+  @Override
+  public void signalRemoved(File manifest) {
+    String manifestPath = manifest.getAbsolutePath();
+    consumed.remove(manifestPath);
+    listed.values().removeIf(manifestPath::equals);
+  }
+
+  private Set<String> consumed(String manifest) {
+    return consumed.computeIfAbsent(manifest, key -> ConcurrentHashMap.newKeySet());
+  }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+
+/**
+ * A file is complete once a marker file named after it plus a suffix exists, for example {@code
+ * data.csv.done} for {@code data.csv}. Markers are left in place for the producer to clean up.
+ */
+final class MarkerCompletion extends SignalledCompletion {
+
+  private final String suffix;
+
+  MarkerCompletion(String suffix) {
+    this.suffix = suffix;
+  }
+
+  @Override
+  boolean isComplete(File file) {
+    return new File(file.getPath() + suffix).isFile();
+  }
+
+  @Override
+  public boolean isSignalFile(File file) {
+    return file.getName().endsWith(suffix);
+  }
+
+  @Override
+  public void signalled(File marker) {
+    String path = marker.getPath();
+    release(new File(path.substring(0, path.length() - suffix.length())));
+  }
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which files are monitored and which directories are descended into. Hidden files and
+ * directories, whose names start with a dot, are never monitored.
+ *
+ * <p>Files must match the file regular expression, match one of the file include rules if there are
+ * any and match none of the file exclude rules. Directories must match one of the directory include
+ * rules if there are any and none of the directory exclude rules. A directory that is not accepted
+ * is not listed, so nothing below it is monitored.
+ *
+ * <p>Rules are globs. {@code *} and {@code ?} match any characters and a single character within a
+ * name and {@code **} matches across directories. A rule without a {@code /} is matched against the
+ * name alone, for example {@code *.tmp} or {@code archive}. A rule with a {@code /} is matched
+ * against the path relative to the monitored directory, for example {@code incoming/tmp}. Rules are
+ * compiled once, and rules that are plain names or name prefixes and suffixes are matched without a
+ * regular expression.
+ *
+ * <p>The type of a file is passed in by callers that have already read its attributes, so filtering
+ * does not read them again.
+ */
+final class MonitorFileFilter implements FileFilter {
+
+  private final String rootPath;
+  private final String absoluteRootPath;
+  private final Pattern fileRegEx;
+  private final List<Rule> includeFiles;
+  private final List<Rule> excludeFiles;
+  private final List<Rule> includeDirectories;
+  private final List<Rule> excludeDirectories;
+  private Predicate<File> signalFiles = file -> false;
+
+  /**
+   * Create a filter.
+   *
+   * @param root the monitored directory
+   * @param fileRegEx the regular expression file names must match, or null to accept any name
+   * @param includeFiles globs of which files must match one, or empty to include every file
+   * @param excludeFiles globs of files that are not monitored
+   * @param includeDirectories globs of which directories must match one, or empty to include every
+   *     directory
+   * @param excludeDirectories globs of directories that are not descended into
+   */
+  MonitorFileFilter(
+      File root,
+      String fileRegEx,
+      List<String> includeFiles,
+      List<String> excludeFiles,
+      List<String> includeDirectories,
+      List<String> excludeDirectories) {
+    this.rootPath = root.getPath();
+    this.absoluteRootPath = root.getAbsolutePath();
+    this.fileRegEx = fileRegEx == null ? null : Pattern.compile(fileRegEx);
+    this.includeFiles = compile(includeFiles);
+    this.excludeFiles = compile(excludeFiles);
+    this.includeDirectories = compile(includeDirectories);
+    this.excludeDirectories = compile(excludeDirectories);
+  }
+
+  /**
+   * Accept the signal files of a completion strategy whatever the rules, so the monitor sees them.
+   *
+   * @param signalFiles matches signal files
+   */
+  void setSignalFiles(Predicate<File> signalFiles) {
+    this.signalFiles = signalFiles;
+  }
+
+  /**
+   * Check a file, reading whether it is a directory. Prefer {@link #accept(File, boolean)} where
+   * the attributes are already known.
+   *
+   * @param file the file
+   * @return true if the file is monitored or the directory is descended into
+   */
+  @Override
+  public boolean accept(File file) {
+    return accept(file, file.isDirectory());
+  }
+
+  /**
+   * Check a file.
+   *
+   * @param file the file
+   * @param directory true if the file is a directory
+   * @return true if the file is monitored or the directory is descended into
+   */
+  boolean accept(File file, boolean directory) {
+    String name = file.getName();
+    if (name.startsWith(".")) {
+      return false;
+    }
+    if (directory) {
+      return (includeDirectories.isEmpty() || matchesAny(includeDirectories, file, name))
+          && !matchesAny(excludeDirectories, file, name);
+    }
+    if (signalFiles.test(file)) {
+      return true;
+    }
+    return (fileRegEx == null || fileRegEx.matcher(name).matches())
+        && (includeFiles.isEmpty() || matchesAny(includeFiles, file, name))
+        && !matchesAny(excludeFiles, file, name);
+  }
+
+  private boolean matchesAny(List<Rule> rules, File file, String name) {
+    String path = null;
+    for (Rule rule : rules) {
+      if (rule.path) {
+        if (path == null) {
+          path = relativePath(file);
+        }
+        if (rule.matcher.test(path)) {
+          return true;
+        }
+      } else if (rule.matcher.test(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Get the path of a file below the monitored directory with {@code /} separators. */
+  private String relativePath(File file) {
+    String path = file.getPath();
+    String relative = path;
+    if (isBelow(path, rootPath)) {
+      relative = path.substring(rootPath.length() + 1);
+    } else if (isBelow(path, absoluteRootPath)) {
+      relative = path.substring(absoluteRootPath.length() + 1);
+    }
+    return File.separatorChar == '/' ? relative : relative.replace(File.separatorChar, '/');
+  }
+
+  private static boolean isBelow(String path, String root) {
+    return path.length() > root.length()
+        && path.startsWith(root)
+        && path.charAt(root.length()) == File.separatorChar;
+  }
+
+  private static List<Rule> compile(List<String> globs) {
+    if (globs == null || globs.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Rule> rules = new ArrayList<>();
+    for (String glob : globs) {
+      String trimmed = glob.trim();
+      while (trimmed.endsWith("/")) {
+        trimmed = trimmed.substring(0, trimmed.length() - 1);
+      }
+      if (!trimmed.isEmpty()) {
+        rules.add(new Rule(trimmed));
+      }
+    }
+    return rules;
+  }
+
+  /**
+   * Convert a glob to a regular expression.
+   *
+   * @param glob the glob
+   * @return the regular expression
+   */
+  static String toRegEx(String glob) {
+    StringBuilder regEx = new StringBuilder();
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+        regEx.append(".*");
+        i++;
+      } else if (c == '*') {
+        regEx.append("[^/]*");
+      } else if (c == '?') {
+        regEx.append("[^/]");
+      } else {
+        if ("\\.[]{}()<>+-=!^$|".indexOf(c) >= 0) {
+          regEx.append('\\');
+        }
+        regEx.append(c);
+      }
+    }
+    return regEx.toString();
+  }
+
+  private static boolean hasWildcard(String s) {
+    return s.indexOf('*') >= 0 || s.indexOf('?') >= 0;
+  }
+
+  /** A compiled glob. */
+  private static final class Rule {
+    private final boolean path;
+    private final Predicate<String> matcher;
+
+    Rule(String glob) {
+      this.path = glob.indexOf('/') >= 0;
+      String inner = glob.length() > 1 ? glob.substring(1, glob.length() - 1) : "";
+      if (!hasWildcard(glob)) {
+        matcher = glob::equals;
+      } else if (!path
+          && glob.length() > 1
+          && glob.endsWith("*")
+          && !hasWildcard(glob.substring(0, glob.length() - 1))) {
+        String prefix = glob.substring(0, glob.length() - 1);
+        matcher = name -> name.startsWith(prefix);
+      } else if (!path
+          && glob.length() > 1
+          && glob.startsWith("*")
+          && !hasWildcard(glob.substring(1))) {
+        String suffix = glob.substring(1);
+        matcher = name -> name.endsWith(suffix);
+      } else if (!path
+          && glob.length() > 2
+          && glob.startsWith("*")
+          && glob.endsWith("*")
+          && !hasWildcard(inner)) {
+        matcher = name -> name.contains(inner);
+      } else {
+        Pattern pattern = Pattern.compile(toRegEx(glob));
+        matcher = s -> pattern.matcher(s).matches();
+      }
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Monitors several directories with a shared set of threads. The monitors' scans and housekeeping
+ * run on one bounded scheduler and their events are processed by one pool of workers, where each
+ * monitored directory takes turns with the others so a busy directory cannot hold back a quiet one.
+ *
+ * <p>Monitors are configured as usual, each with its own root id, and added before {@link #init()}.
+ * They may share a repository as each stores its items under its root id.
+ */
+public class MonitorGroup {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MonitorGroup.class);
+
+  private final ScheduledExecutorService scheduler;
+
+  private final EventDispatcher dispatcher;
+
+  private final List<DirectoryMonitor> monitors = new ArrayList<>();
+
+  private final List<DirectoryMonitor> started = new ArrayList<>();
+
+  /**
+   * Create a group.
+   *
+   * @param scanThreads the threads that scan directories and run housekeeping for every monitor
+   * @param processingThreads the threads that process events for every monitor
+   */
+  public MonitorGroup(int scanThreads, int processingThreads) {
+    AtomicInteger count = new AtomicInteger();
+    ScheduledThreadPoolExecutor executor =
+        new ScheduledThreadPoolExecutor(
+            Math.max(1, scanThreads),
+            // not daemon threads, so like a monitor's own scan thread they keep the process running
+            runnable -> new Thread(runnable, "monitor-scheduler-" + count.incrementAndGet()));
+    executor.setRemoveOnCancelPolicy(true);
+    this.scheduler = executor;
+    this.dispatcher = new EventDispatcher(processingThreads);
+  }
+
+  /**
+   * Add a monitor to the group. Must be called before {@link #init()}.
+   *
+   * @param monitor the monitor
+   */
+  public void add(DirectoryMonitor monitor) {
+    monitor.setGroup(this);
+    monitors.add(monitor);
+  }
+
+  public List<DirectoryMonitor> getMonitors() {
+    return Collections.unmodifiableList(monitors);
+  }
+
+  ScheduledExecutorService getScheduler() {
+    return scheduler;
+  }
+
+  EventDispatcher getDispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * Start every monitor.
+   *
+   * @throws IllegalStateException if two monitors have the same root id or directories that overlap
+   */
+  public void init() throws Exception {
+    validate();
+    for (DirectoryMonitor monitor : monitors) {
+      LOGGER.info(
+          "Starting monitor {} for {}", monitor.getRootId(), monitor.getMonitoredDirectory());
+      monitor.init();
+      started.add(monitor);
+    }
+  }
+
+  private void validate() {
+    Set<String> ids = new HashSet<>();
+    List<Path> directories = new ArrayList<>();
+    for (DirectoryMonitor monitor : monitors) {
+      if (!ids.add(monitor.getRootId())) {
+        throw new IllegalStateException("Duplicate root id " + monitor.getRootId());
+      }
+      Path directory =
+          new File(monitor.getMonitoredDirectory()).toPath().toAbsolutePath().normalize();
+      for (Path other : directories) {
+        if (directory.startsWith(other) || other.startsWith(directory)) {
+          throw new IllegalStateException(
+              "Monitored directories " + other + " and " + directory + " overlap");
+        }
+      }
+      directories.add(directory);
+    }
+  }
+
+  /** Stop every started monitor and the shared threads. */
+  public void destroy() throws Exception {
+    for (DirectoryMonitor monitor : started) {
+      try {
+        monitor.destroy();
+      } catch (Exception e) {
+        LOGGER.warn("Error stopping monitor {}", monitor.getRootId(), e);
+      }
+    }
+    dispatcher.shutdown(1000);
+    scheduler.shutdownNow();
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+/**
+ * Receives measurements from a {@link DirectoryMonitor}. Each monitor is given its own instance.
+ * Every method does nothing by default, so implementations only record what they need.
+ *
+ * <p>Methods other than {@link #bind} and {@link #unbind} are called on scanning, worker and
+ * persistence threads as events are handled, so they must be thread safe and cheap. Values that are
+ * only read when they are reported, such as the queue depth, are read from the monitor's getters
+ * instead.
+ */
+public interface MonitorMetrics {
+
+  /** Event types, as passed to {@link #event} and {@link #processed}. */
+  String CREATE = "create";
+
+  String UPDATE = "update";
+
+  String DELETE = "delete";
+
+  String MOVE = "move";
+
+  /** Event outcomes, as passed to {@link #event}. */
+  String QUEUED = "queued";
+
+  String DROPPED = "dropped";
+
+  String PROCESSED = "processed";
+
+  String FAILED = "failed";
+
+  /**
+   * Called as the monitor starts, before anything is recorded. Gauges reading the monitor's getters
+   * are registered here.
+   *
+   * @param monitor the monitor
+   */
+  default void bind(DirectoryMonitor monitor) {}
+
+  /**
+   * Called once the monitor has stopped.
+   *
+   * @param monitor the monitor
+   */
+  default void unbind(DirectoryMonitor monitor) {}
+
+  /**
+   * A scan of the monitored directory has finished. Only polling scans are reported.
+   *
+   * @param nanos how long the scan took in nanoseconds
+   * @param filesVisited the number of files and directories in the scanned tree
+   */
+  default void scanned(long nanos, int filesVisited) {}
+
+  /**
+   * An event has moved on a step.
+   *
+   * @param type the event type, one of {@link #CREATE}, {@link #UPDATE}, {@link #DELETE} and {@link
+   *     #MOVE}
+   * @param outcome what happened to it, one of {@link #QUEUED}, {@link #DROPPED}, {@link
+   *     #PROCESSED} and {@link #FAILED}
+   */
+  default void event(String type, String outcome) {}
+
+  /**
+   * The processor has finished with an event.
+   *
+   * @param processorId the id of the processor
+   * @param type the event type
+   * @param success true if the processor succeeded
+   * @param nanos how long the processor took in nanoseconds, including any time waiting in a batch
+   */
+  default void processed(String processorId, String type, boolean success, long nanos) {}
+
+  /**
+   * A file has become complete and its event is being handed on to be processed.
+   *
+   * @param nanos how long the event waited for the file to become complete in nanoseconds
+   */
+  default void completionWaited(long nanos) {}
+
+  /**
+   * A call to the item repository has returned.
+   *
+   * @param operation the repository method, such as {@code findByFileId} or {@code saveAll}
+   * @param nanos how long the call took in nanoseconds
+   */
+  default void repositoryCalled(String operation, long nanos) {}
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.util.Map;
+
+/**
+ * The attributes a {@link JmxMonitorMetrics} exposes for a monitored directory. Times are in
+ * milliseconds and cover everything recorded since the monitor started.
+ */
+public interface MonitorMetricsMXBean {
+
+  String getRootId();
+
+  int getQueueDepth();
+
+  int getPendingCompletionCount();
+
+  /** @return the number of items in each unprocessed status, keyed by status name */
+  Map<String, Long> getPendingRetryCounts();
+
+  long getScanCount();
+
+  double getLastScanMillis();
+
+  double getMeanScanMillis();
+
+  double getMaxScanMillis();
+
+  int getLastFilesVisited();
+
+  /** @return the number of events of each type and outcome, keyed by {@code type.outcome} */
+  Map<String, Long> getEventCounts();
+
+  /** @return the number of processed events, keyed by {@code processorId.type.success|failure} */
+  Map<String, Long> getProcessingCounts();
+
+  Map<String, Double> getMeanProcessingMillis();
+
+  Map<String, Double> getMaxProcessingMillis();
+
+  long getCompletionWaitCount();
+
+  double getMeanCompletionWaitMillis();
+
+  double getMaxCompletionWaitMillis();
+
+  /** @return the number of repository calls, keyed by repository method */
+  Map<String, Long> getRepositoryCallCounts();
+
+  Map<String, Double> getMeanRepositoryMillis();
+
+  Map<String, Double> getMaxRepositoryMillis();
+}
@@ -0,0 +1,23 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+/** How changes in the monitored directory are detected. */
+public enum MonitorMode {
+  /** Re-scan the whole directory tree every check period. */
+  POLL,
+  /**
+   * Use the file system's native change notifications. Falls back to {@link #POLL} when the file
+   * system does not support watching.
+   */
+  WATCH
+}
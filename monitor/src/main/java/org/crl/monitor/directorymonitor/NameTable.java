@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Dictionary of file name segments. Each distinct name is stored once as UTF-8 bytes in a shared
+ * byte array and is referred to by an int id. Lookups go through an open addressing hash table so
+ * no per-name objects are kept.
+ */
+final class NameTable {
+
+  private byte[] bytes = new byte[4096];
+  private int used;
+
+  /** Start offset of each name in {@link #bytes}. The end is the start of the next name. */
+  private int[] offsets = new int[257];
+
+  private int[] hashes = new int[256];
+  private int count;
+
+  /** Open addressing table of name id + 1. Zero marks an empty slot. */
+  private int[] slots = new int[512];
+
+  /**
+   * Get the id for a name, adding it to the table if it is not already present.
+   *
+   * @param name the name to look up
+   * @return the id of the name
+   */
+  int intern(String name) {
+    byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+    int hash = name.hashCode();
+    int mask = slots.length - 1;
+    int slot = mix(hash) & mask;
+    while (slots[slot] != 0) {
+      int id = slots[slot] - 1;
+      if (hashes[id] == hash && matches(id, encoded)) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+    int id = append(encoded, hash);
+    slots[slot] = id + 1;
+    if (count * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    return id;
+  }
+
+  /**
+   * Get the name for an id.
+   *
+   * @param id an id returned from {@link #intern(String)}
+   * @return the name
+   */
+  String get(int id) {
+    int start = offsets[id];
+    return new String(bytes, start, offsets[id + 1] - start, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the number of distinct names in the table.
+   *
+   * @return the number of names
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * Get the approximate number of heap bytes used by the table.
+   *
+   * @return the size of the backing arrays in bytes
+   */
+  long memoryUsage() {
+    return bytes.length + 4L * offsets.length + 4L * hashes.length + 4L * slots.length;
+  }
+
+  /**
+   * Write the names in id order.
+   *
+   * @param out the stream to write to
+   * @throws IOException if the names could not be written
+   */
+  void write(DataOutputStream out) throws IOException {
+    out.writeInt(count);
+    out.writeInt(used);
+    for (int id = 0; id <= count; id++) {
+      out.writeInt(offsets[id]);
+    }
+    out.write(bytes, 0, used);
+  }
+
+  /**
+   * Read names written by {@link #write(DataOutputStream)}. Each name gets back the id it had.
+   *
+   * @param in the buffer to read from, positioned at the start of the names
+   * @return the table
+   * @throws IllegalArgumentException if the names are not valid
+   */
+  static NameTable read(ByteBuffer in) {
+    int count = in.getInt();
+    int used = in.getInt();
+    if (count < 0 || used < 0 || 4L * (count + 1) + used > in.remaining()) {
+      throw new IllegalArgumentException("Invalid name table");
+    }
+    int[] offsets = new int[count + 1];
+    in.asIntBuffer().get(offsets);
+    in.position(in.position() + 4 * offsets.length);
+    byte[] encoded = new byte[used];
+    in.get(encoded);
+    NameTable table = new NameTable();
+    for (int id = 0; id < count; id++) {
+      if (offsets[id] > offsets[id + 1] || offsets[id + 1] > used) {
+        throw new IllegalArgumentException("Invalid name table");
+      }
+      String name =
+          new String(encoded, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+      if (table.intern(name) != id) {
+        throw new IllegalArgumentException("Duplicate name in name table");
+      }
+    }
+    return table;
+  }
+
+  private boolean matches(int id, byte[] encoded) {
+    int start = offsets[id];
+    int length = offsets[id + 1] - start;
+    if (length != encoded.length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (bytes[start + i] != encoded[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int append(byte[] encoded, int hash) {
+    if (used + encoded.length > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, used + encoded.length));
+    }
+    if (count == hashes.length) {
+      hashes = Arrays.copyOf(hashes, hashes.length * 2);
+      offsets = Arrays.copyOf(offsets, hashes.length + 1);
+    }
+    System.arraycopy(encoded, 0, bytes, used, encoded.length);
+    used += encoded.length;
+    hashes[count] = hash;
+    offsets[count + 1] = used;
+    return count++;
+  }
+
+  private void rehash(int capacity) {
+    int[] table = new int[capacity];
+    int mask = capacity - 1;
+    for (int id = 0; id < count; id++) {
+      int slot = mix(hashes[id]) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = id + 1;
+    }
+    slots = table;
+  }
+
+  private static int mix(int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
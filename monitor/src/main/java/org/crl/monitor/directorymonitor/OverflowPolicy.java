@@ -0,0 +1,23 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+/** What the scanner does with a new event when the event queue is full. */
+public enum OverflowPolicy {
+  /** Wait for room in the queue, which pauses the scan until processing catches up. */
+  BLOCK,
+  /**
+   * Drop the event. Dropped changes are picked up by a reconciliation of the stored items once the
+   * queue has drained.
+   */
+  DROP
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+/** The outcome of processing a single file event. */
+public final class ProcessingResult {
+
+  private static final ProcessingResult SUCCESS = new ProcessingResult(null, null);
+
+  private final String altId;
+
+  private final Exception cause;
+
+  private ProcessingResult(String altId, Exception cause) {
+    this.altId = altId;
+    this.cause = cause;
+  }
+
+  /**
+   * The event was processed.
+   *
+   * @return a successful result with no alternate id
+   */
+  public static ProcessingResult success() {
+    return SUCCESS;
+  }
+
+  /**
+   * The event was processed.
+   *
+   * @param altId the alternate id to associate with the file. Can be null.
+   * @return a successful result
+   */
+  public static ProcessingResult success(String altId) {
+    return altId == null ? SUCCESS : new ProcessingResult(altId, null);
+  }
+
+  /**
+   * The event could not be processed and should be retried.
+   *
+   * @param cause why processing failed
+   * @return a failed result
+   */
+  public static ProcessingResult failure(Exception cause) {
+    return new ProcessingResult(null, cause);
+  }
+
+  public boolean isSuccess() {
+    return cause == null;
+  }
+
+  public String getAltId() {
+    return altId;
+  }
+
+  public Exception getCause() {
+    return cause;
+  }
+}
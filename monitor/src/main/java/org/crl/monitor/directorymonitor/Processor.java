@@ -13,6 +13,12 @@ package org.crl.monitor.directorymonitor;
 
 import java.io.File;
 
+/**
+ * Handles file events for a monitored directory. Events for different files may be handed to the
+ * processor concurrently from multiple worker threads so implementations must be thread safe.
+ * Events for the same file are always delivered one at a time and in order. Processors that can
+ * handle many files more cheaply in one call can implement {@link BatchProcessor} instead.
+ */
 public interface Processor {
 
   /**
@@ -48,4 +54,19 @@ public interface Processor {
    *     null.
    */
   void processDelete(File file, String altId);
+
+  /**
+   * Called when a monitored file is moved or renamed within the monitored directory. The default
+   * implementation processes a delete of the old path followed by a create of the new one.
+   *
+   * @param from The path the file was moved from
+   * @param to The path the file was moved to
+   * @param altId The alternate id that was returned from the processCreate method was call. Can be
+   *     null.
+   * @return returns the alternate id to associate with the file from now on. Can be null.
+   */
+  default String processMove(File from, File to, String altId) {
+    processDelete(from, altId);
+    return processCreate(to);
+  }
 }
@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+
+/**
+ * Every file is complete as soon as it is seen, for producers that rename files into place once
+ * they have been written.
+ */
+final class RenameCompletion implements CompletionStrategy {
+
+  @Override
+  public void track(File file, Runnable onComplete, Runnable onDropped) {
+    onComplete.run();
+  }
+
+  @Override
+  public void cancel(File file) {
+    // nothing is held
+  }
+
+  @Override
+  public int getPendingCount() {
+    return 0;
+  }
+
+  @Override
+  public void shutdown() {
+    // nothing is held
+  }
+}
@@ -13,15 +13,28 @@ package org.crl.monitor.directorymonitor;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.comparator.NameFileComparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.apache.commons.io.IOCase;
 import org.apache.commons.io.monitor.FileAlterationListener;
 import org.apache.commons.io.monitor.FileAlterationObserver;
-import org.apache.commons.io.monitor.FileEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +43,44 @@ import org.slf4j.LoggerFactory;
  * checkAndNotify() method to not fire remove notification for all monitored files when the root
  * directory becomes unavailable. Instead it just simply stops monitoring until the root directory
  * becomes available again.
+ *
+ * <p>Directories are listed with {@link Files#newDirectoryStream(Path)} and every attribute of a
+ * child is read with a single {@link Files#readAttributes(Path, Class,
+ * java.nio.file.LinkOption...)} call rather than the separate exists, isDirectory, lastModified and
+ * length calls made by {@link org.apache.commons.io.monitor.FileEntry#refresh(File)}.
+ *
+ * <p>Instead of a tree of {@link org.apache.commons.io.monitor.FileEntry} objects the state of the
+ * tree is kept in a {@link FileTreeSnapshot}. Each scan builds a new snapshot while comparing it to
+ * the previous one, reusing the arrays of the snapshot before that.
+ *
+ * <p>When a listener implements {@link FileMoveListener} file deletes and creates that could be
+ * part of a move are held until the end of each scan. A deleted file and a created file with the
+ * same file key, size and last modified time are then reported as a move. The whole key, the device
+ * and inode where the platform gives them, is recorded so that no two files are paired on a
+ * matching hash. Files on file systems without file keys are never paired. A file system can give a
+ * deleted file's key to the next file created, so a pair is only reported when the created file
+ * provably existed before the deleted file's attributes were read: it must have been born before
+ * the scans that read them started, by its creation time where the platform records one and
+ * otherwise by its modified time, allowing for coarse timestamps. A file created during the
+ * previous scan and moved before the next is reported as a delete and a create, as are moves found
+ * when resuming from a snapshot. Created files that cannot be paired, such as newly written ones,
+ * and deleted files without a key are reported as they are found rather than held.
+ *
+ * <p>With a snapshot file set the observer's state can be saved with {@link #checkpoint()}. The
+ * next {@link #initialize()} then loads the saved state and compares the tree to it, firing events
+ * for everything that changed in between, instead of listing the tree without firing events. A
+ * missing, corrupt or mismatched snapshot file falls back to that cold start.
+ *
+ * <p>With directory pruning on, a directory whose modified time is the same as in the previous scan
+ * is not listed again. Adding or removing an entry changes a directory's modified time on POSIX
+ * file systems, so its children are taken from the previous snapshot and only their attributes are
+ * read again.
+ *
+ * <p>With tiered scanning on, a directory found unchanged is checked half as often each time it is
+ * found unchanged again, up to a cap, and is checked every scan again once it changes. Between
+ * checks its children are carried over from the previous snapshot without any file system access,
+ * while its subdirectories keep their own schedules. Every directory is checked in a full scan at a
+ * fixed interval regardless.
  */
 public class SafeFileAlterationObserver extends FileAlterationObserver {
 
@@ -37,11 +88,39 @@ public class SafeFileAlterationObserver extends FileAlterationObserver {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SafeFileAlterationObserver.class);
 
-  static final FileEntry[] EMPTY_ENTRIES = new FileEntry[0];
+  static final ScannedFile[] EMPTY_FILES = new ScannedFile[0];
+  static final Listing EMPTY_LISTING = new Listing(EMPTY_FILES, true);
+
+  /**
+   * Coarsest modified time resolution allowed for. A directory modified this close to the scan that
+   * listed it may have changed again within the same tick, so it is listed again.
+   */
+  private static final long MODIFIED_TIME_GRANULARITY = 2000L;
+
   private final transient List<FileAlterationListener> listeners = new CopyOnWriteArrayList<>();
-  private final FileEntry rootEntry;
+  private final File rootFile;
   private final transient FileFilter fileFilter;
-  private final transient Comparator<File> comparator;
+  private final transient IOCase caseSensitivity;
+  private transient NameTable names = new NameTable();
+  private transient FileTreeSnapshot snapshot;
+  private transient FileTreeSnapshot spare;
+  private boolean rootExists;
+  private int scanParallelism = 1;
+  private transient ForkJoinPool scanPool;
+  private transient PendingMoves moves;
+  private transient Path snapshotFile;
+  private boolean resumed;
+  private transient Consumer<FileTreeSnapshot> coldStartListener;
+  private boolean directoryPruning;
+  private long lastScanStart;
+  private final transient AtomicInteger listedDirectories = new AtomicInteger();
+  private final transient AtomicInteger reusedListings = new AtomicInteger();
+  private int maxIdleLevel;
+  private long fullScanInterval;
+  private long lastFullScan;
+  private int scanCount;
+  private transient boolean fullScan;
+  private final transient AtomicInteger skippedDirectories = new AtomicInteger();
 
   /**
    * Construct an observer for the specified directory and file filter.
@@ -51,9 +130,9 @@ public class SafeFileAlterationObserver extends FileAlterationObserver {
    */
   public SafeFileAlterationObserver(final File directory, final FileFilter fileFilter) {
     super(directory);
-    this.rootEntry = new FileEntry(directory);
+    this.rootFile = directory;
     this.fileFilter = fileFilter;
-    this.comparator = NameFileComparator.NAME_SYSTEM_COMPARATOR;
+    this.caseSensitivity = IOCase.SYSTEM;
   }
 
   /**
@@ -63,7 +142,7 @@ public class SafeFileAlterationObserver extends FileAlterationObserver {
    */
   @Override
   public File getDirectory() {
-    return rootEntry.getFile();
+    return rootFile;
   }
 
   /**
@@ -111,6 +190,16 @@ public class SafeFileAlterationObserver extends FileAlterationObserver {
     return listeners;
   }
 
+  /**
+   * Get the snapshot built by the last scan. The snapshot is only valid until the next scan starts
+   * since its arrays are reused by the scan after that.
+   *
+   * @return the current snapshot or null if the observer has not been initialized
+   */
+  FileTreeSnapshot getSnapshot() {
+    return snapshot;
+  }
+
   /**
    * Initialize the observer.
    *
@@ -118,9 +207,94 @@ public class SafeFileAlterationObserver extends FileAlterationObserver {
    */
   @Override
   public void initialize() throws Exception {
-    rootEntry.refresh(rootEntry.getFile());
-    final FileEntry[] children = doListFilesOverride(rootEntry.getFile(), rootEntry);
-    rootEntry.setChildren(children);
+    rootExists = rootFile.exists();
+    names = new NameTable();
+    spare = null;
+    snapshot = null;
+    // nothing is known about when a saved snapshot's entries were read
+    lastScanStart = 0;
+    lastFullScan = 0;
+    FileTreeSnapshot saved = rootExists ? readSnapshot() : null;
+    resumed = saved != null;
+    if (resumed) {
+      names = saved.getNames();
+      snapshot = saved;
+    }
+    scan(resumed);
+    if (!resumed && rootExists && coldStartListener != null) {
+      coldStartListener.accept(snapshot);
+    }
+  }
+
+  /**
+   * Set a listener handed the state seen by each {@link #initialize()} that did not resume from a
+   * snapshot, so it can be compared with what was known before without listing the tree again. The
+   * listener runs on the thread calling initialize, before any further scan can reuse the
+   * snapshot's arrays.
+   *
+   * @param coldStartListener the listener, or null for none
+   */
+  void setColdStartListener(final Consumer<FileTreeSnapshot> coldStartListener) {
+    this.coldStartListener = coldStartListener;
+  }
+
+  private FileTreeSnapshot readSnapshot() {
+    if (snapshotFile == null || !Files.exists(snapshotFile)) {
+      return null;
+    }
+    final long start = System.currentTimeMillis();
+    try {
+      final FileTreeSnapshot saved =
+          FileTreeSnapshot.read(snapshotFile, rootFile.getAbsolutePath());
+      LOGGER.info(
+          "Loaded snapshot of {} files from {} in {} ms",
+          saved.size() - 1,
+          snapshotFile,
+          System.currentTimeMillis() - start);
+      return saved;
+    } catch (IOException e) {
+      LOGGER.warn("Could not load snapshot {}. Scanning from scratch.", snapshotFile, e);
+      return null;
+    }
+  }
+
+  /**
+   * Set the file the observer's state is saved to by {@link #checkpoint()} and loaded from by
+   * {@link #initialize()}.
+   *
+   * @param snapshotFile the snapshot file, or null to always start from scratch
+   */
+  public void setSnapshotFile(final Path snapshotFile) {
+    this.snapshotFile = snapshotFile;
+  }
+
+  /**
+   * Check whether the last {@link #initialize()} loaded a saved snapshot and fired events for the
+   * changes since it was saved.
+   *
+   * @return true if the observer resumed from a snapshot
+   */
+  public boolean isResumed() {
+    return resumed;
+  }
+
+  /**
+   * Save the state seen by the last scan to the snapshot file. Must not be called while a scan is
+   * running, for example from {@link FileAlterationListener#onStop(FileAlterationObserver)}.
+   *
+   * @throws IOException if the snapshot could not be written
+   */
+  public void checkpoint() throws IOException {
+    if (snapshotFile == null || snapshot == null || !rootExists) {
+      return;
+    }
+    final long start = System.currentTimeMillis();
+    snapshot.write(snapshotFile, rootFile.getAbsolutePath());
+    LOGGER.debug(
+        "Saved snapshot of {} files to {} in {} ms",
+        snapshot.size() - 1,
+        snapshotFile,
+        System.currentTimeMillis() - start);
   }
 
   /** Check whether the file and its children have been created, modified or deleted. */
@@ -133,25 +307,23 @@ public class SafeFileAlterationObserver extends FileAlterationObserver {
     }
 
     /* fire directory/file events */
-    final File rootFile = rootEntry.getFile();
     if (rootFile.exists() && rootFile.canRead()) {
-      if (!rootEntry.isExists()) {
+      if (!rootExists) {
         LOGGER.info(
             "Monitored directory [{}] has become available. Resuming monitoring.",
             rootFile.getAbsolutePath());
-        rootEntry.setExists(true);
         try {
           initialize();
         } catch (Exception e) {
           LOGGER.error("Could not initialize monitored directory after it became available", e);
         }
       }
-      checkAndNotifyOverride(rootEntry, rootEntry.getChildren(), listFilesOverride(rootFile));
-    } else if (rootEntry.isExists()) {
+      scan(true);
+    } else if (rootExists) {
       LOGGER.warn(
           "Monitored directory [{}] no longer available. Suspending monitoring until directory becomes available",
           rootFile.getAbsolutePath());
-      rootEntry.setExists(false);
+      rootExists = false;
     }
 
     /* fire onStop() */
@@ -161,143 +333,612 @@ public class SafeFileAlterationObserver extends FileAlterationObserver {
   }
 
   /**
-   * Compare two file lists for files which have been created, modified or deleted.
+   * Build a new snapshot of the tree, comparing it to the previous snapshot as it goes.
    *
-   * @param parent The parent entry
-   * @param previous The original list of files
-   * @param files The current list of files
+   * @param notify true to fire events for differences from the previous snapshot
    */
-  private void checkAndNotifyOverride(
-      final FileEntry parent, final FileEntry[] previous, final File[] files) {
-    int c = 0;
-    final FileEntry[] current = files.length > 0 ? new FileEntry[files.length] : EMPTY_ENTRIES;
-    for (final FileEntry entry : previous) {
-      while (c < files.length && comparator.compare(entry.getFile(), files[c]) > 0) {
-        current[c] = createFileEntryOverride(parent, files[c]);
-        doCreateOverride(current[c]);
-        c++;
+  private void scan(final boolean notify) {
+    if (snapshot != null && names.size() > 2 * snapshot.size() + 1024) {
+      // most names belong to files that no longer exist, start a fresh table
+      names = new NameTable();
+    }
+    final long scanStart = System.currentTimeMillis();
+    final long readSince = maxIdleLevel == 0 ? lastScanStart : lastFullScan;
+    fullScan = maxIdleLevel == 0 || scanStart - lastFullScan >= fullScanInterval;
+    if (fullScan) {
+      lastFullScan = scanStart;
+    }
+    scanCount++;
+    listedDirectories.set(0);
+    reusedListings.set(0);
+    skippedDirectories.set(0);
+    final FileTreeSnapshot.Builder builder = new FileTreeSnapshot.Builder(names, spare);
+    // every entry of the previous snapshot was read after this, so a file born later cannot be one
+    moves = notify && hasMoveListener() ? new PendingMoves(readSince) : null;
+    checkAndNotifyOverride(
+        snapshot,
+        snapshot == null ? -1 : FileTreeSnapshot.ROOT,
+        builder,
+        FileTreeSnapshot.ROOT,
+        rootFile,
+        listRoot(),
+        notify);
+    spare = snapshot;
+    snapshot = builder.build();
+    lastScanStart = scanStart;
+    if (directoryPruning || maxIdleLevel > 0) {
+      LOGGER.debug(
+          "Listed {} directories, reused the listings of {} unchanged directories and skipped {} idle directories",
+          listedDirectories.get(),
+          reusedListings.get(),
+          skippedDirectories.get());
+    }
+    if (moves != null) {
+      fireMovesOverride(moves);
+      moves = null;
+    }
+  }
+
+  private boolean hasMoveListener() {
+    for (final FileAlterationListener listener : listeners) {
+      if (listener instanceof FileMoveListener) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Pair the files deleted during a scan with the files created during it and fire move events for
+   * the pairs, then fire the remaining deletes and creates.
+   *
+   * @param moves the deletes and creates held during the scan
+   */
+  private void fireMovesOverride(final PendingMoves moves) {
+    final Map<MoveKey, File> deleted = new HashMap<>();
+    final Set<MoveKey> ambiguous = new HashSet<>();
+    for (final DeletedFile file : moves.deleted) {
+      if (deleted.putIfAbsent(file.key, file.file) != null) {
+        // hard links share a file key, so there is no telling which one moved
+        ambiguous.add(file.key);
       }
-      if (c < files.length && comparator.compare(entry.getFile(), files[c]) == 0) {
-        doMatchOverride(entry, files[c]);
-        checkAndNotifyOverride(entry, entry.getChildren(), listFilesOverride(files[c]));
-        current[c] = entry;
-        c++;
+    }
+    ambiguous.forEach(deleted::remove);
+    final Set<File> movedFrom = new HashSet<>();
+    final List<File[]> moved = new ArrayList<>();
+    final List<File> created = new ArrayList<>();
+    for (final ScannedFile file : moves.created) {
+      final File from = deleted.isEmpty() ? null : deleted.remove(new MoveKey(file.attributes));
+      if (from != null) {
+        movedFrom.add(from);
+        moved.add(new File[] {from, file.file});
       } else {
-        checkAndNotifyOverride(entry, entry.getChildren(), FileUtils.EMPTY_FILE_ARRAY);
-        doDeleteOverride(entry);
+        created.add(file.file);
       }
     }
-    for (; c < files.length; c++) {
-      current[c] = createFileEntryOverride(parent, files[c]);
-      doCreateOverride(current[c]);
+    for (final DeletedFile file : moves.deleted) {
+      if (!movedFrom.contains(file.file)) {
+        for (final FileAlterationListener listener : listeners) {
+          listener.onFileDelete(file.file);
+        }
+      }
+    }
+    for (final File[] move : moved) {
+      for (final FileAlterationListener listener : listeners) {
+        if (listener instanceof FileMoveListener) {
+          ((FileMoveListener) listener).onFileMove(move[0], move[1]);
+        } else {
+          listener.onFileDelete(move[0]);
+          listener.onFileCreate(move[1]);
+        }
+      }
+    }
+    for (final File file : created) {
+      for (final FileAlterationListener listener : listeners) {
+        listener.onFileCreate(file);
+      }
     }
-    parent.setChildren(current);
   }
 
   /**
-   * Create a new file entry for the specified file.
+   * Compare the previous children of a directory with its current children, recording the current
+   * children in the new snapshot and firing events for files which have been created, modified or
+   * deleted.
    *
-   * @param parent The parent file entry
-   * @param file The file to create an entry for
-   * @return A new file entry
+   * @param previous The previous snapshot or null
+   * @param previousEntry The directory in the previous snapshot or -1 if it did not exist
+   * @param builder The builder for the new snapshot
+   * @param entry The directory in the new snapshot
+   * @param directory The directory
+   * @param listing The current list of files
+   * @param notify true to fire events
    */
-  private FileEntry createFileEntryOverride(final FileEntry parent, final File file) {
-    final FileEntry entry = parent.newChildInstance(file);
-    entry.refresh(file);
-    final FileEntry[] children = doListFilesOverride(file, entry);
-    entry.setChildren(children);
-    return entry;
+  private void checkAndNotifyOverride(
+      final FileTreeSnapshot previous,
+      final int previousEntry,
+      final FileTreeSnapshot.Builder builder,
+      final int entry,
+      final File directory,
+      final Listing listing,
+      final boolean notify) {
+    final ScannedFile[] files = listing.files;
+    final int first = builder.addChildren(entry, files.length);
+    boolean changed = false;
+    int c = 0;
+    if (previousEntry >= 0) {
+      final int previousFirst = previous.getFirstChild(previousEntry);
+      final int previousEnd = previousFirst + previous.getChildCount(previousEntry);
+      for (int p = previousFirst; p < previousEnd; p++) {
+        final String name = previous.getName(p);
+        while (c < files.length && compare(name, files[c]) > 0) {
+          createOverride(builder, first + c, files[c], childListing(listing, c, -1), notify);
+          changed = true;
+          c++;
+        }
+        if (c < files.length && compare(name, files[c]) == 0) {
+          final int nameId =
+              previous.getNames() == builder.getNames() && name.equals(files[c].name)
+                  ? previous.getNameId(p)
+                  : builder.getNames().intern(files[c].name);
+          set(builder, first + c, nameId, files[c]);
+          changed |= doMatchOverride(previous, p, files[c], notify);
+          checkAndNotifyOverride(
+              previous, p, builder, first + c, files[c].file, childListing(listing, c, p), notify);
+          c++;
+        } else {
+          doDeleteOverride(previous, p, new File(directory, name), notify);
+          changed = true;
+        }
+      }
+    }
+    for (; c < files.length; c++) {
+      createOverride(builder, first + c, files[c], childListing(listing, c, -1), notify);
+      changed = true;
+    }
+    if (previousEntry >= 0 && previous.isDirectory(previousEntry)) {
+      builder.setScanState(
+          entry,
+          idleLevel(previous, previousEntry, listing, changed),
+          !listing.checked
+              && (previous.isListingStale(previousEntry)
+                  || previous.getLastModified(previousEntry) != builder.getLastModified(entry)));
+    }
   }
 
   /**
-   * List the files
+   * Work out a directory's idle level after a scan.
    *
-   * @param file The file to list files for
-   * @param entry the parent entry
-   * @return The child files
+   * @param previous The previous snapshot
+   * @param previousEntry The directory in the previous snapshot
+   * @param listing The listing used for the directory in this scan
+   * @param changed true if any of the directory's children were created, changed or deleted
+   * @return 0 if the directory changed, one more than before if it was checked and had not changed,
+   *     otherwise the same as before
    */
-  private FileEntry[] doListFilesOverride(final File file, final FileEntry entry) {
-    final File[] files = listFilesOverride(file);
-    final FileEntry[] children = files.length > 0 ? new FileEntry[files.length] : EMPTY_ENTRIES;
-    for (int i = 0; i < files.length; i++) {
-      children[i] = createFileEntryOverride(entry, files[i]);
+  private int idleLevel(
+      final FileTreeSnapshot previous,
+      final int previousEntry,
+      final Listing listing,
+      final boolean changed) {
+    final int level = Math.min(previous.getIdleLevel(previousEntry), maxIdleLevel);
+    if (!listing.checked) {
+      return level;
     }
-    return children;
+    return changed ? 0 : Math.min(level + 1, maxIdleLevel);
   }
 
   /**
-   * Fire directory/file created events to the registered listeners.
+   * Check whether a directory is due to be checked in this scan. A directory at idle level n is
+   * checked every 2^n scans, staggered by its name so idle directories are not all checked in the
+   * same scan.
+   */
+  private boolean isDue(final FileTreeSnapshot previous, final int entry) {
+    final int level = Math.min(previous.getIdleLevel(entry), maxIdleLevel);
+    return fullScan
+        || level == 0
+        || ((scanCount + previous.getNameId(entry)) & ((1 << level) - 1)) == 0;
+  }
+
+  /**
+   * Record a new file, and everything below it if it is a directory, firing create events.
    *
-   * @param entry The file entry
+   * @param builder The builder for the new snapshot
+   * @param entry The reserved entry for the file
+   * @param file The new file
+   * @param listing The contents of the file if it is a directory
+   * @param notify true to fire events
    */
-  private void doCreateOverride(final FileEntry entry) {
-    for (final FileAlterationListener listener : listeners) {
-      if (entry.isDirectory()) {
-        listener.onDirectoryCreate(entry.getFile());
-      } else {
-        listener.onFileCreate(entry.getFile());
+  private void createOverride(
+      final FileTreeSnapshot.Builder builder,
+      final int entry,
+      final ScannedFile file,
+      final Listing listing,
+      final boolean notify) {
+    set(builder, entry, builder.getNames().intern(file.name), file);
+    if (notify && moves != null && moves.mayHaveMoved(file.attributes)) {
+      moves.created.add(file);
+    } else if (notify) {
+      for (final FileAlterationListener listener : listeners) {
+        if (file.attributes.isDirectory()) {
+          listener.onDirectoryCreate(file.file);
+        } else {
+          listener.onFileCreate(file.file);
+        }
       }
     }
-    final FileEntry[] children = entry.getChildren();
-    for (final FileEntry aChildren : children) {
-      doCreateOverride(aChildren);
+    if (file.attributes.isDirectory()) {
+      checkAndNotifyOverride(null, -1, builder, entry, file.file, listing, notify);
     }
   }
 
+  private static void set(
+      final FileTreeSnapshot.Builder builder,
+      final int entry,
+      final int nameId,
+      final ScannedFile file) {
+    final boolean directory = file.attributes.isDirectory();
+    // only files are paired into moves, so directories do not need their keys
+    final FileKey key = directory ? FileKey.NONE : FileKey.of(file.attributes);
+    builder.set(
+        entry,
+        nameId,
+        directory,
+        file.attributes.lastModifiedTime().toMillis(),
+        directory ? 0 : file.attributes.size(),
+        key.device,
+        key.inode);
+  }
+
   /**
-   * Fire directory/file change events to the registered listeners.
+   * Fire directory/file change events to the registered listeners. Uses the same rules as {@link
+   * org.apache.commons.io.monitor.FileEntry#refresh(File)}.
    *
+   * @param previous The previous snapshot
    * @param entry The previous file system entry
    * @param file The current file
+   * @param notify true to fire events
+   * @return true if the file has changed
    */
-  private void doMatchOverride(final FileEntry entry, final File file) {
-    if (entry.refresh(file)) {
+  private boolean doMatchOverride(
+      final FileTreeSnapshot previous,
+      final int entry,
+      final ScannedFile file,
+      final boolean notify) {
+    final boolean directory = file.attributes.isDirectory();
+    final boolean changed =
+        previous.isDirectory(entry) != directory
+            || previous.getLastModified(entry) != file.attributes.lastModifiedTime().toMillis()
+            || previous.getLength(entry) != (directory ? 0 : file.attributes.size());
+    if (changed && notify) {
       for (final FileAlterationListener listener : listeners) {
-        if (entry.isDirectory()) {
-          listener.onDirectoryChange(file);
+        if (directory) {
+          listener.onDirectoryChange(file.file);
         } else {
-          listener.onFileChange(file);
+          listener.onFileChange(file.file);
         }
       }
     }
+    return changed;
   }
 
   /**
-   * Fire directory/file delete events to the registered listeners.
+   * Fire directory/file delete events to the registered listeners, children first.
    *
-   * @param entry The file entry
+   * @param previous The previous snapshot
+   * @param entry The deleted entry
+   * @param file The deleted file
+   * @param notify true to fire events
    */
-  private void doDeleteOverride(final FileEntry entry) {
+  private void doDeleteOverride(
+      final FileTreeSnapshot previous, final int entry, final File file, final boolean notify) {
+    if (!notify) {
+      return;
+    }
+    final int first = previous.getFirstChild(entry);
+    final int end = first + previous.getChildCount(entry);
+    for (int child = first; child < end; child++) {
+      doDeleteOverride(previous, child, new File(file, previous.getName(child)), true);
+    }
+    final FileKey key = new FileKey(previous.getFileDevice(entry), previous.getFileInode(entry));
+    if (moves != null && !previous.isDirectory(entry) && key.exists()) {
+      moves.deleted.add(
+          new DeletedFile(
+              file, new MoveKey(key, previous.getLength(entry), previous.getLastModified(entry))));
+      return;
+    }
     for (final FileAlterationListener listener : listeners) {
-      if (entry.isDirectory()) {
-        listener.onDirectoryDelete(entry.getFile());
+      if (previous.isDirectory(entry)) {
+        listener.onDirectoryDelete(file);
       } else {
-        listener.onFileDelete(entry.getFile());
+        listener.onFileDelete(file);
       }
     }
   }
 
+  private int compare(final String name, final ScannedFile file) {
+    return caseSensitivity.checkCompareTo(name, file.name);
+  }
+
   /**
-   * List the contents of a directory
+   * List the root directory. Directories are listed as the comparison reaches them. With a scan
+   * parallelism above one the pool also lists a few of the subdirectories ahead of the comparison
+   * in each directory on its path, so listing runs in parallel while only a bounded part of the
+   * tree is held in memory.
    *
-   * @param file The file to list the contents of
-   * @return the directory contents or a zero length array if the empty or the file is not a
-   *     directory
+   * @return the listing of the root directory
    */
-  private File[] listFilesOverride(final File file) {
-    File[] children = null;
-    if (file.isDirectory()) {
-      children = fileFilter == null ? file.listFiles() : file.listFiles(fileFilter);
+  private Listing listRoot() {
+    final int rootEntry = snapshot == null ? -1 : FileTreeSnapshot.ROOT;
+    if (scanParallelism <= 1) {
+      return listDirectory(rootFile, -1, rootEntry);
     }
-    if (children == null) {
-      children = FileUtils.EMPTY_FILE_ARRAY;
+    if (scanPool == null) {
+      scanPool = new ForkJoinPool(scanParallelism, new ScanThreadFactory(), null, false);
     }
-    if (comparator != null && children.length > 1) {
-      Arrays.sort(children, comparator);
+    return scanPool.invoke(new ListTask(rootFile, -1, rootEntry));
+  }
+
+  /**
+   * Start listing the subdirectories of a directory listed by the pool that come after a child, up
+   * to the read ahead limit.
+   *
+   * @param listing The listing of the directory
+   * @param index The child the comparison has reached
+   */
+  private void readAhead(final Listing listing, final int index) {
+    final ScannedFile[] files = listing.files;
+    final int limit = 2 * scanParallelism;
+    while (listing.nextTask < files.length
+        && (listing.nextTask <= index || listing.tasksAhead < limit)) {
+      final int i = listing.nextTask++;
+      if (files[i].attributes.isDirectory()) {
+        listing.tasks[i] =
+            new ListTask(
+                files[i].file,
+                modifiedTime(files[i]),
+                listing.previousEntry < 0
+                    ? -1
+                    : findChild(snapshot, listing.previousEntry, files[i].name));
+        scanPool.execute(listing.tasks[i]);
+        listing.tasksAhead++;
+      }
+    }
+  }
+
+  /**
+   * Get the listing of a child of a listed directory.
+   *
+   * @param listing The listing of the parent directory
+   * @param index The index of the child in the parent listing
+   * @param previousEntry The child's entry in the previous snapshot or -1 if it is new
+   * @return the listing of the child, empty if the child is not a directory
+   */
+  private Listing childListing(final Listing listing, final int index, final int previousEntry) {
+    if (listing.tasks != null) {
+      readAhead(listing, index);
+      final ListTask task = listing.tasks[index];
+      if (task == null) {
+        return EMPTY_LISTING;
+      }
+      // let go of the child's listing once the comparison is done with it
+      listing.tasks[index] = null;
+      listing.tasksAhead--;
+      return task.join();
+    }
+    final ScannedFile file = listing.files[index];
+    if (!file.attributes.isDirectory()) {
+      return EMPTY_LISTING;
+    }
+    return listDirectory(file.file, modifiedTime(file), previousEntry);
+  }
+
+  /**
+   * Get the modified time of a scanned directory, or -1 if its attributes were carried over from
+   * the previous snapshot and so say nothing about whether it has changed since.
+   */
+  private static long modifiedTime(final ScannedFile file) {
+    return file.attributes instanceof RecordedAttributes
+        ? -1
+        : file.attributes.lastModifiedTime().toMillis();
+  }
+
+  /**
+   * List a directory. A directory that is not due to be checked keeps the children recorded in the
+   * previous snapshot. With directory pruning on, a directory whose modified time shows that its
+   * entries have not changed since they were listed keeps its recorded children but has their
+   * attributes read again.
+   *
+   * @param directory The directory
+   * @param modified The directory's current modified time or -1 if it is not known
+   * @param previousEntry The directory's entry in the previous snapshot or -1 if it is new
+   * @return the listing of the directory, its contents sorted by name
+   */
+  private Listing listDirectory(
+      final File directory, final long modified, final int previousEntry) {
+    final FileTreeSnapshot previous = snapshot;
+    if (previous != null && previousEntry >= 0 && previous.isDirectory(previousEntry)) {
+      if (!isDue(previous, previousEntry)) {
+        skippedDirectories.incrementAndGet();
+        return new Listing(recordedChildren(directory, previous, previousEntry), false);
+      }
+      if (directoryPruning
+          && !previous.isListingStale(previousEntry)
+          && previous.getLastModified(previousEntry) == modified
+          && modified < lastScanStart - MODIFIED_TIME_GRANULARITY) {
+        reusedListings.incrementAndGet();
+        return new Listing(statChildren(directory, previous, previousEntry), true);
+      }
+    }
+    listedDirectories.incrementAndGet();
+    return new Listing(listFilesOverride(directory), true);
+  }
+
+  /** Get the children of a directory as recorded in the previous snapshot. */
+  private static ScannedFile[] recordedChildren(
+      final File directory, final FileTreeSnapshot previous, final int entry) {
+    final int first = previous.getFirstChild(entry);
+    final int count = previous.getChildCount(entry);
+    if (count == 0) {
+      return EMPTY_FILES;
+    }
+    final ScannedFile[] children = new ScannedFile[count];
+    for (int i = 0; i < count; i++) {
+      children[i] =
+          new ScannedFile(
+              new File(directory, previous.getName(first + i)),
+              new RecordedAttributes(previous, first + i));
     }
     return children;
   }
 
+  /**
+   * Read the attributes of the children a directory had in the previous snapshot. Children that no
+   * longer exist are skipped.
+   */
+  private ScannedFile[] statChildren(
+      final File directory, final FileTreeSnapshot previous, final int entry) {
+    final int first = previous.getFirstChild(entry);
+    final int end = first + previous.getChildCount(entry);
+    if (first == end) {
+      return EMPTY_FILES;
+    }
+    final List<ScannedFile> children = new ArrayList<>(end - first);
+    for (int child = first; child < end; child++) {
+      final File file = new File(directory, previous.getName(child));
+      try {
+        children.add(
+            new ScannedFile(file, Files.readAttributes(file.toPath(), BasicFileAttributes.class)));
+      } catch (IOException e) {
+        LOGGER.debug("Could not read attributes of {}", file, e);
+      }
+    }
+    return children.toArray(EMPTY_FILES);
+  }
+
+  /**
+   * Find a child of a directory in the previous snapshot by name.
+   *
+   * @return the child's entry or -1 if the directory had no child with the name
+   */
+  private int findChild(final FileTreeSnapshot previous, final int entry, final String name) {
+    int low = previous.getFirstChild(entry);
+    int high = low + previous.getChildCount(entry) - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final int comparison = caseSensitivity.checkCompareTo(previous.getName(middle), name);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Set whether directories whose modified time has not changed since the previous scan are listed
+   * again. Only safe on file systems that update a directory's modified time when entries are added
+   * or removed, which POSIX file systems do.
+   *
+   * @param directoryPruning true to reuse the listings of unchanged directories
+   */
+  public void setDirectoryPruning(final boolean directoryPruning) {
+    this.directoryPruning = directoryPruning;
+  }
+
+  /**
+   * Get the number of directories listed in the last scan.
+   *
+   * @return the number of directories listed
+   */
+  public int getListedDirectoryCount() {
+    return listedDirectories.get();
+  }
+
+  /**
+   * Get the number of directories in the last scan whose listings were reused because their
+   * modified time had not changed.
+   *
+   * @return the number of directories not listed again
+   */
+  public int getReusedListingCount() {
+    return reusedListings.get();
+  }
+
+  /**
+   * Get the number of idle directories that were not checked in the last scan.
+   *
+   * @return the number of directories skipped
+   */
+  public int getSkippedDirectoryCount() {
+    return skippedDirectories.get();
+  }
+
+  /**
+   * Check directories that have not changed recently less often. Each time a directory is checked
+   * and found unchanged the number of scans until its next check doubles, up to {@code
+   * maxIdleScans} rounded down to a power of two. A directory that changes is checked every scan
+   * again.
+   *
+   * @param maxIdleScans the most scans between checks of an idle directory, 1 or less to check
+   *     every directory every scan
+   * @param fullScanInterval the time in milliseconds between scans that check every directory
+   */
+  public void setTieredScanning(final int maxIdleScans, final long fullScanInterval) {
+    this.maxIdleLevel =
+        maxIdleScans <= 1
+            ? 0
+            : Math.min(
+                31 - Integer.numberOfLeadingZeros(maxIdleScans), FileTreeSnapshot.MAX_IDLE_LEVEL);
+    this.fullScanInterval = fullScanInterval;
+  }
+
+  /**
+   * List the contents of a directory, reading the attributes of each child as it is listed.
+   * Children that disappear between being listed and being read are skipped.
+   *
+   * @param file The directory to list the contents of
+   * @return the directory contents sorted by name or a zero length array if the empty or the file
+   *     is not a directory
+   */
+  private ScannedFile[] listFilesOverride(final File file) {
+    final List<ScannedFile> children = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(file.toPath())) {
+      for (final Path path : stream) {
+        final File child = path.toFile();
+        if (fileFilter != null
+            && !(fileFilter instanceof MonitorFileFilter)
+            && !fileFilter.accept(child)) {
+          continue;
+        }
+        final BasicFileAttributes attributes;
+        try {
+          attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+          LOGGER.debug("Could not read attributes of {}", path, e);
+          continue;
+        }
+        if (fileFilter instanceof MonitorFileFilter
+            && !((MonitorFileFilter) fileFilter).accept(child, attributes.isDirectory())) {
+          continue;
+        }
+        children.add(new ScannedFile(child, attributes));
+      }
+    } catch (IOException e) {
+      LOGGER.debug("Could not list {}", file, e);
+      return EMPTY_FILES;
+    }
+    if (children.isEmpty()) {
+      return EMPTY_FILES;
+    }
+    if (children.size() > 1) {
+      children.sort((a, b) -> caseSensitivity.checkCompareTo(a.name, b.name));
+    }
+    return children.toArray(EMPTY_FILES);
+  }
+
   /**
    * Provide a String representation of this observer.
    *
@@ -319,4 +960,302 @@ public class SafeFileAlterationObserver extends FileAlterationObserver {
     builder.append("]");
     return builder.toString();
   }
+
+  /**
+   * Set the number of threads used to list directories during a scan. With more than one thread the
+   * subdirectories just ahead of the comparison are listed in parallel while the comparison runs in
+   * a single pass, so events are still fired in the same order as a single threaded scan. Each
+   * directory on the comparison's path has up to twice this many subdirectories listed ahead, so
+   * the files held in memory grow with the depth of the tree and the size of its directories but
+   * not with the size of the whole tree.
+   *
+   * @param scanParallelism the number of scan threads, 1 to scan on the calling thread
+   */
+  public void setScanParallelism(final int scanParallelism) {
+    this.scanParallelism = scanParallelism;
+  }
+
+  /**
+   * Shut down the scan threads.
+   *
+   * @throws Exception if an error occurs
+   */
+  @Override
+  public void destroy() throws Exception {
+    if (scanPool != null) {
+      scanPool.shutdownNow();
+      scanPool = null;
+    }
+  }
+
+  /**
+   * The files in a directory and, when it was listed by the scan pool, the tasks listing its
+   * subdirectories ahead of the comparison. Tasks are only used from the scanning thread.
+   */
+  static final class Listing {
+    private final ScannedFile[] files;
+    private final ListTask[] tasks;
+    private final int previousEntry;
+    private final boolean checked;
+    private int nextTask;
+    private int tasksAhead;
+
+    Listing(final ScannedFile[] files, final boolean checked) {
+      this(files, null, -1, checked);
+    }
+
+    Listing(
+        final ScannedFile[] files,
+        final ListTask[] tasks,
+        final int previousEntry,
+        final boolean checked) {
+      this.files = files;
+      this.tasks = tasks;
+      this.previousEntry = previousEntry;
+      this.checked = checked;
+    }
+  }
+
+  /**
+   * Lists a directory on the scan pool. Its subdirectories are listed as the comparison nears them.
+   */
+  private final class ListTask extends RecursiveTask<Listing> {
+    private static final long serialVersionUID = 1L;
+    private final transient File directory;
+    private final long modified;
+    private final int previousEntry;
+
+    ListTask(final File directory, final long modified, final int previousEntry) {
+      this.directory = directory;
+      this.modified = modified;
+      this.previousEntry = previousEntry;
+    }
+
+    @Override
+    protected Listing compute() {
+      final Listing listing = listDirectory(directory, modified, previousEntry);
+      return new Listing(
+          listing.files, new ListTask[listing.files.length], previousEntry, listing.checked);
+    }
+  }
+
+  private static final class ScanThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+      final ForkJoinWorkerThread thread =
+          ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      thread.setName("monitor-scan-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  /** File deletes and creates held until the end of a scan so they can be paired into moves. */
+  private static final class PendingMoves {
+    private final List<DeletedFile> deleted = new ArrayList<>();
+    private final List<ScannedFile> created = new ArrayList<>();
+    private final long readSince;
+
+    PendingMoves(final long readSince) {
+      this.readSince = readSince;
+    }
+
+    /**
+     * Check whether a created file could have been moved from a deleted path. It must have a key
+     * and must have existed before the previous snapshot's entries were read, so it cannot be a new
+     * file given the key of one deleted since. Platforms without birth times report the modified
+     * time as the creation time, which may be a tick behind the file's creation.
+     */
+    boolean mayHaveMoved(final BasicFileAttributes attributes) {
+      if (attributes.isDirectory() || !FileKey.of(attributes).exists()) {
+        return false;
+      }
+      final long born = attributes.creationTime().toMillis();
+      if (born == attributes.lastModifiedTime().toMillis()) {
+        return born < readSince - MODIFIED_TIME_GRANULARITY;
+      }
+      return born < readSince;
+    }
+  }
+
+  private static final class DeletedFile {
+    private final File file;
+    private final MoveKey key;
+
+    DeletedFile(final File file, final MoveKey key) {
+      this.file = file;
+      this.key = key;
+    }
+  }
+
+  /**
+   * A file system's key for a file, split into its device and inode. The parts are read from the
+   * key's description where the platform gives them, as on Unix. Other keys are kept as their hash,
+   * with a device of 0.
+   */
+  private static final class FileKey {
+    private static final FileKey NONE = new FileKey(0, 0);
+
+    private static final String DEVICE = "(dev=";
+
+    private static final String INODE = ",ino=";
+
+    private final long device;
+    private final long inode;
+
+    FileKey(final long device, final long inode) {
+      this.device = device;
+      this.inode = inode;
+    }
+
+    static FileKey of(final BasicFileAttributes attributes) {
+      final Object key = attributes.fileKey();
+      if (key == null) {
+        return NONE;
+      }
+      if (key instanceof FileKey) {
+        return (FileKey) key;
+      }
+      final String description = key.toString();
+      final int inode = description.indexOf(INODE);
+      if (description.startsWith(DEVICE) && inode > 0 && description.endsWith(")")) {
+        try {
+          return new FileKey(
+              Long.parseUnsignedLong(description.substring(DEVICE.length(), inode), 16),
+              Long.parseUnsignedLong(
+                  description.substring(inode + INODE.length(), description.length() - 1)));
+        } catch (final NumberFormatException e) {
+          // not the expected format, fall back to the hash
+        }
+      }
+      return new FileKey(0, key.hashCode());
+    }
+
+    boolean exists() {
+      return device != 0 || inode != 0;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof FileKey)) {
+        return false;
+      }
+      final FileKey other = (FileKey) o;
+      return device == other.device && inode == other.inode;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(device, inode);
+    }
+  }
+
+  /** What a file must keep across a move to be recognised at its new path. */
+  private static final class MoveKey {
+    private final FileKey fileKey;
+    private final long length;
+    private final long lastModified;
+
+    MoveKey(final FileKey fileKey, final long length, final long lastModified) {
+      this.fileKey = fileKey;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+
+    MoveKey(final BasicFileAttributes attributes) {
+      this(FileKey.of(attributes), attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof MoveKey)) {
+        return false;
+      }
+      final MoveKey other = (MoveKey) o;
+      return fileKey.equals(other.fileKey)
+          && length == other.length
+          && lastModified == other.lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fileKey, length, lastModified);
+    }
+  }
+
+  /** The attributes of a file as recorded in the previous snapshot. */
+  private static final class RecordedAttributes implements BasicFileAttributes {
+    private final FileTime lastModified;
+    private final long length;
+    private final boolean directory;
+    private final FileKey fileKey;
+
+    RecordedAttributes(final FileTreeSnapshot snapshot, final int entry) {
+      this.lastModified = FileTime.fromMillis(snapshot.getLastModified(entry));
+      this.length = snapshot.getLength(entry);
+      this.directory = snapshot.isDirectory(entry);
+      this.fileKey = new FileKey(snapshot.getFileDevice(entry), snapshot.getFileInode(entry));
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+      return lastModified;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+      return lastModified;
+    }
+
+    @Override
+    public FileTime creationTime() {
+      return lastModified;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+      return !directory;
+    }
+
+    @Override
+    public boolean isDirectory() {
+      return directory;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+      return false;
+    }
+
+    @Override
+    public boolean isOther() {
+      return false;
+    }
+
+    @Override
+    public long size() {
+      return length;
+    }
+
+    @Override
+    public Object fileKey() {
+      // keeps the recorded key, which is all the snapshot needs
+      return fileKey.exists() ? fileKey : null;
+    }
+  }
+
+  /** A file along with the attributes read for it during the current scan. */
+  static final class ScannedFile {
+    private final File file;
+    private final String name;
+    private final BasicFileAttributes attributes;
+
+    ScannedFile(final File file, final BasicFileAttributes attributes) {
+      this.file = file;
+      this.name = file.getName();
+      this.attributes = attributes;
+    }
+  }
 }
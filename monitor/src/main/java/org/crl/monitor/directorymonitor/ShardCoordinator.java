@@ -0,0 +1,412 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+/**
+ * Shares the processing of a monitored directory between the nodes that monitor it. Files are split
+ * into shards by a hash of their path relative to the monitored directory, and each shard is
+ * processed by the one node holding its lease. Every node scans the whole directory but only
+ * processes events for the shards it holds.
+ *
+ * <p>Nodes send a heartbeat every third of the lease duration, which renews their leases and moves
+ * shards so each live node holds an even share. A node gives up a shard only once the events it is
+ * processing for the shard have completed and their items have been written, so the next holder
+ * sees them as processed. It stops taking new events for the shard straight away, keeps renewing
+ * the lease while the events complete, and gives the shard up at the first heartbeat after. A node
+ * that stops sending heartbeats loses its leases once they expire, and it stops processing their
+ * shards before then, two thirds of the way through the lease. Events the previous holder had not
+ * processed are found by reconciling the directory against the repository when a shard is taken
+ * over.
+ *
+ * <p>Every node must use the same number of shards. The lease duration should be longer than the
+ * longest time an event takes to process, and node clocks should agree to well within a third of
+ * it.
+ */
+public class ShardCoordinator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ShardCoordinator.class);
+
+  private final ShardLeaseRepository shardLeaseRepository;
+
+  private final ClusterNodeRepository clusterNodeRepository;
+
+  private final String rootId;
+
+  private final String nodeId;
+
+  private final int shardCount;
+
+  private final long leaseDuration;
+
+  private final LongSupplier clock;
+
+  private final Set<Integer> owned = ConcurrentHashMap.newKeySet();
+
+  /** Shards being given up, still leased until their events complete. */
+  private final Set<Integer> releasing = new TreeSet<>();
+
+  /** Number of events being processed for each shard. */
+  private final AtomicInteger[] active;
+
+  /** Notified whenever a shard's last event completes. */
+  private final Object idle = new Object();
+
+  /** Time the owned shards may be processed until, well before their leases expire. */
+  private volatile long validUntil;
+
+  /**
+   * Create a coordinator.
+   *
+   * @param shardLeaseRepository where the leases are kept
+   * @param clusterNodeRepository where the heartbeats are kept
+   * @param rootId the id of the monitored directory
+   * @param nodeId the id of this node, unique among the nodes monitoring the directory
+   * @param shardCount the number of shards the directory is split into
+   * @param leaseDuration the time in milliseconds a lease lasts without being renewed
+   */
+  public ShardCoordinator(
+      ShardLeaseRepository shardLeaseRepository,
+      ClusterNodeRepository clusterNodeRepository,
+      String rootId,
+      String nodeId,
+      int shardCount,
+      long leaseDuration) {
+    this(
+        shardLeaseRepository,
+        clusterNodeRepository,
+        rootId,
+        nodeId,
+        shardCount,
+        leaseDuration,
+        System::currentTimeMillis);
+  }
+
+  ShardCoordinator(
+      ShardLeaseRepository shardLeaseRepository,
+      ClusterNodeRepository clusterNodeRepository,
+      String rootId,
+      String nodeId,
+      int shardCount,
+      long leaseDuration,
+      LongSupplier clock) {
+    this.shardLeaseRepository = shardLeaseRepository;
+    this.clusterNodeRepository = clusterNodeRepository;
+    this.rootId = rootId;
+    this.nodeId = nodeId;
+    this.shardCount = Math.max(1, shardCount);
+    this.leaseDuration = Math.max(3, leaseDuration);
+    this.clock = clock;
+    this.active = new AtomicInteger[this.shardCount];
+    for (int i = 0; i < this.shardCount; i++) {
+      active[i] = new AtomicInteger();
+    }
+  }
+
+  public String getRootId() {
+    return rootId;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  /** Get the time in milliseconds between heartbeats. */
+  public long getHeartbeatPeriod() {
+    return leaseDuration / 3;
+  }
+
+  /** Get the shards this node may currently process. */
+  public Set<Integer> getOwnedShards() {
+    if (clock.getAsLong() >= validUntil) {
+      return Collections.emptySet();
+    }
+    return Collections.unmodifiableSet(new TreeSet<>(owned));
+  }
+
+  /**
+   * Get the shard of a file.
+   *
+   * @param relativePath the path of the file relative to the monitored directory, with {@code /}
+   *     separators so every node gets the same shard whatever its platform
+   * @param shardCount the number of shards
+   * @return the shard
+   */
+  static int shardOf(String relativePath, int shardCount) {
+    return Math.floorMod(relativePath.hashCode(), shardCount);
+  }
+
+  boolean owns(int shard) {
+    return owned.contains(shard) && clock.getAsLong() < validUntil;
+  }
+
+  /**
+   * Start processing an event for a shard. Must be followed by {@link #end(int)} when this returns
+   * true.
+   *
+   * @return false if the shard is not held by this node, in which case the event is not processed
+   */
+  boolean begin(int shard) {
+    active[shard].incrementAndGet();
+    if (owns(shard)) {
+      return true;
+    }
+    end(shard);
+    return false;
+  }
+
+  /** Finish processing an event started with {@link #begin(int)}. */
+  void end(int shard) {
+    if (active[shard].decrementAndGet() == 0) {
+      synchronized (idle) {
+        idle.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Renew this node's leases and take or give up shards so each live node holds an even share. Does
+   * not wait for events in progress: a shard with events still being processed is given up at a
+   * later heartbeat.
+   *
+   * @param flush writes the items of processed events, throwing if they could not be written
+   * @return the shards this node took over, whose changes need to be reconciled
+   */
+  synchronized Set<Integer> heartbeat(Runnable flush) {
+    long now = clock.getAsLong();
+    clusterNodeRepository.save(new ClusterNode(rootId, nodeId, now + leaseDuration));
+    clusterNodeRepository.deleteByRootIdAndExpiresLessThan(rootId, now - leaseDuration);
+    int target = fairShare(now);
+
+    List<ShardLease> held = new ArrayList<>();
+    List<ShardLease> free = new ArrayList<>();
+    for (ShardLease lease : leases()) {
+      if (nodeId.equals(lease.getOwner()) && lease.getExpires() > now) {
+        ShardLease renewed = update(lease, nodeId, now + leaseDuration);
+        if (renewed != null) {
+          held.add(renewed);
+        }
+      } else if (lease.getOwner() == null || lease.getExpires() <= now) {
+        free.add(lease);
+      }
+    }
+    Set<Integer> heldShards =
+        held.stream().map(ShardLease::getShard).collect(Collectors.toCollection(HashSet::new));
+    for (Integer shard : owned) {
+      if (!heldShards.contains(shard)) {
+        LOGGER.warn("Lost the lease on shard {} of {}", shard, rootId);
+        owned.remove(shard);
+      }
+    }
+    releasing.retainAll(heldShards);
+    validUntil = now + leaseDuration - getHeartbeatPeriod();
+    Set<Integer> acquired = new TreeSet<>();
+    for (Integer shard : heldShards) {
+      if (!releasing.contains(shard) && owned.add(shard)) {
+        acquired.add(shard);
+      }
+    }
+
+    List<ShardLease> kept = new ArrayList<>();
+    List<ShardLease> given = new ArrayList<>();
+    for (ShardLease lease : held) {
+      (releasing.contains(lease.getShard()) ? given : kept).add(lease);
+    }
+    if (kept.size() > target) {
+      // stop taking events for the extra shards, they are given up once those in progress complete
+      for (ShardLease lease : kept.subList(target, kept.size())) {
+        owned.remove(lease.getShard());
+        acquired.remove(lease.getShard());
+        releasing.add(lease.getShard());
+        given.add(lease);
+      }
+    } else {
+      // a shard being given up is taken back if this node needs it again
+      for (Iterator<ShardLease> it = given.iterator(); owned.size() < target && it.hasNext(); ) {
+        int shard = it.next().getShard();
+        it.remove();
+        releasing.remove(shard);
+        owned.add(shard);
+        acquired.add(shard);
+      }
+    }
+    given.removeIf(lease -> active[lease.getShard()].get() > 0);
+    release(given, flush);
+    for (ShardLease lease : free) {
+      if (owned.size() >= target) {
+        break;
+      }
+      ShardLease taken = update(lease, nodeId, now + leaseDuration);
+      if (taken != null) {
+        owned.add(taken.getShard());
+        acquired.add(taken.getShard());
+      }
+    }
+    if (!acquired.isEmpty()) {
+      LOGGER.info("Node {} took shards {} of {}", nodeId, acquired, rootId);
+    }
+    return acquired;
+  }
+
+  /**
+   * Give up every shard, once the events being processed for them have completed, so other nodes
+   * can take them over straight away.
+   *
+   * @param flush writes the items of processed events, throwing if they could not be written
+   */
+  synchronized void leave(Runnable flush) {
+    owned.clear();
+    List<ShardLease> held = new ArrayList<>();
+    for (ShardLease lease : shardLeaseRepository.findByRootIdOrderByShardAsc(rootId)) {
+      if (nodeId.equals(lease.getOwner())) {
+        held.add(lease);
+      }
+    }
+    awaitIdle(held, getHeartbeatPeriod() / 2);
+    held.removeIf(
+        lease -> {
+          if (active[lease.getShard()].get() > 0) {
+            LOGGER.info(
+                "Shard {} of {} is still busy. Its lease will expire", lease.getShard(), rootId);
+            return true;
+          }
+          return false;
+        });
+    release(held, flush);
+    releasing.clear();
+    clusterNodeRepository.deleteById(new ClusterNode(rootId, nodeId, 0).getId());
+  }
+
+  /** Get the number of shards this node should hold, given the nodes that are alive. */
+  private int fairShare(long now) {
+    List<ClusterNode> nodes =
+        clusterNodeRepository.findByRootIdAndExpiresGreaterThanOrderByNodeIdAsc(rootId, now);
+    int count = 0;
+    int index = 0;
+    for (ClusterNode node : nodes) {
+      if (!node.getNodeId().equals(nodeId)) {
+        count++;
+        if (node.getNodeId().compareTo(nodeId) < 0) {
+          index++;
+        }
+      }
+    }
+    count++;
+    return shardCount / count + (index < shardCount % count ? 1 : 0);
+  }
+
+  /** Get the directory's leases, creating any that do not exist yet. */
+  private List<ShardLease> leases() {
+    List<ShardLease> leases = shardLeaseRepository.findByRootIdOrderByShardAsc(rootId);
+    if (leases.size() < shardCount) {
+      Set<Integer> existing = leases.stream().map(ShardLease::getShard).collect(Collectors.toSet());
+      for (int shard = 0; shard < shardCount; shard++) {
+        if (!existing.contains(shard)) {
+          try {
+            shardLeaseRepository.save(new ShardLease(rootId, shard));
+          } catch (DataAccessException e) {
+            LOGGER.debug("Lease on shard {} of {} created by another node", shard, rootId, e);
+          }
+        }
+      }
+      leases = shardLeaseRepository.findByRootIdOrderByShardAsc(rootId);
+    }
+    leases.removeIf(lease -> lease.getShard() >= shardCount);
+    return leases;
+  }
+
+  /**
+   * Give up the leases of shards that are no longer processed and have no events in progress, once
+   * the items of their processed events have been written. If the items could not be written the
+   * shards stay leased, to be given up at a later heartbeat.
+   */
+  private void release(List<ShardLease> leases, Runnable flush) {
+    if (leases.isEmpty()) {
+      return;
+    }
+    try {
+      flush.run();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Could not write processed items. Keeping shards of {}", rootId, e);
+      return;
+    }
+    Set<Integer> released = new TreeSet<>();
+    for (ShardLease lease : leases) {
+      releasing.remove(lease.getShard());
+      if (update(lease, null, 0) != null) {
+        released.add(lease.getShard());
+      }
+    }
+    if (!released.isEmpty()) {
+      LOGGER.info("Node {} gave up shards {} of {}", nodeId, released, rootId);
+    }
+  }
+
+  /**
+   * Wait until the events in progress for the shards of some leases have completed.
+   *
+   * @param timeout the longest time in milliseconds to wait
+   */
+  private void awaitIdle(List<ShardLease> leases, long timeout) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    synchronized (idle) {
+      while (leases.stream().anyMatch(lease -> active[lease.getShard()].get() > 0)) {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+          return;
+        }
+        try {
+          idle.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Change a lease, as long as no other node has changed it since it was read.
+   *
+   * @return the changed lease, or null if another node changed it first
+   */
+  private ShardLease update(ShardLease lease, String owner, long expires) {
+    lease.setOwner(owner);
+    lease.setExpires(expires);
+    try {
+      return shardLeaseRepository.save(lease);
+    } catch (OptimisticLockingFailureException e) {
+      LOGGER.debug("Lease on shard {} of {} changed by another node", lease.getShard(), rootId);
+      return null;
+    }
+  }
+}
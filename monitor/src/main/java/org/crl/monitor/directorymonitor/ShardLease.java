@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import javax.persistence.*;
+
+/**
+ * A time bounded claim by a node on one shard of a monitored directory. Updates are checked against
+ * the version so two nodes can never both take the same lease.
+ */
+@Entity
+@Table(indexes = {@Index(name = "idx_shard_lease_root_id", columnList = "rootId")})
+public class ShardLease {
+
+  /** The root id and shard number, for example {@code default/3}. */
+  @Id private String id;
+
+  private String rootId;
+
+  private int shard;
+
+  /** Id of the node holding the lease, or null when it is free. */
+  private String owner;
+
+  /** Time in milliseconds the lease ends unless it is renewed. */
+  private long expires;
+
+  @Version private Long version;
+
+  public ShardLease() {}
+
+  public ShardLease(String rootId, int shard) {
+    this.id = rootId + "/" + shard;
+    this.rootId = rootId;
+    this.shard = shard;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getRootId() {
+    return rootId;
+  }
+
+  public int getShard() {
+    return shard;
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  public void setOwner(String owner) {
+    this.owner = owner;
+  }
+
+  public long getExpires() {
+    return expires;
+  }
+
+  public void setExpires(long expires) {
+    this.expires = expires;
+  }
+
+  public Long getVersion() {
+    return version;
+  }
+
+  @Override
+  public String toString() {
+    return "ShardLease{"
+        + "id='"
+        + id
+        + '\''
+        + ", owner='"
+        + owner
+        + '\''
+        + ", expires="
+        + expires
+        + '}';
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds files until a signal file says they are complete. Files that are already complete when they
+ * are tracked are released straight away, so nothing waits on a timer.
+ */
+abstract class SignalledCompletion implements CompletionStrategy {
+
+  private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+
+  /**
+   * Check whether a file has been signalled as complete.
+   *
+   * @param file the file
+   * @return true if the file is complete
+   */
+  abstract boolean isComplete(File file);
+
+  @Override
+  public void track(File file, Runnable onComplete, Runnable onDropped) {
+    if (isComplete(file)) {
+      onComplete.run();
+      return;
+    }
+    Pending entry = new Pending(onComplete, onDropped);
+    if (pending.putIfAbsent(file.getAbsolutePath(), entry) != null) {
+      onDropped.run();
+    } else if (isComplete(file)) {
+      // signalled while the file was being added
+      release(file);
+    }
+  }
+
+  @Override
+  public boolean holdsUntilSignalled() {
+    return true;
+  }
+
+  @Override
+  public void trackAgain(File file, Runnable onComplete, Runnable onDropped) {
+    // the file was signalled before it was first released
+    onComplete.run();
+  }
+
+  @Override
+  public void cancel(File file) {
+    Pending entry = pending.remove(file.getAbsolutePath());
+    if (entry != null) {
+      entry.onDropped.run();
+    }
+  }
+
+  /**
+   * Release a file if it is being held.
+   *
+   * @return true if the file was held
+   */
+  boolean release(File file) {
+    Pending entry = pending.remove(file.getAbsolutePath());
+    if (entry == null) {
+      return false;
+    }
+    entry.onComplete.run();
+    return true;
+  }
+
+  @Override
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  @Override
+  public void shutdown() {
+    pending.keySet().forEach(path -> cancel(new File(path)));
+  }
+
+  private static class Pending {
+    private final Runnable onComplete;
+    private final Runnable onDropped;
+
+    Pending(Runnable onComplete, Runnable onDropped) {
+      this.onComplete = onComplete;
+      this.onDropped = onDropped;
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds files until they have stopped changing. Each tracked file is re-checked on a timer using
+ * its size and last modified time and is released once neither has changed and the file has not
+ * been modified for at least the stability period. No thread waits on a file while it is pending.
+ */
+public class StabilityTracker implements CompletionStrategy {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StabilityTracker.class);
+
+  private final long stabilityPeriod;
+
+  private final ScheduledThreadPoolExecutor timer;
+
+  private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+
+  /**
+   * Create a tracker.
+   *
+   * @param stabilityPeriod the time in milliseconds a file must go unmodified before it is
+   *     considered stable
+   */
+  public StabilityTracker(long stabilityPeriod) {
+    this.stabilityPeriod = stabilityPeriod;
+    this.timer =
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              Thread thread = new Thread(runnable, "monitor-stability");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Start tracking a file. If the file is already being tracked the existing callback is kept and
+   * the new one is ignored.
+   *
+   * @param file the file to wait on
+   * @param onStable called once the file is stable, either from the calling thread when the file is
+   *     already stable or from the timer thread. Should return quickly.
+   */
+  public void track(File file, Runnable onStable) {
+    track(file, onStable, () -> {});
+  }
+
+  /**
+   * Start tracking a file. If the file is already being tracked the existing callback is kept and
+   * the new one is dropped.
+   *
+   * @param file the file to wait on
+   * @param onStable called once the file is stable, either from the calling thread when the file is
+   *     already stable or from the timer thread. Should return quickly.
+   * @param onDropped called instead of {@code onStable} if the file is never released, because it
+   *     was already tracked, could no longer be read, was cancelled or the tracker shut down
+   */
+  @Override
+  public void track(File file, Runnable onStable, Runnable onDropped) {
+    Pending entry = new Pending(file, onStable, onDropped);
+    if (pending.putIfAbsent(file.getAbsolutePath(), entry) == null) {
+      check(entry);
+    } else {
+      onDropped.run();
+    }
+  }
+
+  /**
+   * Stop tracking a file without releasing it.
+   *
+   * @param file the file to stop tracking
+   */
+  @Override
+  public void cancel(File file) {
+    Pending entry = pending.remove(file.getAbsolutePath());
+    if (entry != null) {
+      entry.onDropped.run();
+    }
+  }
+
+  /**
+   * Get the number of files waiting to become stable.
+   *
+   * @return the number of pending files
+   */
+  @Override
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  private void check(Pending entry) {
+    String path = entry.file.getAbsolutePath();
+    if (pending.get(path) != entry) {
+      // cancelled or replaced since this check was scheduled
+      return;
+    }
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(entry.file.toPath(), BasicFileAttributes.class);
+    } catch (IOException e) {
+      LOGGER.debug("File {} no longer readable. No longer tracking it.", path);
+      drop(path, entry);
+      return;
+    }
+    long modified = attributes.lastModifiedTime().toMillis();
+    long size = attributes.size();
+    long age = System.currentTimeMillis() - modified;
+    boolean unchanged = entry.modified < 0 || (entry.modified == modified && entry.size == size);
+    if (age >= stabilityPeriod && unchanged) {
+      if (pending.remove(path, entry)) {
+        entry.onStable.run();
+      }
+      return;
+    }
+    entry.modified = modified;
+    entry.size = size;
+    long delay = age < stabilityPeriod ? stabilityPeriod - age : stabilityPeriod;
+    try {
+      timer.schedule(() -> check(entry), delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      drop(path, entry);
+    }
+  }
+
+  private void drop(String path, Pending entry) {
+    if (pending.remove(path, entry)) {
+      entry.onDropped.run();
+    }
+  }
+
+  /** Stop the timer. Files still pending are dropped. */
+  @Override
+  public void shutdown() {
+    timer.shutdownNow();
+    pending.forEach(this::drop);
+  }
+
+  private static class Pending {
+    private final File file;
+    private final Runnable onStable;
+    private final Runnable onDropped;
+    private long modified = -1;
+    private long size = -1;
+
+    Pending(File file, Runnable onStable, Runnable onDropped) {
+      this.file = file;
+      this.onStable = onStable;
+      this.onDropped = onDropped;
+    }
+  }
+}
@@ -15,7 +15,12 @@ public enum Status {
   UNPROCESSED(0),
   UNPROCESSED_UPDATE(1),
   UNPROCESSED_DELETE(2),
-  PROCESSED(3);
+  PROCESSED(3),
+  /**
+   * Processing failed too many times and the item is no longer retried. A later change to the file
+   * is still processed.
+   */
+  FAILED(4);
   private final int value;
 
   Status(int value) {
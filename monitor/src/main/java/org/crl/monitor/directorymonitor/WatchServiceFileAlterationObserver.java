@@ -0,0 +1,449 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.commons.io.monitor.FileAlterationListener;
+import org.apache.commons.io.monitor.FileAlterationObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Observer that is driven by a {@link WatchService} instead of re-scanning the directory tree.
+ * Every directory in the tree is registered with the watch service and each call to {@link
+ * #checkAndNotify()} drains the pending watch events and fires the matching listener callbacks.
+ * When the watch service reports an overflow the affected directory is re-listed and compared to
+ * what was previously known about it.
+ *
+ * <p>Like {@link SafeFileAlterationObserver} monitoring is suspended without firing delete events
+ * when the root directory becomes unavailable.
+ */
+public class WatchServiceFileAlterationObserver extends FileAlterationObserver {
+
+  private static final long serialVersionUID = -3470426437245362372L;
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(WatchServiceFileAlterationObserver.class);
+
+  /** File store types that accept watch registrations but never report remote changes. */
+  private static final Set<String> NETWORK_FILE_STORES =
+      new HashSet<>(
+          Arrays.asList(
+              "nfs", "nfs4", "cifs", "smb", "smbfs", "smb2", "afs", "9p", "fuse.sshfs", "ncpfs"));
+
+  private final transient List<FileAlterationListener> listeners = new CopyOnWriteArrayList<>();
+  private final File directory;
+  private final transient FileFilter fileFilter;
+  private final transient Map<WatchKey, Path> keys = new HashMap<>();
+  private final transient Map<Path, WatchKey> keysByDirectory = new HashMap<>();
+  private final transient Map<Path, Map<String, Entry>> tree = new HashMap<>();
+  private transient WatchService watchService;
+  private boolean available;
+
+  /**
+   * Construct an observer for the specified directory and file filter.
+   *
+   * @param directory the directory to observe
+   * @param fileFilter The file filter or null if none
+   */
+  public WatchServiceFileAlterationObserver(final File directory, final FileFilter fileFilter) {
+    super(directory);
+    this.directory = directory;
+    this.fileFilter = fileFilter;
+  }
+
+  /**
+   * Check whether the directory is on a file system where watching is supported and reliable.
+   *
+   * @param directory the directory to check
+   * @return true if the directory can be watched
+   */
+  public static boolean isSupported(final File directory) {
+    Path path = directory.toPath();
+    try {
+      String type = Files.getFileStore(path).type().toLowerCase(Locale.ROOT);
+      if (NETWORK_FILE_STORES.contains(type)) {
+        LOGGER.info("Directory [{}] is on a {} file system which cannot be watched", path, type);
+        return false;
+      }
+      try (WatchService probe = path.getFileSystem().newWatchService()) {
+        path.register(probe, ENTRY_CREATE);
+      }
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      LOGGER.info("Directory [{}] cannot be watched: {}", path, e.getMessage());
+      return false;
+    }
+  }
+
+  @Override
+  public File getDirectory() {
+    return directory;
+  }
+
+  @Override
+  public FileFilter getFileFilter() {
+    return fileFilter;
+  }
+
+  @Override
+  public void addListener(final FileAlterationListener listener) {
+    if (listener != null) {
+      listeners.add(listener);
+    }
+  }
+
+  @Override
+  public void removeListener(final FileAlterationListener listener) {
+    if (listener != null) {
+      listeners.remove(listener);
+    }
+  }
+
+  @Override
+  public Iterable<FileAlterationListener> getListeners() {
+    return listeners;
+  }
+
+  /**
+   * Register every directory in the tree with a new watch service and record the current state of
+   * the tree. No events are fired.
+   *
+   * @throws Exception if the watch service could not be created or a directory could not be
+   *     registered
+   */
+  @Override
+  public void initialize() throws Exception {
+    closeWatchService();
+    keys.clear();
+    keysByDirectory.clear();
+    tree.clear();
+    Path root = directory.toPath();
+    watchService = root.getFileSystem().newWatchService();
+    registerTree(root, false);
+    available = true;
+  }
+
+  /** Drain pending watch events and fire the matching listener callbacks. */
+  @Override
+  public void checkAndNotify() {
+    if (!directory.exists() || !directory.canRead()) {
+      if (available) {
+        LOGGER.warn(
+            "Monitored directory [{}] no longer available. Suspending monitoring until directory becomes available",
+            directory.getAbsolutePath());
+        available = false;
+      }
+      return;
+    }
+    if (!available) {
+      LOGGER.info(
+          "Monitored directory [{}] has become available. Resuming monitoring.",
+          directory.getAbsolutePath());
+      try {
+        initialize();
+      } catch (Exception e) {
+        LOGGER.error("Could not initialize monitored directory after it became available", e);
+      }
+      return;
+    }
+
+    try {
+      WatchKey key = watchService.poll();
+      if (key == null) {
+        return;
+      }
+      for (final FileAlterationListener listener : listeners) {
+        listener.onStart(this);
+      }
+      while (key != null) {
+        processKey(key);
+        key = watchService.poll();
+      }
+      for (final FileAlterationListener listener : listeners) {
+        listener.onStop(this);
+      }
+    } catch (ClosedWatchServiceException e) {
+      LOGGER.debug("Watch service closed", e);
+    }
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    closeWatchService();
+  }
+
+  private void processKey(final WatchKey key) {
+    final Path dir = keys.get(key);
+    if (dir == null) {
+      key.cancel();
+      return;
+    }
+    for (final WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        LOGGER.debug("Watch events lost for [{}]. Re-scanning directory.", dir);
+        rescan(dir);
+        continue;
+      }
+      final Path child = dir.resolve((Path) event.context());
+      if (event.kind() == ENTRY_DELETE) {
+        handleDelete(dir, child);
+      } else {
+        handleCreateOrModify(dir, child);
+      }
+    }
+    if (!key.reset()) {
+      keys.remove(key);
+      keysByDirectory.remove(dir);
+      if (dir.equals(directory.toPath())) {
+        // root was removed or unmounted, re-register everything once it is back
+        available = false;
+      }
+    }
+  }
+
+  private void handleCreateOrModify(final Path dir, final Path child) {
+    final Map<String, Entry> children = tree.get(dir);
+    if (children == null) {
+      return;
+    }
+    final BasicFileAttributes attributes = readAttributes(child);
+    if (attributes == null) {
+      // already gone again, the delete event will follow
+      return;
+    }
+    if (!accept(child, attributes)) {
+      return;
+    }
+    final String name = child.getFileName().toString();
+    final Entry entry = children.get(name);
+    if (entry == null) {
+      children.put(name, new Entry(attributes));
+      fireCreate(child, attributes.isDirectory());
+    } else if (entry.directory != attributes.isDirectory()) {
+      removeEntry(child, entry);
+      children.put(name, new Entry(attributes));
+      fireCreate(child, attributes.isDirectory());
+    } else if (!entry.directory && entry.refresh(attributes)) {
+      for (final FileAlterationListener listener : listeners) {
+        listener.onFileChange(child.toFile());
+      }
+    }
+  }
+
+  private void handleDelete(final Path dir, final Path child) {
+    final Map<String, Entry> children = tree.get(dir);
+    if (children == null) {
+      return;
+    }
+    final Entry entry = children.remove(child.getFileName().toString());
+    if (entry != null) {
+      removeEntry(child, entry);
+    }
+  }
+
+  /**
+   * Re-list a single directory and fire events for any differences from the known state. Child
+   * directories have their own watch keys so they are only walked when they are new.
+   */
+  private void rescan(final Path dir) {
+    final Map<String, Entry> children = tree.get(dir);
+    if (children == null || !Files.isDirectory(dir)) {
+      return;
+    }
+    final Set<String> seen = new HashSet<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (final Path child : stream) {
+        if (accept(child)) {
+          seen.add(child.getFileName().toString());
+          handleCreateOrModify(dir, child);
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.warn("Could not re-scan directory [{}]", dir, e);
+      return;
+    }
+    for (final String name : new HashSet<>(children.keySet())) {
+      if (!seen.contains(name)) {
+        removeEntry(dir.resolve(name), children.remove(name));
+      }
+    }
+  }
+
+  /**
+   * Register a directory and everything below it, recording the state of each entry.
+   *
+   * @param dir the directory to register
+   * @param notify true to fire create events for the directory contents
+   */
+  private void registerTree(final Path dir, final boolean notify) throws IOException {
+    final WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+    keys.put(key, dir);
+    keysByDirectory.put(dir, key);
+    final Map<String, Entry> children = new HashMap<>();
+    tree.put(dir, children);
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (final Path child : stream) {
+        final BasicFileAttributes attributes = readAttributes(child);
+        if (attributes == null || !accept(child, attributes)) {
+          continue;
+        }
+        children.put(child.getFileName().toString(), new Entry(attributes));
+        if (attributes.isDirectory()) {
+          if (notify) {
+            for (final FileAlterationListener listener : listeners) {
+              listener.onDirectoryCreate(child.toFile());
+            }
+          }
+          registerTree(child, notify);
+        } else if (notify) {
+          for (final FileAlterationListener listener : listeners) {
+            listener.onFileCreate(child.toFile());
+          }
+        }
+      }
+    }
+  }
+
+  private void fireCreate(final Path child, final boolean isDirectory) {
+    if (!isDirectory) {
+      for (final FileAlterationListener listener : listeners) {
+        listener.onFileCreate(child.toFile());
+      }
+      return;
+    }
+    for (final FileAlterationListener listener : listeners) {
+      listener.onDirectoryCreate(child.toFile());
+    }
+    try {
+      // files created before the registration completes are picked up by the walk
+      registerTree(child, true);
+    } catch (IOException e) {
+      LOGGER.warn("Could not watch new directory [{}]", child, e);
+    }
+  }
+
+  /** Forget an entry, firing delete events for it and anything below it. */
+  private void removeEntry(final Path child, final Entry entry) {
+    if (!entry.directory) {
+      for (final FileAlterationListener listener : listeners) {
+        listener.onFileDelete(child.toFile());
+      }
+      return;
+    }
+    final Map<String, Entry> children = tree.remove(child);
+    if (children != null) {
+      children.forEach((name, e) -> removeEntry(child.resolve(name), e));
+    }
+    final WatchKey key = keysByDirectory.remove(child);
+    if (key != null) {
+      keys.remove(key);
+      key.cancel();
+    }
+    for (final FileAlterationListener listener : listeners) {
+      listener.onDirectoryDelete(child.toFile());
+    }
+  }
+
+  private boolean accept(final Path path) {
+    return fileFilter == null || fileFilter.accept(path.toFile());
+  }
+
+  private boolean accept(final Path path, final BasicFileAttributes attributes) {
+    if (fileFilter instanceof MonitorFileFilter) {
+      return ((MonitorFileFilter) fileFilter).accept(path.toFile(), attributes.isDirectory());
+    }
+    return accept(path);
+  }
+
+  private static BasicFileAttributes readAttributes(final Path path) {
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private void closeWatchService() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        LOGGER.debug("Error closing watch service", e);
+      }
+      watchService = null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder builder = new StringBuilder();
+    builder.append(getClass().getSimpleName());
+    builder.append("[file='");
+    builder.append(getDirectory().getPath());
+    builder.append('\'');
+    if (fileFilter != null) {
+      builder.append(", ");
+      builder.append(fileFilter.toString());
+    }
+    builder.append(", listeners=");
+    builder.append(listeners.size());
+    builder.append("]");
+    return builder.toString();
+  }
+
+  /** What was last seen for a file or directory. */
+  private static class Entry {
+    private final boolean directory;
+    private long lastModified;
+    private long length;
+
+    Entry(final BasicFileAttributes attributes) {
+      this.directory = attributes.isDirectory();
+      this.lastModified = attributes.lastModifiedTime().toMillis();
+      this.length = attributes.size();
+    }
+
+    /** Update from the latest attributes, returning true if anything changed. */
+    boolean refresh(final BasicFileAttributes attributes) {
+      long newModified = attributes.lastModifiedTime().toMillis();
+      long newLength = attributes.size();
+      boolean changed = newModified != lastModified || newLength != length;
+      lastModified = newModified;
+      length = newLength;
+      return changed;
+    }
+  }
+}
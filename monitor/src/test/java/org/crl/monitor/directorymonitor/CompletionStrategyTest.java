@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompletionStrategyTest {
+
+  @TempDir Path dir;
+
+  private final List<String> events = new ArrayList<>();
+
+  @Test
+  void releasesFilesOnceTheirMarkerExists() throws Exception {
+    MarkerCompletion completion = new MarkerCompletion(".done");
+    File early = write("early.csv");
+    write("early.csv.done");
+    File late = write("late.csv");
+
+    track(completion, early);
+    track(completion, late);
+    assertEquals(List.of("complete early.csv"), events);
+    assertEquals(1, completion.getPendingCount());
+
+    File marker = write("late.csv.done");
+    assertTrue(completion.isSignalFile(marker));
+    assertFalse(completion.isSignalFile(late));
+    completion.signalled(marker);
+    assertEquals(List.of("complete early.csv", "complete late.csv"), events);
+    assertEquals(0, completion.getPendingCount());
+  }
+
+  @Test
+  void releasesFilesListedInAManifest() throws Exception {
+    ManifestCompletion completion = new ManifestCompletion("*.manifest");
+    File first = write("first.csv");
+    File second = write("second.csv");
+    File unlisted = write("unlisted.csv");
+    File manifest = dir.resolve("batch-1.manifest").toFile();
+    Files.write(manifest.toPath(), List.of("# batch 1", "first.csv", "", "second.csv"));
+
+    track(completion, first);
+    track(completion, unlisted);
+    assertTrue(events.isEmpty());
+    assertTrue(completion.isSignalFile(manifest));
+    completion.signalled(manifest);
+    assertEquals(List.of("complete first.csv"), events);
+    // listed before it was seen
+    track(completion, second);
+    assertEquals(List.of("complete first.csv", "complete second.csv"), events);
+
+    // a listing is used once, so a rewritten file waits to be listed again
+    track(completion, first);
+    completion.cancel(first);
+    completion.cancel(unlisted);
+    assertEquals(
+        List.of(
+            "complete first.csv",
+            "complete second.csv",
+            "dropped first.csv",
+            "dropped unlisted.csv"),
+        events);
+  }
+
+  @Test
+  void rewrittenManifestDoesNotReleaseFilesAgain() throws Exception {
+    ManifestCompletion completion = new ManifestCompletion("*.manifest");
+    File first = write("first.csv");
+    File second = write("second.csv");
+    File manifest = dir.resolve("batch.manifest").toFile();
+    Files.write(manifest.toPath(), List.of("first.csv"));
+    track(completion, first);
+    completion.signalled(manifest);
+    assertEquals(List.of("complete first.csv"), events);
+
+    // first is rewritten, and the manifest is rewritten to add second
+    track(completion, first);
+    track(completion, second);
+    Files.write(manifest.toPath(), List.of("first.csv", "second.csv"));
+    completion.signalled(manifest);
+    assertEquals(List.of("complete first.csv", "complete second.csv"), events);
+    assertEquals(1, completion.getPendingCount());
+
+    // a manifest written again after it was deleted lists its files afresh
+    completion.signalRemoved(manifest);
+    completion.signalled(manifest);
+    assertEquals(
+        List.of("complete first.csv", "complete second.csv", "complete first.csv"), events);
+  }
+
+  @Test
+  void releasesRetriedFilesStraightAway() throws Exception {
+    File file = write("retried.csv");
+
+    new MarkerCompletion(".done")
+        .trackAgain(file, () -> events.add("complete marker"), () -> events.add("dropped"));
+    new ManifestCompletion("*.manifest")
+        .trackAgain(file, () -> events.add("complete manifest"), () -> events.add("dropped"));
+    new RenameCompletion().track(file, () -> events.add("complete rename"), () -> {});
+
+    assertEquals(List.of("complete marker", "complete manifest", "complete rename"), events);
+  }
+
+  private void track(CompletionStrategy completion, File file) {
+    completion.track(
+        file,
+        () -> events.add("complete " + file.getName()),
+        () -> events.add("dropped " + file.getName()));
+  }
+
+  private File write(String name) throws Exception {
+    return Files.write(dir.resolve(name), new byte[] {1}).toFile();
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class EventBatcherTest {
+
+  private final RecordingProcessor processor = new RecordingProcessor();
+
+  private EventBatcher batcher;
+
+  @AfterEach
+  void tearDown() throws Exception {
+    batcher.shutdown();
+  }
+
+  @Test
+  void sendsFullBatches() throws Exception {
+    batcher = new EventBatcher(processor, 3, 60_000L);
+    List<CompletableFuture<ProcessingResult>> results = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      results.add(batcher.create(new File("file-" + i)));
+    }
+    for (CompletableFuture<ProcessingResult> result : results) {
+      assertTrue(result.get(5, TimeUnit.SECONDS).isSuccess());
+    }
+    assertEquals(List.of(3, 3), processor.batchSizes);
+    assertEquals("alt-file-4", results.get(4).get().getAltId());
+  }
+
+  @Test
+  void sendsPartialBatchAfterMaxAge() throws Exception {
+    batcher = new EventBatcher(processor, 100, 50L);
+    CompletableFuture<ProcessingResult> update = batcher.update(new File("a"), "alt-a");
+    CompletableFuture<ProcessingResult> delete = batcher.delete(new File("b"), "alt-b");
+
+    assertTrue(update.get(5, TimeUnit.SECONDS).isSuccess());
+    assertTrue(delete.get(5, TimeUnit.SECONDS).isSuccess());
+    assertEquals(List.of(1, 1), processor.batchSizes);
+  }
+
+  @Test
+  void mapsFailuresToTheFailedFiles() throws Exception {
+    batcher = new EventBatcher(processor, 3, 60_000L);
+    CompletableFuture<ProcessingResult> ok = batcher.create(new File("ok"));
+    CompletableFuture<ProcessingResult> bad = batcher.create(new File("bad"));
+    CompletableFuture<ProcessingResult> alsoOk = batcher.create(new File("also-ok"));
+
+    assertTrue(ok.get(5, TimeUnit.SECONDS).isSuccess());
+    assertFalse(bad.get(5, TimeUnit.SECONDS).isSuccess());
+    assertTrue(alsoOk.get(5, TimeUnit.SECONDS).isSuccess());
+  }
+
+  @Test
+  void failsWholeBatchWhenProcessorThrows() throws Exception {
+    batcher = new EventBatcher(processor, 2, 60_000L);
+    CompletableFuture<ProcessingResult> first = batcher.update(new File("throw"), null);
+    CompletableFuture<ProcessingResult> second = batcher.update(new File("other"), null);
+
+    assertFalse(first.get(5, TimeUnit.SECONDS).isSuccess());
+    assertFalse(second.get(5, TimeUnit.SECONDS).isSuccess());
+  }
+
+  private static class RecordingProcessor implements BatchProcessor {
+
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public String getId() {
+      return "Recording";
+    }
+
+    @Override
+    public List<ProcessingResult> processCreates(List<File> files) {
+      batchSizes.add(files.size());
+      return BatchProcessor.super.processCreates(files);
+    }
+
+    @Override
+    public List<ProcessingResult> processUpdates(List<File> files, List<String> altIds) {
+      batchSizes.add(files.size());
+      if (files.get(0).getName().equals("throw")) {
+        throw new IllegalStateException("indexer unavailable");
+      }
+      return BatchProcessor.super.processUpdates(files, altIds);
+    }
+
+    @Override
+    public List<ProcessingResult> processDeletes(List<File> files, List<String> altIds) {
+      batchSizes.add(files.size());
+      return BatchProcessor.super.processDeletes(files, altIds);
+    }
+
+    @Override
+    public String processCreate(File file) {
+      if (file.getName().equals("bad")) {
+        throw new IllegalStateException("rejected");
+      }
+      return "alt-" + file.getName();
+    }
+
+    @Override
+    public void processUpdate(File file, String altId) {}
+
+    @Override
+    public void processDelete(File file, String altId) {}
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.crl.monitor.directorymonitor.EventQueue.Kind;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class EventCoalescerTest {
+
+  private final Map<String, Kind> released = new ConcurrentHashMap<>();
+
+  private EventCoalescer coalescer;
+
+  @AfterEach
+  void tearDown() {
+    coalescer.shutdown();
+  }
+
+  @Test
+  void mergesEventsWithinTheWindow() throws Exception {
+    coalescer = new EventCoalescer(100L, 10, this::record);
+    coalescer.add(new File("created"), Kind.CREATE);
+    coalescer.add(new File("created"), Kind.UPDATE);
+    coalescer.add(new File("updated"), Kind.UPDATE);
+    coalescer.add(new File("updated"), Kind.UPDATE);
+    coalescer.add(new File("removed"), Kind.UPDATE);
+    coalescer.add(new File("removed"), Kind.DELETE);
+    coalescer.add(new File("replaced"), Kind.DELETE);
+    coalescer.add(new File("replaced"), Kind.CREATE);
+    coalescer.add(new File("transient"), Kind.CREATE);
+    coalescer.add(new File("transient"), Kind.UPDATE);
+    coalescer.add(new File("transient"), Kind.DELETE);
+
+    awaitReleased(4);
+
+    assertEquals(
+        Map.of(
+            "created", Kind.CREATE,
+            "updated", Kind.UPDATE,
+            "removed", Kind.DELETE,
+            "replaced", Kind.UPDATE),
+        released);
+    assertEquals(7, coalescer.getAvoidedCount());
+    assertEquals(0, coalescer.getHeldCount());
+  }
+
+  @Test
+  void releasesStraightAwayWhenFull() {
+    coalescer = new EventCoalescer(60_000L, 1, this::record);
+    coalescer.add(new File("held"), Kind.CREATE);
+    coalescer.add(new File("passed"), Kind.CREATE);
+
+    assertEquals(Map.of("passed", Kind.CREATE), released);
+    assertEquals(1, coalescer.getHeldCount());
+  }
+
+  private void record(File file, Kind kind) {
+    released.put(file.getName(), kind);
+  }
+
+  private void awaitReleased(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (released.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(50);
+  }
+}
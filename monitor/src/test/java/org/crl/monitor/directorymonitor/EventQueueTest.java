@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.crl.monitor.directorymonitor.EventQueue.Kind;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class EventQueueTest {
+
+  @TempDir Path tempDir;
+
+  @Test
+  void collapsesWaitingDuplicates() {
+    EventQueue queue = new EventQueue(10, OverflowPolicy.DROP);
+
+    assertTrue(queue.offer("/a", Kind.CREATE));
+    assertFalse(queue.offer("/a", Kind.CREATE));
+    assertFalse(queue.offer("/a", Kind.UPDATE));
+    assertTrue(queue.offer("/a", Kind.DELETE));
+    assertEquals(2, queue.getDepth());
+    assertEquals(2, queue.getCollapsedCount());
+
+    queue.started("/a", Kind.DELETE);
+    assertTrue(queue.offer("/a", Kind.DELETE));
+  }
+
+  @Test
+  void dropsWhenFull() {
+    EventQueue queue = new EventQueue(2, OverflowPolicy.DROP);
+
+    assertTrue(queue.offer("/a", Kind.CREATE));
+    assertTrue(queue.offer("/b", Kind.CREATE));
+    assertFalse(queue.offer("/c", Kind.CREATE));
+    assertEquals(1, queue.getDroppedCount());
+
+    queue.completed();
+    assertTrue(queue.offer("/c", Kind.CREATE));
+  }
+
+  @Test
+  void blocksUntilThereIsRoom() throws Exception {
+    EventQueue queue = new EventQueue(1, OverflowPolicy.BLOCK);
+    assertTrue(queue.offer("/a", Kind.CREATE));
+
+    CompletableFuture<Boolean> blocked =
+        CompletableFuture.supplyAsync(() -> queue.offer("/b", Kind.CREATE));
+    Thread.sleep(100);
+    assertFalse(blocked.isDone());
+
+    queue.completed();
+    assertTrue(blocked.get(5, TimeUnit.SECONDS));
+    assertEquals(0, queue.getDroppedCount());
+  }
+
+  @Test
+  void shutdownReleasesBlockedCallers() throws Exception {
+    EventQueue queue = new EventQueue(1, OverflowPolicy.DROP);
+    assertTrue(queue.put("/a", Kind.CREATE));
+
+    CompletableFuture<Boolean> blocked =
+        CompletableFuture.supplyAsync(() -> queue.put("/b", Kind.CREATE));
+    Thread.sleep(100);
+    queue.shutdown();
+    assertFalse(blocked.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void retryDroppedBehindPendingUpdateDoesNotSwallowLaterUpdates() throws Exception {
+    File file = Files.write(tempDir.resolve("a.txt"), new byte[] {1}).toFile();
+    String path = file.getAbsolutePath();
+    EventQueue queue = new EventQueue(10, OverflowPolicy.BLOCK);
+    StabilityTracker tracker = new StabilityTracker(60000);
+    try {
+      // an update from the scanner is waiting to become stable when a retry of the create arrives
+      assertTrue(queue.offer(path, Kind.UPDATE));
+      tracker.track(file, () -> {}, () -> queue.abandon(path, Kind.UPDATE));
+      assertTrue(queue.put(path, Kind.CREATE));
+      tracker.trackAgain(file, () -> {}, () -> queue.abandon(path, Kind.CREATE));
+      assertEquals(1, queue.getDepth());
+
+      // the pending update is processed
+      queue.started(path, Kind.UPDATE);
+      queue.completed();
+      assertEquals(0, queue.getDepth());
+      assertTrue(queue.offer(path, Kind.UPDATE));
+      assertEquals(1, queue.getDepth());
+    } finally {
+      tracker.shutdown();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileFingerprinterTest {
+
+  @TempDir Path tempDir;
+
+  private final FileFingerprinter fingerprinter = new FileFingerprinter(2);
+
+  @AfterEach
+  void tearDown() {
+    fingerprinter.shutdown();
+  }
+
+  @Test
+  void fingerprintsContent() throws Exception {
+    Path file = tempDir.resolve("abc.txt");
+    Files.write(file, "abc".getBytes());
+
+    assertEquals(
+        "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+        fingerprinter.fingerprint(file.toFile()).get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void onlyChangesWithContent() throws Exception {
+    byte[] content = new byte[200_000];
+    new Random(1).nextBytes(content);
+    Path file = tempDir.resolve("large.bin");
+    Files.write(file, content);
+    String before = fingerprinter.fingerprint(file.toFile()).get(5, TimeUnit.SECONDS);
+
+    Files.write(file, content);
+    file.toFile().setLastModified(System.currentTimeMillis() + 5000);
+    assertEquals(before, fingerprinter.fingerprint(file.toFile()).get(5, TimeUnit.SECONDS));
+
+    content[content.length - 1]++;
+    Files.write(file, content);
+    assertNotEquals(before, fingerprinter.fingerprint(file.toFile()).get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void failsForMissingFiles() {
+    assertThrows(
+        ExecutionException.class,
+        () ->
+            fingerprinter
+                .fingerprint(tempDir.resolve("missing").toFile())
+                .get(5, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class FileTreeSnapshotTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileTreeSnapshotTest.class);
+
+  private static final int DIRECTORIES = 1000;
+
+  private static final int FILES_PER_DIRECTORY = 1000;
+
+  @Test
+  void storesEntries() {
+    NameTable names = new NameTable();
+    FileTreeSnapshot.Builder builder = new FileTreeSnapshot.Builder(names, null);
+    int dir = builder.addChildren(FileTreeSnapshot.ROOT, 1);
+    builder.set(dir, names.intern("dir"), true, 10L, 0L);
+    int file = builder.addChildren(dir, 1);
+    builder.set(file, names.intern("file.txt"), false, 20L, 30L);
+    FileTreeSnapshot snapshot = builder.build();
+
+    assertEquals(3, snapshot.size());
+    assertEquals(dir, snapshot.getFirstChild(FileTreeSnapshot.ROOT));
+    assertEquals(1, snapshot.getChildCount(dir));
+    assertEquals(dir, snapshot.getParent(file));
+    assertEquals("file.txt", snapshot.getName(file));
+    assertEquals(20L, snapshot.getLastModified(file));
+    assertEquals(30L, snapshot.getLength(file));
+    assertEquals(
+        new File(new File("root", "dir"), "file.txt"), snapshot.getFile(file, new File("root")));
+  }
+
+  @Test
+  void writesAndReadsBack(@TempDir Path tempDir) throws Exception {
+    NameTable names = new NameTable();
+    FileTreeSnapshot.Builder builder = new FileTreeSnapshot.Builder(names, null);
+    int dir = builder.addChildren(FileTreeSnapshot.ROOT, 1);
+    builder.set(dir, names.intern("dir"), true, 10L, 0L);
+    int file = builder.addChildren(dir, 1);
+    builder.set(file, names.intern("f\u00efle.txt"), false, 20L, 30L, 0xfe00L, 1L << 40);
+    Path path = tempDir.resolve("snapshot");
+    builder.build().write(path, "/root");
+
+    FileTreeSnapshot read = FileTreeSnapshot.read(path, "/root");
+    assertEquals(3, read.size());
+    assertEquals(dir, read.getParent(file));
+    assertTrue(read.isDirectory(dir));
+    assertEquals("f\u00efle.txt", read.getName(file));
+    assertEquals(20L, read.getLastModified(file));
+    assertEquals(30L, read.getLength(file));
+    assertEquals(0xfe00L, read.getFileDevice(file));
+    assertEquals(1L << 40, read.getFileInode(file));
+
+    assertThrows(IOException.class, () -> FileTreeSnapshot.read(path, "/other"));
+    byte[] corrupt = Files.readAllBytes(path);
+    corrupt[corrupt.length / 2]++;
+    Files.write(path, corrupt);
+    assertThrows(IOException.class, () -> FileTreeSnapshot.read(path, "/root"));
+  }
+
+  @Test
+  void reportsBytesPerFileWithRepeatedNames() {
+    long bytesPerFile = bytesPerFile(false);
+    LOGGER.info("Snapshot with repeated names uses {} bytes per tracked file", bytesPerFile);
+    assertTrue(bytesPerFile < 64, "expected compact snapshot but was " + bytesPerFile);
+  }
+
+  @Test
+  void reportsBytesPerFileWithUniqueNames() {
+    long bytesPerFile = bytesPerFile(true);
+    LOGGER.info("Snapshot with unique names uses {} bytes per tracked file", bytesPerFile);
+    assertTrue(bytesPerFile < 128, "expected compact snapshot but was " + bytesPerFile);
+  }
+
+  private static long bytesPerFile(boolean uniqueNames) {
+    NameTable names = new NameTable();
+    FileTreeSnapshot.Builder builder = new FileTreeSnapshot.Builder(names, null);
+    int firstDir = builder.addChildren(FileTreeSnapshot.ROOT, DIRECTORIES);
+    for (int d = 0; d < DIRECTORIES; d++) {
+      builder.set(firstDir + d, names.intern("directory-" + d), true, d, 0L);
+    }
+    for (int d = 0; d < DIRECTORIES; d++) {
+      int first = builder.addChildren(firstDir + d, FILES_PER_DIRECTORY);
+      for (int f = 0; f < FILES_PER_DIRECTORY; f++) {
+        String name = uniqueNames ? "file-" + d + "-" + f + ".dat" : "file-" + f + ".dat";
+        builder.set(first + f, names.intern(name), false, 1588000000000L + f, 4096L);
+      }
+    }
+    FileTreeSnapshot snapshot = builder.build();
+    assertEquals(1 + DIRECTORIES + DIRECTORIES * FILES_PER_DIRECTORY, snapshot.size());
+    return snapshot.memoryUsage() / snapshot.size();
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MonitorFileFilterTest {
+
+  private final File root = new File("/data/monitored");
+
+  @Test
+  void appliesFileRules() {
+    MonitorFileFilter filter =
+        new MonitorFileFilter(
+            root,
+            ".*\\.(txt|csv)",
+            List.of(),
+            List.of("*.part.*", "draft-*"),
+            List.of(),
+            List.of());
+
+    assertTrue(filter.accept(file("a/report.txt"), false));
+    assertTrue(filter.accept(file("a/report.csv"), false));
+    assertFalse(filter.accept(file("a/report.xml"), false));
+    assertFalse(filter.accept(file("a/report.part.txt"), false));
+    assertFalse(filter.accept(file("a/draft-report.txt"), false));
+    assertFalse(filter.accept(file("a/.report.txt"), false));
+    // the file expression does not apply to directories
+    assertTrue(filter.accept(file("a/reports"), true));
+  }
+
+  @Test
+  void appliesDirectoryRules() {
+    MonitorFileFilter filter =
+        new MonitorFileFilter(
+            root,
+            null,
+            List.of(),
+            List.of(),
+            List.of(),
+            List.of("tmp", "archive/**", "*/scratch/", "cache-?"));
+
+    assertFalse(filter.accept(file("tmp"), true));
+    assertFalse(filter.accept(file("a/b/tmp"), true));
+    assertTrue(filter.accept(file("tmp"), false));
+    assertFalse(filter.accept(file("archive/2020"), true));
+    assertFalse(filter.accept(file("archive/2020/01"), true));
+    assertTrue(filter.accept(file("archive"), true));
+    assertFalse(filter.accept(file("a/scratch"), true));
+    assertTrue(filter.accept(file("a/b/scratch"), true));
+    assertFalse(filter.accept(file("cache-1"), true));
+    assertTrue(filter.accept(file("cache-10"), true));
+    assertFalse(filter.accept(file(".snapshot"), true));
+  }
+
+  @Test
+  void includesOnlyMatchingFilesAndDirectories() {
+    MonitorFileFilter filter =
+        new MonitorFileFilter(
+            root, ".*", List.of("in*", "**/*.dat"), List.of(), List.of("incoming*"), List.of());
+
+    assertTrue(filter.accept(file("incoming/inbound.csv"), false));
+    assertTrue(filter.accept(file("incoming/x/y.dat"), false));
+    assertFalse(filter.accept(file("incoming/other.csv"), false));
+    assertTrue(filter.accept(file("incoming-2"), true));
+    assertFalse(filter.accept(file("outgoing"), true));
+  }
+
+  @Test
+  void acceptsSignalFilesWhateverTheRules() {
+    MonitorFileFilter filter =
+        new MonitorFileFilter(root, ".*\\.csv", List.of(), List.of("*.done"), List.of(), List.of());
+    filter.setSignalFiles(file -> file.getName().endsWith(".done"));
+
+    assertTrue(filter.accept(file("a/data.csv.done"), false));
+    assertFalse(filter.accept(file("a/.data.csv.done"), false));
+    assertFalse(filter.accept(file("a/data.txt"), false));
+  }
+
+  @Test
+  void convertsGlobsToRegularExpressions() {
+    assertEquals("[^/]*\\.txt", MonitorFileFilter.toRegEx("*.txt"));
+    assertEquals("a/.*/b[^/]", MonitorFileFilter.toRegEx("a/**/b?"));
+  }
+
+  @Test
+  void prunesExcludedDirectoriesFromScans(@TempDir Path dir) throws Exception {
+    Files.createDirectories(dir.resolve("tmp/deep"));
+    Files.createDirectories(dir.resolve("in"));
+    MonitorFileFilter filter =
+        new MonitorFileFilter(
+            dir.toFile(), ".*", List.of(), List.of("*.tmp"), List.of(), List.of("tmp"));
+    SafeFileAlterationObserver observer = new SafeFileAlterationObserver(dir.toFile(), filter);
+    List<File> created = new ArrayList<>();
+    observer.addListener(
+        new FileAlterationListenerAdaptor() {
+          @Override
+          public void onFileCreate(File file) {
+            created.add(file);
+          }
+        });
+    observer.initialize();
+
+    Files.write(dir.resolve("tmp/deep/skipped.txt"), new byte[1]);
+    Files.write(dir.resolve("in/skipped.tmp"), new byte[1]);
+    Files.write(dir.resolve("in/seen.txt"), new byte[1]);
+    observer.checkAndNotify();
+
+    assertEquals(List.of(dir.resolve("in/seen.txt").toFile()), created);
+  }
+
+  private File file(String path) {
+    return new File(root, path);
+  }
+}
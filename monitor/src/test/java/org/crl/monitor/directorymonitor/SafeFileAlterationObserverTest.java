@@ -0,0 +1,335 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
+import org.apache.commons.io.monitor.FileAlterationObserver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class SafeFileAlterationObserverTest {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(SafeFileAlterationObserverTest.class);
+
+  private static final FileFilter FILTER = file -> !file.getName().startsWith(".");
+
+  @TempDir Path root;
+
+  @Test
+  void firesSameEventsAsCommonsIoObserver() throws Exception {
+    write(root.resolve("a/one.txt"), "1");
+    write(root.resolve("a/two.txt"), "2");
+    write(root.resolve("b/c/three.txt"), "3");
+    write(root.resolve(".hidden"), "h");
+
+    FileAlterationObserver expected = new FileAlterationObserver(root.toFile(), FILTER);
+    SafeFileAlterationObserver actual = new SafeFileAlterationObserver(root.toFile(), FILTER);
+    SafeFileAlterationObserver parallel = new SafeFileAlterationObserver(root.toFile(), FILTER);
+    parallel.setScanParallelism(4);
+    List<String> expectedEvents = record(expected);
+    List<String> actualEvents = record(actual);
+    List<String> parallelEvents = record(parallel);
+    expected.initialize();
+    actual.initialize();
+    parallel.initialize();
+
+    write(root.resolve("a/new.txt"), "new");
+    write(root.resolve("d/e/deep.txt"), "deep");
+    write(root.resolve("a/one.txt"), "changed");
+    root.resolve("a/one.txt").toFile().setLastModified(System.currentTimeMillis() + 5000);
+    Files.delete(root.resolve("a/two.txt"));
+    FileUtils.deleteDirectory(root.resolve("b").toFile());
+    write(root.resolve(".ignored"), "x");
+
+    expected.checkAndNotify();
+    actual.checkAndNotify();
+    parallel.checkAndNotify();
+    parallel.destroy();
+
+    assertFalse(expectedEvents.isEmpty());
+    assertEquals(expectedEvents, actualEvents);
+    assertEquals(expectedEvents, parallelEvents);
+  }
+
+  @Test
+  void reportsMovedFilesToMoveListeners() throws Exception {
+    write(root.resolve("a/moved.txt"), "moved");
+    // a file written just before a scan could be a new file given a deleted file's key
+    root.resolve("a/moved.txt").toFile().setLastModified(System.currentTimeMillis() - 60000);
+    write(root.resolve("a/deleted.txt"), "deleted");
+    Files.createDirectories(root.resolve("b"));
+
+    SafeFileAlterationObserver observer = new SafeFileAlterationObserver(root.toFile(), FILTER);
+    List<String> plainEvents = record(observer);
+    List<String> moveEvents = new ArrayList<>();
+    observer.addListener(new MoveRecorder(moveEvents));
+    observer.initialize();
+
+    Files.move(root.resolve("a/moved.txt"), root.resolve("b/renamed.txt"));
+    Files.delete(root.resolve("a/deleted.txt"));
+    write(root.resolve("a/created.txt"), "created");
+    observer.checkAndNotify();
+
+    File a = root.resolve("a").toFile();
+    File b = root.resolve("b").toFile();
+    // the new file cannot be part of a move, so it is reported without waiting for the scan to end
+    assertEquals(
+        List.of(
+            "create " + new File(a, "created.txt"),
+            "delete " + new File(a, "deleted.txt"),
+            "move " + new File(a, "moved.txt") + " " + new File(b, "renamed.txt")),
+        moveEvents);
+    assertTrue(plainEvents.contains("delete " + new File(a, "moved.txt")));
+    assertTrue(plainEvents.contains("create " + new File(b, "renamed.txt")));
+  }
+
+  @Test
+  void doesNotReportNewFileWithReusedKeyAsMove() throws Exception {
+    Path deleted = root.resolve("deleted.txt");
+    write(deleted, "deleted");
+    long modified = deleted.toFile().lastModified();
+    SafeFileAlterationObserver observer = new SafeFileAlterationObserver(root.toFile(), FILTER);
+    List<String> events = new ArrayList<>();
+    observer.addListener(new MoveRecorder(events));
+    observer.initialize();
+
+    // the new file usually takes the deleted file's inode, and a copy may keep its modified time
+    Files.delete(deleted);
+    Path created = root.resolve("created.txt");
+    write(created, "created");
+    created.toFile().setLastModified(modified);
+    observer.checkAndNotify();
+
+    assertEquals(List.of("create " + created.toFile(), "delete " + deleted.toFile()), events);
+  }
+
+  @Test
+  void resumesFromSnapshot() throws Exception {
+    write(root.resolve("a/kept.txt"), "kept");
+    write(root.resolve("a/deleted.txt"), "deleted");
+    Path snapshotFile = root.resolve(".snapshot");
+    SafeFileAlterationObserver first = new SafeFileAlterationObserver(root.toFile(), FILTER);
+    first.setSnapshotFile(snapshotFile);
+    first.initialize();
+    first.checkpoint();
+
+    Files.delete(root.resolve("a/deleted.txt"));
+    write(root.resolve("a/created.txt"), "created");
+    SafeFileAlterationObserver resumed = new SafeFileAlterationObserver(root.toFile(), FILTER);
+    resumed.setSnapshotFile(snapshotFile);
+    List<String> events = record(resumed);
+    resumed.initialize();
+
+    assertTrue(resumed.isResumed());
+    File a = root.resolve("a").toFile();
+    assertEquals(
+        List.of(
+            "dir change " + a,
+            "create " + new File(a, "created.txt"),
+            "delete " + new File(a, "deleted.txt")),
+        events);
+
+    Files.write(snapshotFile, new byte[] {1, 2, 3});
+    SafeFileAlterationObserver cold = new SafeFileAlterationObserver(root.toFile(), FILTER);
+    cold.setSnapshotFile(snapshotFile);
+    List<String> coldEvents = record(cold);
+    cold.initialize();
+    assertFalse(cold.isResumed());
+    assertTrue(coldEvents.isEmpty());
+  }
+
+  @Test
+  void reusesListingsOfUnchangedDirectories() throws Exception {
+    write(root.resolve("a/one.txt"), "1");
+    write(root.resolve("b/two.txt"), "2");
+    long old = System.currentTimeMillis() - 60000;
+    File a = root.resolve("a").toFile();
+    File b = root.resolve("b").toFile();
+    a.setLastModified(old);
+    b.setLastModified(old);
+    SafeFileAlterationObserver sequential = new SafeFileAlterationObserver(root.toFile(), FILTER);
+    sequential.setDirectoryPruning(true);
+    SafeFileAlterationObserver parallel = new SafeFileAlterationObserver(root.toFile(), FILTER);
+    parallel.setDirectoryPruning(true);
+    parallel.setScanParallelism(4);
+    List<String> sequentialEvents = record(sequential);
+    List<String> parallelEvents = record(parallel);
+    sequential.initialize();
+    parallel.initialize();
+
+    // a is not listed again while its modified time is unchanged, but its files are still checked
+    write(root.resolve("a/unseen.txt"), "unseen");
+    write(root.resolve("a/one.txt"), "changed");
+    a.setLastModified(old);
+    write(root.resolve("b/new.txt"), "new");
+    sequential.checkAndNotify();
+    parallel.checkAndNotify();
+    parallel.destroy();
+
+    assertEquals(
+        List.of(
+            "change " + new File(a, "one.txt"),
+            "dir change " + b,
+            "create " + new File(b, "new.txt")),
+        sequentialEvents);
+    assertEquals(sequentialEvents, parallelEvents);
+  }
+
+  @Test
+  void checksIdleDirectoriesLessOften() throws Exception {
+    write(root.resolve("active/0.txt"), "0");
+    write(root.resolve("idle/old.txt"), "old");
+    SafeFileAlterationObserver observer = new SafeFileAlterationObserver(root.toFile(), FILTER);
+    observer.setTieredScanning(8, Long.MAX_VALUE);
+    List<String> events = record(observer);
+    observer.initialize();
+
+    int skipped = 0;
+    long start = System.currentTimeMillis();
+    for (int i = 1; i <= 24; i++) {
+      File created = root.resolve("active/" + i + ".txt").toFile();
+      write(created.toPath(), "new");
+      // timestamps can be coarser than a scan, so make sure active is seen to change every time
+      created.getParentFile().setLastModified(start + i * 1000L);
+      observer.checkAndNotify();
+      assertTrue(events.contains("create " + created));
+      if (i > 16) {
+        skipped += observer.getSkippedDirectoryCount();
+      }
+    }
+    // idle has backed off to one check in every 8 scans while active is checked every scan
+    assertEquals(7, skipped);
+
+    File late = root.resolve("idle/late.txt").toFile();
+    write(late.toPath(), "late");
+    int scans = 0;
+    while (!events.contains("create " + late) && scans < 8) {
+      observer.checkAndNotify();
+      scans++;
+    }
+    assertTrue(events.contains("create " + late));
+  }
+
+  @Test
+  @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+  void benchmarkScan() throws Exception {
+    for (int d = 0; d < 100; d++) {
+      for (int f = 0; f < 500; f++) {
+        write(root.resolve("dir-" + d).resolve("file-" + f + ".txt"), "data");
+      }
+    }
+    long commonsIo = time(new FileAlterationObserver(root.toFile(), FILTER));
+    long nio = time(new SafeFileAlterationObserver(root.toFile(), FILTER));
+    SafeFileAlterationObserver parallel = new SafeFileAlterationObserver(root.toFile(), FILTER);
+    parallel.setScanParallelism(Runtime.getRuntime().availableProcessors());
+    long nioParallel = time(parallel);
+    parallel.destroy();
+    LOGGER.info(
+        "Scanning 50000 files: commons-io observer {} ms, NIO observer {} ms, parallel NIO observer {} ms per scan",
+        commonsIo,
+        nio,
+        nioParallel);
+  }
+
+  private static long time(FileAlterationObserver observer) throws Exception {
+    observer.initialize();
+    observer.checkAndNotify();
+    int rounds = 10;
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      observer.checkAndNotify();
+    }
+    return (System.nanoTime() - start) / rounds / 1_000_000;
+  }
+
+  private static List<String> record(FileAlterationObserver observer) {
+    List<String> events = new ArrayList<>();
+    observer.addListener(
+        new FileAlterationListenerAdaptor() {
+          @Override
+          public void onDirectoryCreate(File directory) {
+            events.add("dir create " + directory);
+          }
+
+          @Override
+          public void onDirectoryChange(File directory) {
+            events.add("dir change " + directory);
+          }
+
+          @Override
+          public void onDirectoryDelete(File directory) {
+            events.add("dir delete " + directory);
+          }
+
+          @Override
+          public void onFileCreate(File file) {
+            events.add("create " + file);
+          }
+
+          @Override
+          public void onFileChange(File file) {
+            events.add("change " + file);
+          }
+
+          @Override
+          public void onFileDelete(File file) {
+            events.add("delete " + file);
+          }
+        });
+    return events;
+  }
+
+  private static void write(Path path, String content) throws IOException {
+    Files.createDirectories(path.getParent());
+    Files.write(path, content.getBytes());
+  }
+
+  private static class MoveRecorder extends FileAlterationListenerAdaptor
+      implements FileMoveListener {
+    private final List<String> events;
+
+    MoveRecorder(List<String> events) {
+      this.events = events;
+    }
+
+    @Override
+    public void onFileCreate(File file) {
+      events.add("create " + file);
+    }
+
+    @Override
+    public void onFileDelete(File file) {
+      events.add("delete " + file);
+    }
+
+    @Override
+    public void onFileMove(File from, File to) {
+      events.add("move " + from + " " + to);
+    }
+  }
+}
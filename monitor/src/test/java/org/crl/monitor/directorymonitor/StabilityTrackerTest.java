@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StabilityTrackerTest {
+
+  private static final long PERIOD = 300;
+
+  @TempDir Path dir;
+
+  private final StabilityTracker tracker = new StabilityTracker(PERIOD);
+
+  private final List<String> events = new CopyOnWriteArrayList<>();
+
+  @AfterEach
+  void tearDown() {
+    tracker.shutdown();
+  }
+
+  @Test
+  void releasesAFileOnceUnchangedForTheStabilityPeriod() throws Exception {
+    File old = write("old.csv");
+    old.setLastModified(System.currentTimeMillis() - 60000);
+    track(old);
+    // already stable, so released straight away on the calling thread
+    assertEquals(List.of("stable old.csv"), events);
+
+    File fresh = write("fresh.csv");
+    long written = fresh.lastModified();
+    CountDownLatch released = new CountDownLatch(1);
+    tracker.track(fresh, released::countDown, () -> events.add("dropped"));
+    assertEquals(1, tracker.getPendingCount());
+    assertTrue(released.await(10, TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() - written >= PERIOD);
+    assertEquals(0, tracker.getPendingCount());
+  }
+
+  @Test
+  void keepsWaitingWhileAFileIsBeingWritten() throws Exception {
+    File file = write("growing.csv");
+    CountDownLatch released = new CountDownLatch(1);
+    tracker.track(file, released::countDown, () -> events.add("dropped"));
+    for (int i = 0; i < 6; i++) {
+      Thread.sleep(PERIOD / 3);
+      Files.write(file.toPath(), new byte[] {1}, StandardOpenOption.APPEND);
+      assertEquals(1, released.getCount());
+    }
+
+    assertTrue(released.await(10, TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() - file.lastModified() >= PERIOD);
+    assertTrue(events.isEmpty());
+  }
+
+  @Test
+  void dropsDuplicateAndCancelledFiles() throws Exception {
+    File file = writing("pending.csv");
+    track(file);
+    track(file);
+    assertEquals(List.of("dropped pending.csv"), events);
+    assertEquals(1, tracker.getPendingCount());
+
+    tracker.cancel(file);
+    assertEquals(List.of("dropped pending.csv", "dropped pending.csv"), events);
+    assertEquals(0, tracker.getPendingCount());
+    // cancelling a file that is not tracked does nothing
+    tracker.cancel(file);
+    assertEquals(2, events.size());
+  }
+
+  @Test
+  void dropsPendingFilesOnShutdown() throws Exception {
+    track(writing("first.csv"));
+    track(writing("second.csv"));
+
+    tracker.shutdown();
+    assertEquals(2, events.size());
+    assertTrue(events.contains("dropped first.csv"));
+    assertTrue(events.contains("dropped second.csv"));
+    assertEquals(0, tracker.getPendingCount());
+
+    // nothing is released once the tracker has stopped
+    Thread.sleep(2 * PERIOD);
+    assertEquals(2, events.size());
+  }
+
+  private void track(File file) {
+    tracker.track(
+        file,
+        () -> events.add("stable " + file.getName()),
+        () -> events.add("dropped " + file.getName()));
+  }
+
+  /** Write a file that looks modified in the future, so it stays pending throughout a test. */
+  private File writing(String name) throws Exception {
+    File file = write(name);
+    file.setLastModified(System.currentTimeMillis() + 60000);
+    return file;
+  }
+
+  private File write(String name) throws Exception {
+    return Files.write(dir.resolve(name), new byte[] {1}).toFile();
+  }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2020 Chris Lockard
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.crl.monitor.directorymonitor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WatchServiceFileAlterationObserverTest {
+
+  @TempDir Path tempDir;
+
+  private Path root;
+
+  private WatchServiceFileAlterationObserver observer;
+
+  private final List<String> events = new ArrayList<>();
+
+  @BeforeEach
+  void setUp() throws Exception {
+    root = Files.createDirectories(tempDir.resolve("root"));
+    assertTrue(WatchServiceFileAlterationObserver.isSupported(root.toFile()));
+    write(root.resolve("existing.txt"), "existing");
+    observer = new WatchServiceFileAlterationObserver(root.toFile(), null);
+    observer.addListener(new Recorder(events));
+    observer.initialize();
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    observer.destroy();
+  }
+
+  @Test
+  void firesCreatesAndDeletesInNewNestedDirectories() throws Exception {
+    write(root.resolve("a/b/c/deep.txt"), "deep");
+    File a = root.resolve("a").toFile();
+    File b = new File(a, "b");
+    File c = new File(b, "c");
+    File deep = new File(c, "deep.txt");
+    awaitEvents(e -> e.contains("create " + deep));
+    assertEquals(
+        List.of("dir create " + a, "dir create " + b, "dir create " + c, "create " + deep), events);
+
+    events.clear();
+    FileUtils.deleteDirectory(a);
+    awaitEvents(e -> e.contains("dir delete " + a));
+    assertEquals(
+        List.of("delete " + deep, "dir delete " + c, "dir delete " + b, "dir delete " + a), events);
+  }
+
+  @Test
+  void firesChangeForAModifiedFile() throws Exception {
+    File existing = root.resolve("existing.txt").toFile();
+    write(existing.toPath(), "changed content");
+    awaitEvents(e -> !e.isEmpty());
+    assertEquals(List.of("change " + existing), events);
+  }
+
+  @Test
+  void rescansADirectoryWhoseEventsOverflowed() throws Exception {
+    // the watch service keeps a few hundred events per directory and reports an overflow after
+    int count = 2000;
+    Set<String> expected = new HashSet<>();
+    for (int i = 0; i < count; i++) {
+      Path file = root.resolve("file-" + i + ".txt");
+      write(file, "new");
+      expected.add("create " + file.toFile());
+    }
+    Files.delete(root.resolve("existing.txt"));
+    expected.add("delete " + root.resolve("existing.txt").toFile());
+    Thread.sleep(500);
+    awaitEvents(e -> new HashSet<>(e).containsAll(expected));
+
+    // every difference is reported once, whether it came from an event or the rescan
+    assertEquals(expected.size(), events.size());
+    assertEquals(expected, new HashSet<>(events));
+  }
+
+  @Test
+  void suspendsWhileTheRootIsGoneAndResumesOnceItIsBack() throws Exception {
+    FileUtils.deleteDirectory(root.toFile());
+    Thread.sleep(200);
+    observer.checkAndNotify();
+    observer.checkAndNotify();
+    assertTrue(events.isEmpty());
+
+    write(root.resolve("restored.txt"), "restored");
+    // picks up the tree as it is when the root comes back, without firing events
+    observer.checkAndNotify();
+    assertTrue(events.isEmpty());
+
+    write(root.resolve("after.txt"), "after");
+    awaitEvents(e -> !e.isEmpty());
+    assertEquals(List.of("create " + root.resolve("after.txt").toFile()), events);
+  }
+
+  @Test
+  void isNotSupportedForAMissingDirectory() {
+    assertFalse(
+        WatchServiceFileAlterationObserver.isSupported(tempDir.resolve("missing").toFile()));
+  }
+
+  /** Check for events until the condition holds, then once more to catch anything extra. */
+  private void awaitEvents(Predicate<List<String>> condition) throws Exception {
+    long deadline = System.currentTimeMillis() + 20_000;
+    while (!condition.test(events) && System.currentTimeMillis() < deadline) {
+      observer.checkAndNotify();
+      Thread.sleep(50);
+    }
+    Thread.sleep(200);
+    observer.checkAndNotify();
+    assertTrue(condition.test(events), events::toString);
+  }
+
+  private static void write(Path path, String content) throws IOException {
+    Files.createDirectories(path.getParent());
+    Files.write(path, content.getBytes());
+  }
+
+  private static class Recorder extends FileAlterationListenerAdaptor {
+    private final List<String> events;
+
+    Recorder(List<String> events) {
+      this.events = events;
+    }
+
+    @Override
+    public void onDirectoryCreate(File directory) {
+      events.add("dir create " + directory);
+    }
+
+    @Override
+    public void onDirectoryDelete(File directory) {
+      events.add("dir delete " + directory);
+    }
+
+    @Override
+    public void onFileCreate(File file) {
+      events.add("create " + file);
+    }
+
+    @Override
+    public void onFileChange(File file) {
+      events.add("change " + file);
+    }
+
+    @Override
+    public void onFileDelete(File file) {
+      events.add("delete " + file);
+    }
+  }
+}